@@ -0,0 +1,129 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+/**
+ * The app supplied settings for a connect. Kept with the session config so a reconnect uses exactly the same ones.
+ */
+public class ConnectOptions {
+
+    private String proofOfPossession;
+    private String username;
+    private String softApPassword;
+    private boolean autoReconnect = false;
+    private int maxReconnectAttempts = EspProvisioningBLE.DEFAULT_MAX_RECONNECT_ATTEMPTS;
+    private long timeout = EspProvisioningBLE.DEVICE_CONNECT_TIMEOUT;
+    private int mtu = 0;
+    private boolean highPriority = false;
+    private int priority = 0;
+    private boolean prefetchWifiList = false;
+    private boolean prefetchVersionInfo = false;
+
+    public ConnectOptions(String proofOfPossession) {
+        this.proofOfPossession = proofOfPossession;
+    }
+
+    public String getProofOfPossession() {
+        return proofOfPossession;
+    }
+
+    /**
+     * The SRP6a username, only used with SECURITY_2. The proof of possession is the password.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * The password of the device's access point. Without one the phone has to be on the access point already.
+     */
+    public String getSoftApPassword() {
+        return softApPassword;
+    }
+
+    public void setSoftApPassword(String softApPassword) {
+        this.softApPassword = softApPassword;
+    }
+
+    public boolean isAutoReconnect() {
+        return autoReconnect;
+    }
+
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    public int getMaxReconnectAttempts() {
+        return maxReconnectAttempts;
+    }
+
+    public void setMaxReconnectAttempts(int maxReconnectAttempts) {
+        this.maxReconnectAttempts = maxReconnectAttempts;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * The ATT MTU to ask for once connected over BLE. 0 leaves it at whatever the library negotiated.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /**
+     * Whether to ask for CONNECTION_PRIORITY_HIGH until provisioning is done. BLE only.
+     */
+    public boolean isHighPriority() {
+        return highPriority;
+    }
+
+    public void setHighPriority(boolean highPriority) {
+        this.highPriority = highPriority;
+    }
+
+    /**
+     * Where the connect goes in the queue when all connection slots are taken. Higher goes first.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Whether to start a WiFi scan on the device as soon as the session is up, for the next scanWifiList to pick up.
+     */
+    public boolean isPrefetchWifiList() {
+        return prefetchWifiList;
+    }
+
+    public void setPrefetchWifiList(boolean prefetchWifiList) {
+        this.prefetchWifiList = prefetchWifiList;
+    }
+
+    /**
+     * Whether to get the device's proto-ver version info as soon as the session is up.
+     */
+    public boolean isPrefetchVersionInfo() {
+        return prefetchVersionInfo;
+    }
+
+    public void setPrefetchVersionInfo(boolean prefetchVersionInfo) {
+        this.prefetchVersionInfo = prefetchVersionInfo;
+    }
+
+}
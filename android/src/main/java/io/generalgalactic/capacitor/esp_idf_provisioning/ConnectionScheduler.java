@@ -0,0 +1,227 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Hands out connection slots. Android only allows a handful of GATT connections at once and copes badly with
+ * several connectGatt calls racing each other (GATT status 133), so:
+ *
+ * - at most maxConcurrentConnects connects run at a time, the rest wait in a priority queue
+ * - at most maxOpenConnections links are up at a time - when a waiting connect needs a slot, the least recently used
+ *   idle session is closed to make room
+ * - waiting ages a request, every agingMillis spent in the queue counts as one priority level, so low priority
+ *   connects still get their turn
+ *
+ * Aging by a fixed rate keeps the queue order stable over time, so it can be an ordinary PriorityQueue.
+ *
+ * Calls into the SessionCloser are always made without holding the scheduler's lock.
+ */
+public class ConnectionScheduler {
+
+    public interface SessionCloser {
+
+        /**
+         * Whether the session can be closed without cutting off something the app is doing with it.
+         */
+        boolean isIdle(String deviceName);
+
+        void close(String deviceName);
+
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 1;
+    public static final int DEFAULT_MAX_OPEN_CONNECTIONS = 4;
+    public static final long DEFAULT_AGING_MILLIS = 2000;
+
+    private final int maxConcurrentConnects;
+    private final int maxOpenConnections;
+    private final long agingMillis;
+    private final SessionCloser closer;
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<Ticket>();
+    private final Set<Ticket> connecting = new HashSet<Ticket>();
+    // Access ordered, so iteration starts at the least recently used session
+    private final LinkedHashMap<String, Long> open = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long sequence = 0;
+
+    public ConnectionScheduler(SessionCloser closer) {
+        this(DEFAULT_MAX_CONCURRENT_CONNECTS, DEFAULT_MAX_OPEN_CONNECTIONS, DEFAULT_AGING_MILLIS, closer);
+    }
+
+    public ConnectionScheduler(int maxConcurrentConnects, int maxOpenConnections, long agingMillis, SessionCloser closer) {
+        if (maxConcurrentConnects <= 0) throw new IllegalArgumentException("maxConcurrentConnects must be greater than 0");
+        if (maxOpenConnections <= 0) throw new IllegalArgumentException("maxOpenConnections must be greater than 0");
+
+        this.maxConcurrentConnects = maxConcurrentConnects;
+        this.maxOpenConnections = maxOpenConnections;
+        this.agingMillis = Math.max(1, agingMillis);
+        this.closer = closer;
+    }
+
+    /**
+     * Queues a connect. start is handed the ticket as soon as the connect has a slot, possibly right away on this
+     * thread. Higher priorities go first.
+     */
+    public Ticket request(String deviceName, int priority, Consumer<Ticket> start) {
+        Ticket ticket;
+        synchronized (this) {
+            long enqueuedAt = System.currentTimeMillis();
+            ticket = new Ticket(deviceName, start, enqueuedAt - priority * this.agingMillis, this.sequence++);
+            this.waiting.add(ticket);
+        }
+
+        this.dispatch();
+        return ticket;
+    }
+
+    /**
+     * The connect brought the link up. It keeps its slot until released().
+     */
+    public void connected(Ticket ticket) {
+        synchronized (this) {
+            if (!this.connecting.remove(ticket)) return; // cancelled meanwhile
+            ticket.state = Ticket.STATE_OPEN;
+            this.open.put(ticket.deviceName, System.currentTimeMillis());
+        }
+
+        this.dispatch();
+    }
+
+    /**
+     * The connect failed, timed out or was cancelled. Frees whatever the ticket holds, including its open slot
+     * if the link had already come up.
+     */
+    public void cancel(Ticket ticket) {
+        synchronized (this) {
+            switch (ticket.state) {
+                case Ticket.STATE_WAITING:
+                    this.waiting.remove(ticket);
+                    break;
+                case Ticket.STATE_CONNECTING:
+                    this.connecting.remove(ticket);
+                    break;
+                case Ticket.STATE_OPEN:
+                    this.open.remove(ticket.deviceName);
+                    break;
+            }
+            ticket.state = Ticket.STATE_DONE;
+        }
+
+        this.dispatch();
+    }
+
+    /**
+     * Marks the session as used, which moves it to the back of the line for closing. Also a chance for waiting
+     * connects to get a slot, since the session may have just gone idle.
+     */
+    public void touch(String deviceName) {
+        synchronized (this) {
+            if (this.open.containsKey(deviceName)) this.open.put(deviceName, System.currentTimeMillis());
+        }
+
+        this.dispatch();
+    }
+
+    /**
+     * The link to the device is gone.
+     */
+    public void released(String deviceName) {
+        synchronized (this) {
+            if (this.open.remove(deviceName) == null) return;
+        }
+
+        this.dispatch();
+    }
+
+    public synchronized int getOpenCount() {
+        return this.open.size();
+    }
+
+    public synchronized int getWaitingCount() {
+        return this.waiting.size();
+    }
+
+    public synchronized int getConnectingCount() {
+        return this.connecting.size();
+    }
+
+    private void dispatch() {
+        while (true) {
+            Ticket next;
+            List<String> candidates;
+
+            synchronized (this) {
+                next = this.waiting.peek();
+                if (next == null || this.connecting.size() >= this.maxConcurrentConnects) return;
+
+                // A reconnect reuses the slot its device still holds
+                boolean hasSlot = this.open.containsKey(next.deviceName) || this.open.size() + this.connecting.size() < this.maxOpenConnections;
+                if (hasSlot) {
+                    this.waiting.poll();
+                    this.connecting.add(next);
+                    next.state = Ticket.STATE_CONNECTING;
+                    candidates = null;
+                } else {
+                    candidates = new ArrayList<String>(this.open.keySet());
+                }
+            }
+
+            if (candidates == null) {
+                next.start.accept(next);
+                continue;
+            }
+
+            String victim = null;
+            for (String deviceName : candidates) {
+                if (this.closer.isIdle(deviceName)) {
+                    victim = deviceName;
+                    break;
+                }
+            }
+            if (victim == null) return; // wait for a session to be released or go idle
+
+            synchronized (this) {
+                if (this.open.remove(victim) == null) continue; // released meanwhile - look again
+            }
+            this.closer.close(victim);
+        }
+    }
+
+    public static class Ticket implements Comparable<Ticket> {
+
+        private static final int STATE_WAITING = 0;
+        private static final int STATE_CONNECTING = 1;
+        private static final int STATE_OPEN = 2;
+        private static final int STATE_DONE = 3;
+
+        private final String deviceName;
+        private final Consumer<Ticket> start;
+        private final long order;
+        private final long sequence;
+        private int state = STATE_WAITING; // guarded by the scheduler
+
+        private Ticket(String deviceName, Consumer<Ticket> start, long order, long sequence) {
+            this.deviceName = deviceName;
+            this.start = start;
+            this.order = order;
+            this.sequence = sequence;
+        }
+
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            if (this.order != other.order) return this.order < other.order ? -1 : 1;
+            return Long.compare(this.sequence, other.sequence);
+        }
+
+    }
+
+}
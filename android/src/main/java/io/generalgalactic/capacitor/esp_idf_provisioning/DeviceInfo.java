@@ -0,0 +1,91 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What a device said about itself on the proto-ver endpoint, parsed once per session. The endpoint answers with JSON
+ * like {"prov": {"ver": "v1.1", "sec_ver": 2, "cap": ["wifi_scan"]}}, plus any keys the firmware adds for itself,
+ * which are left in getVersionInfo() for the app to read.
+ */
+public class DeviceInfo {
+
+    private final String versionInfo;
+    private final String version;
+    private final int securityVersion;
+    private final List<String> capabilities;
+
+    public DeviceInfo(String versionInfo, String version, int securityVersion, List<String> capabilities) {
+        this.versionInfo = versionInfo;
+        this.version = version;
+        this.securityVersion = securityVersion;
+        this.capabilities = Collections.unmodifiableList(new ArrayList<String>(capabilities));
+    }
+
+    /**
+     * Parses the proto-ver JSON. knownCapabilities are the ones the ESP library already parsed while connecting and
+     * are merged in. Anything that doesn't parse is left unset rather than failing, as old firmware answers the
+     * endpoint with a plain version string.
+     */
+    public static DeviceInfo parse(String versionInfo, List<String> knownCapabilities) {
+        String version = null;
+        int securityVersion = -1;
+        Set<String> capabilities = new LinkedHashSet<String>();
+        if (knownCapabilities != null) capabilities.addAll(knownCapabilities);
+
+        if (versionInfo != null) {
+            try {
+                JSONObject prov = new JSONObject(versionInfo).optJSONObject("prov");
+                if (prov != null) {
+                    version = prov.optString("ver", null);
+                    securityVersion = prov.optInt("sec_ver", -1);
+                    JSONArray cap = prov.optJSONArray("cap");
+                    for (int i = 0; cap != null && i < cap.length(); i++) {
+                        capabilities.add(cap.optString(i));
+                    }
+                }
+            } catch (JSONException e) {
+                version = versionInfo.trim();
+            }
+        }
+
+        return new DeviceInfo(versionInfo, version, securityVersion, new ArrayList<String>(capabilities));
+    }
+
+    /**
+     * The endpoint's answer as sent, or null if the device didn't give one.
+     */
+    public String getVersionInfo() {
+        return versionInfo;
+    }
+
+    /**
+     * The provisioning protocol version, e.g. "v1.1", or null if the device didn't say.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * The security scheme the device expects (0, 1 or 2), or -1 if it didn't say.
+     */
+    public int getSecurityVersion() {
+        return securityVersion;
+    }
+
+    public List<String> getCapabilities() {
+        return capabilities;
+    }
+
+    public boolean hasCapability(String capability) {
+        return this.capabilities.contains(capability);
+    }
+
+}
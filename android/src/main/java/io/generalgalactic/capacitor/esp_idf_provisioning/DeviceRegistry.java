@@ -0,0 +1,130 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The devices found by the last completed scan, keyed by name. Scan callbacks, the plugin thread and the callback
+ * executor all use it at once, so nothing here takes a lock:
+ *
+ * - each scan collects into its own concurrent map, so a rescan never touches what connect is reading
+ * - a finished scan publishes its devices as a new immutable generation with a single compare-and-set
+ * - reads go to whichever generation is published, and a snapshot stays valid however many scans come after it
+ *
+ * A scan that finishes after a newer one has already published is dropped rather than rolling the registry back.
+ */
+public class DeviceRegistry {
+
+    private final AtomicLong generationIds = new AtomicLong();
+    private final AtomicReference<Generation> published = new AtomicReference<Generation>(new Generation(0, Collections.<String, DiscoveredBluetoothDevice>emptyMap()));
+
+    public DiscoveredBluetoothDevice get(String deviceName) {
+        if (deviceName == null) return null;
+        return this.published.get().get(deviceName);
+    }
+
+    public Generation snapshot() {
+        return this.published.get();
+    }
+
+    public Scan beginScan() {
+        return new Scan(this.generationIds.incrementAndGet());
+    }
+
+    /**
+     * An immutable set of devices from one scan.
+     */
+    public static class Generation {
+
+        private final long id;
+        private final Map<String, DiscoveredBluetoothDevice> devices;
+
+        private Generation(long id, Map<String, DiscoveredBluetoothDevice> devices) {
+            this.id = id;
+            this.devices = devices;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public DiscoveredBluetoothDevice get(String deviceName) {
+            return this.devices.get(deviceName);
+        }
+
+        public Collection<DiscoveredBluetoothDevice> getDevices() {
+            return this.devices.values();
+        }
+
+    }
+
+    /**
+     * Devices found by a scan that's still running. Nothing is visible to get() until publish().
+     */
+    public class Scan {
+
+        private final long id;
+        private final ConcurrentHashMap<String, DiscoveredBluetoothDevice> found = new ConcurrentHashMap<String, DiscoveredBluetoothDevice>();
+
+        private Scan(long id) {
+            this.id = id;
+        }
+
+        /**
+         * Keeps the first sighting of each name. Returns false for a repeat or a device without a name.
+         */
+        public boolean add(DiscoveredBluetoothDevice device) {
+            if (device.getName() == null) return false;
+            return this.found.putIfAbsent(device.getName(), device) == null;
+        }
+
+        public boolean contains(String deviceName) {
+            return deviceName != null && this.found.containsKey(deviceName);
+        }
+
+        public DiscoveredBluetoothDevice get(String deviceName) {
+            if (deviceName == null) return null;
+            return this.found.get(deviceName);
+        }
+
+        /**
+         * What the scan has found so far.
+         */
+        public Collection<DiscoveredBluetoothDevice> getDevices() {
+            return new ArrayList<DiscoveredBluetoothDevice>(this.found.values());
+        }
+
+        /**
+         * Publishes what the scan found as the new generation and returns it. Devices named in retain are carried
+         * over from the previous generation - a connected device stops advertising, so a rescan won't see it even
+         * though it's still in use.
+         */
+        public List<DiscoveredBluetoothDevice> publish(Collection<String> retain) {
+            List<DiscoveredBluetoothDevice> devices = new ArrayList<DiscoveredBluetoothDevice>(this.found.values());
+
+            while (true) {
+                Generation current = published.get();
+                if (current.getId() > this.id) return devices; // a newer scan got there first
+
+                Map<String, DiscoveredBluetoothDevice> next = new HashMap<String, DiscoveredBluetoothDevice>(this.found);
+                for (String deviceName : retain) {
+                    DiscoveredBluetoothDevice device = current.get(deviceName);
+                    if (device != null && !next.containsKey(deviceName)) next.put(deviceName, device);
+                }
+
+                if (published.compareAndSet(current, new Generation(this.id, Collections.unmodifiableMap(next)))) {
+                    return devices;
+                }
+            }
+        }
+
+    }
+
+}
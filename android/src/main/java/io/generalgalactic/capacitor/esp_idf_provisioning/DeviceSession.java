@@ -0,0 +1,69 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import com.espressif.provisioning.ESPDevice;
+
+/**
+ * A connected device with an initialised session. The session keys live in the ESPDevice, so every operation on
+ * this session reuses them until the device disconnects.
+ */
+public class DeviceSession {
+
+    private DeviceSessionConfig config;
+    private ESPDevice espDevice;
+    private long connectTime;
+    private long handshakeTime;
+    private int requestedMtu;
+    private boolean highPriority;
+
+    public DeviceSession(DeviceSessionConfig config, ESPDevice espDevice, long connectTime, long handshakeTime, int requestedMtu, boolean highPriority) {
+        this.config = config;
+        this.espDevice = espDevice;
+        this.connectTime = connectTime;
+        this.handshakeTime = handshakeTime;
+        this.requestedMtu = requestedMtu;
+        this.highPriority = highPriority;
+    }
+
+    public String getDeviceName() {
+        return this.config.getDeviceName();
+    }
+
+    public DeviceSessionConfig getConfig() {
+        return config;
+    }
+
+    public ESPDevice getEspDevice() {
+        return espDevice;
+    }
+
+    /**
+     * Milliseconds from starting the connect until the transport reported connected.
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * Milliseconds spent in initSession - the Security 1 or Security 2 handshake.
+     */
+    public long getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    /**
+     * The MTU the link was asked to use, or 0 when none was requested or the request was refused. Android only hands
+     * the negotiated value to the GATT callback, which belongs to the ESP library, so the device may have settled on
+     * less.
+     */
+    public int getRequestedMtu() {
+        return requestedMtu;
+    }
+
+    /**
+     * True when the link was switched to CONNECTION_PRIORITY_HIGH. It drops back to balanced once provisioning ends.
+     */
+    public boolean isHighPriority() {
+        return highPriority;
+    }
+
+}
@@ -0,0 +1,87 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import com.espressif.provisioning.ESPConstants;
+
+/**
+ * Everything needed to re-establish a session with a device without asking the app for it again. Captured when a
+ * connect succeeds and kept until the app explicitly disconnects.
+ */
+public class DeviceSessionConfig {
+
+    private DiscoveredBluetoothDevice bleDevice;
+    private ESPConstants.TransportType transport;
+    private ESPConstants.SecurityType security;
+    private ConnectOptions options;
+
+    public DeviceSessionConfig(DiscoveredBluetoothDevice bleDevice, ESPConstants.TransportType transport, ESPConstants.SecurityType security, ConnectOptions options) {
+        this.bleDevice = bleDevice;
+        this.transport = transport;
+        this.security = security;
+        this.options = options;
+    }
+
+    public String getDeviceName() {
+        return this.bleDevice.getName();
+    }
+
+    public DiscoveredBluetoothDevice getBleDevice() {
+        return bleDevice;
+    }
+
+    public ESPConstants.TransportType getTransport() {
+        return transport;
+    }
+
+    public ESPConstants.SecurityType getSecurity() {
+        return security;
+    }
+
+    public ConnectOptions getOptions() {
+        return options;
+    }
+
+    public String getProofOfPossession() {
+        return this.options.getProofOfPossession();
+    }
+
+    public String getUsername() {
+        return this.options.getUsername();
+    }
+
+    public boolean isAutoReconnect() {
+        return this.options.isAutoReconnect();
+    }
+
+    public int getMaxReconnectAttempts() {
+        return this.options.getMaxReconnectAttempts();
+    }
+
+    public String getSoftApPassword() {
+        return this.options.getSoftApPassword();
+    }
+
+    public int getMtu() {
+        return this.options.getMtu();
+    }
+
+    public boolean isHighPriority() {
+        return this.options.isHighPriority();
+    }
+
+    public int getPriority() {
+        return this.options.getPriority();
+    }
+
+    public long getConnectTimeout() {
+        return this.options.getTimeout();
+    }
+
+    public boolean isPrefetchWifiList() {
+        return this.options.isPrefetchWifiList();
+    }
+
+    public boolean isPrefetchVersionInfo() {
+        return this.options.isPrefetchVersionInfo();
+    }
+
+}
@@ -0,0 +1,226 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out who a disconnect event is about. The ESP library posts EVENT_DEVICE_DISCONNECTED on one shared EventBus
+ * without saying which device it came from, and every link and every connect still waiting on the radio hears it.
+ * Each event is settled once, in this order, and everyone who asks about the same event gets the same answer:
+ *
+ * - a link whose connection is gone, as far as the Probe can tell, and that no earlier event was put down to
+ * - otherwise a disconnect the plugin made itself - closing an idle session to make room, say - if one was expected
+ * - otherwise the connects still waiting on the radio whose own connection isn't up
+ * - otherwise the links the Probe can't check (SoftAP) - the phone is on one access point at a time, so it's theirs
+ *
+ * Probes are made without holding the lock.
+ */
+class DisconnectAttribution<D> {
+
+    static final int STATE_CONNECTED = 0;
+    static final int STATE_DISCONNECTED = 1;
+    static final int STATE_UNKNOWN = 2;
+
+    interface Probe<D> {
+
+        /**
+         * STATE_CONNECTED, STATE_DISCONNECTED, or STATE_UNKNOWN when the connection can't be checked.
+         */
+        int state(String deviceName, D device);
+
+    }
+
+    private final Links<D> links;
+    private final Probe<D> probe;
+    private final long expectedWindowNanos;
+    private final ArrayDeque<Long> expected = new ArrayDeque<Long>();
+    private final Map<Object, Connect<D>> connects = new LinkedHashMap<Object, Connect<D>>();
+    // Events are held weakly, the entry goes once everyone subscribed has seen it
+    private final Map<Object, Verdict<D>> verdicts = new WeakHashMap<Object, Verdict<D>>();
+    // Each link that goes down sends one event, so it's only blamed for one
+    private final Set<D> blamed = Collections.newSetFromMap(new WeakHashMap<D, Boolean>());
+    // Devices whose link has come up, and so have a disconnect event to send
+    private final Set<D> up = Collections.newSetFromMap(new WeakHashMap<D, Boolean>());
+
+    /**
+     * An expected disconnect that hasn't turned up within expectedWindowMillis isn't waited for any longer.
+     */
+    DisconnectAttribution(Links<D> links, Probe<D> probe, long expectedWindowMillis) {
+        this.links = links;
+        this.probe = probe;
+        this.expectedWindowNanos = TimeUnit.MILLISECONDS.toNanos(expectedWindowMillis);
+    }
+
+    /**
+     * The plugin is about to disconnect a device itself, so one disconnect event is coming that's nobody's loss. None
+     * is coming if the connection can't be checked, never came up, or went down and its event was already put down
+     * to it - but one that went down and was let go before its event turned up still has it to come.
+     */
+    void expect(String deviceName, D device) {
+        int state = this.probe.state(deviceName, device);
+        if (state == STATE_UNKNOWN) return;
+
+        synchronized (this) {
+            if (state == STATE_DISCONNECTED && (!this.up.contains(device) || !this.blamed.add(device))) return;
+            this.expected.addLast(System.nanoTime());
+        }
+    }
+
+    /**
+     * A connect has gone out to the radio. Until settled(), a disconnect nobody else accounts for is put down to it.
+     */
+    synchronized void connecting(Object attempt, String deviceName, D device) {
+        this.connects.put(attempt, new Connect<D>(deviceName, device));
+    }
+
+    /**
+     * The connect's link came up, so it's one of the links now.
+     */
+    synchronized void linked(Object attempt) {
+        Connect<D> connect = this.connects.remove(attempt);
+        if (connect != null) this.up.add(connect.device);
+    }
+
+    /**
+     * The connect is over without its link coming up.
+     */
+    synchronized void settled(Object attempt) {
+        this.connects.remove(attempt);
+    }
+
+    /**
+     * Whether the connect's own connection is up, or can't be checked - a connected event is only the connect's if it
+     * is.
+     */
+    boolean isUp(Object attempt) {
+        Connect<D> connect;
+        synchronized (this) {
+            connect = this.connects.get(attempt);
+        }
+        if (connect == null) return false;
+        return this.probe.state(connect.deviceName, connect.device) != STATE_DISCONNECTED;
+    }
+
+    Verdict<D> attribute(Object event) {
+        synchronized (this) {
+            Verdict<D> verdict = this.verdicts.get(event);
+            if (verdict != null) return verdict;
+        }
+
+        Map<String, D> dropped = new LinkedHashMap<String, D>();
+        Map<String, D> unknown = new LinkedHashMap<String, D>();
+        for (Map.Entry<String, D> link : this.links.snapshot().entrySet()) {
+            int state = this.probe.state(link.getKey(), link.getValue());
+            if (state == STATE_DISCONNECTED) dropped.put(link.getKey(), link.getValue());
+            if (state == STATE_UNKNOWN) unknown.put(link.getKey(), link.getValue());
+        }
+
+        Map<Object, Connect<D>> connects;
+        synchronized (this) {
+            connects = new LinkedHashMap<Object, Connect<D>>(this.connects);
+        }
+        List<Object> failedConnects = new ArrayList<Object>();
+        for (Map.Entry<Object, Connect<D>> connect : connects.entrySet()) {
+            if (this.probe.state(connect.getValue().deviceName, connect.getValue().device) != STATE_CONNECTED) failedConnects.add(connect.getKey());
+        }
+
+        synchronized (this) {
+            // Someone else settled it while this was probing
+            Verdict<D> verdict = this.verdicts.get(event);
+            if (verdict != null) return verdict;
+
+            Map.Entry<String, D> droppedLink = this.takeDropped(dropped);
+            if (droppedLink != null) {
+                verdict = new Verdict<D>(Collections.singletonMap(droppedLink.getKey(), droppedLink.getValue()), Collections.emptyList());
+            } else if (this.takeExpected()) {
+                verdict = new Verdict<D>(Collections.<String, D>emptyMap(), Collections.emptyList());
+            } else if (!failedConnects.isEmpty()) {
+                verdict = new Verdict<D>(Collections.<String, D>emptyMap(), failedConnects);
+            } else {
+                verdict = new Verdict<D>(unknown, Collections.emptyList());
+            }
+
+            this.verdicts.put(event, verdict);
+            return verdict;
+        }
+    }
+
+    synchronized int getExpectedCount() {
+        this.expire();
+        return this.expected.size();
+    }
+
+    synchronized int getConnectingCount() {
+        return this.connects.size();
+    }
+
+    private Map.Entry<String, D> takeDropped(Map<String, D> dropped) {
+        for (Map.Entry<String, D> link : dropped.entrySet()) {
+            if (this.blamed.add(link.getValue())) return link;
+        }
+        return null;
+    }
+
+    private boolean takeExpected() {
+        this.expire();
+        return this.expected.pollFirst() != null;
+    }
+
+    private void expire() {
+        long expiredBefore = System.nanoTime() - this.expectedWindowNanos;
+        // One that never turns up - the link went down on its own just as it was let go, say - just runs out
+        while (!this.expected.isEmpty() && this.expected.peekFirst() < expiredBefore) {
+            this.expected.removeFirst();
+        }
+    }
+
+    /**
+     * Who one disconnect event was about.
+     */
+    static class Verdict<D> {
+
+        private final Map<String, D> droppedLinks;
+        private final List<Object> failedConnects;
+
+        private Verdict(Map<String, D> droppedLinks, List<Object> failedConnects) {
+            this.droppedLinks = Collections.unmodifiableMap(droppedLinks);
+            this.failedConnects = Collections.unmodifiableList(failedConnects);
+        }
+
+        /**
+         * The links that went down, by device name. The plugin may have let one go, or connected the device again,
+         * since - only the device given here went down.
+         */
+        Map<String, D> getDroppedLinks() {
+            return this.droppedLinks;
+        }
+
+        /**
+         * Whether the connect registered as attempt is one of the ones that failed.
+         */
+        boolean isFor(Object attempt) {
+            return this.failedConnects.contains(attempt);
+        }
+
+    }
+
+    private static class Connect<D> {
+
+        final String deviceName;
+        final D device;
+
+        Connect(String deviceName, D device) {
+            this.deviceName = deviceName;
+            this.device = device;
+        }
+
+    }
+
+}
@@ -3,11 +3,14 @@ package io.generalgalactic.capacitor.esp_idf_provisioning;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.ScanResult;
 
+import com.espressif.provisioning.WiFiAccessPoint;
+
 public class DiscoveredBluetoothDevice {
 
     private BluetoothDevice bluetoothDevice;
     private String serviceUUID;
     private Number rssi;
+    private String softApName;
 
     public DiscoveredBluetoothDevice(BluetoothDevice bluetoothDevice, ScanResult scanResult) {
         this.bluetoothDevice = bluetoothDevice;
@@ -18,10 +21,23 @@ public class DiscoveredBluetoothDevice {
         }
     }
 
+    /**
+     * A device advertising its SoftAP rather than over BLE. Its name is the access point's SSID.
+     */
+    public DiscoveredBluetoothDevice(WiFiAccessPoint accessPoint) {
+        this.softApName = accessPoint.getWifiName();
+        this.rssi = accessPoint.getRssi();
+    }
+
     public String getName() {
+        if (this.isSoftAp()) return this.softApName;
         return this.bluetoothDevice.getName();
     }
 
+    public boolean isSoftAp() {
+        return this.bluetoothDevice == null;
+    }
+
     public BluetoothDevice getBluetoothDevice() {
         return this.bluetoothDevice;
     }
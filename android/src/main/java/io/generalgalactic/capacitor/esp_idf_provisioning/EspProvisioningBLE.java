@@ -4,15 +4,24 @@ import android.Manifest;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
 import android.os.Build;
-import android.os.Handler;
 import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
@@ -27,48 +36,123 @@ import com.espressif.provisioning.listeners.BleScanListener;
 import com.espressif.provisioning.listeners.ProvisionListener;
 import com.espressif.provisioning.listeners.ResponseListener;
 import com.espressif.provisioning.listeners.WiFiScanListener;
+import com.espressif.provisioning.transport.Transport;
 import com.getcapacitor.Bridge;
 import com.getcapacitor.PermissionState;
 import com.getcapacitor.PluginMethod;
+import com.google.protobuf.ByteString;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
+import espressif.Constants;
+import espressif.WifiConfig;
+import espressif.WifiConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
 
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.ConnectListener;
+import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.DeviceInfoListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.DisconnectListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.EspProvisioningEventListener;
+import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.ExportHistoryListener;
+import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.QueryHistoryListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.ScanListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.ScanWiFiListener;
+import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.ScanWiFiManyListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.SendCustomDataStringListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.UsesBluetooth;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.UsesESPDevice;
+import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.WarmUpListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.WifiProvisionListener;
 
 public class EspProvisioningBLE {
 
     private ESPProvisionManager provisionManager;
-    private Map<String, DiscoveredBluetoothDevice> devices = new HashMap<String, DiscoveredBluetoothDevice>();
-    private Handler handler = new Handler();
+    private final DeviceRegistry devices = new DeviceRegistry();
+    private final ScanBroker scanBroker;
+    private final TimeoutScheduler timeoutScheduler;
+    // Every callback into the plugin runs here, so listener work and JSON building never lands on the main thread
+    private final ExecutorService callbackExecutor;
+    private final ExecutorService handshakeExecutor;
+    private final LifecycleResources resources = new LifecycleResources();
+    private final AtomicBoolean shutDown = new AtomicBoolean(false);
     private Bridge bridge;
-    private ESPConstants.TransportType transport;
-    private ESPConstants.SecurityType security;
+    private volatile ESPConstants.TransportType transport;
+    private volatile ESPConstants.SecurityType security;
     private boolean loggingEnabled = false;
     private EventCallback disconnectionHandler;
-    private String currentDeviceName;
+    // Each ESPDevice keeps its own transport and session keys, so holding on to them lets several devices stay
+    // connected even though ESPProvisionManager only remembers the last one it created
+    private final Links<ESPDevice> links;
+    private final DisconnectAttribution<ESPDevice> disconnects;
+    private final ConnectionScheduler connectionScheduler;
     private BroadcastReceiver broadcastReceiver;
-
-    private static final long DEVICE_CONNECT_TIMEOUT = 20000;
+    private EspProvisioningEventListener eventListener;
+    private Map<String, DeviceSessionConfig> sessionConfigs = new HashMap<String, DeviceSessionConfig>();
+    private Map<String, TimeoutScheduler.Timeout> pendingReconnects = new HashMap<String, TimeoutScheduler.Timeout>();
+    private final OperationTracker operations;
+    private TimeoutScheduler.Timeout pendingStateChange;
+    private Map<String, SoftApTransport> softApTransports = new HashMap<String, SoftApTransport>();
+    private Map<String, BluetoothGatt> highPriorityLinks = new HashMap<String, BluetoothGatt>();
+    private final PayloadCompressor payloadCompressor;
+    private Map<String, EndpointWatch> endpointWatches = new HashMap<String, EndpointWatch>();
+    private final ProvisioningHistory history;
+    private Map<String, SessionStats> sessionStats = new HashMap<String, SessionStats>();
+    private volatile TraceRecorder traceRecorder;
+    private final PhaseSlices phases = new PhaseSlices();
+    private volatile BluetoothManager bluetoothManager;
+    private volatile Boolean bleHardware;
+    private CompletableFuture<WarmUpMetrics> warmUp;
+    private PresenceMonitor presenceMonitor;
+    private Map<String, Prefetch> prefetches = new HashMap<String, Prefetch>();
+    private Map<String, CompletableFuture<DeviceInfo>> deviceInfos = new HashMap<String, CompletableFuture<DeviceInfo>>();
+
+    // Defaults for when the app doesn't pass its own timeout. A timeout of 0 or less waits forever.
+    public static final long DEVICE_CONNECT_TIMEOUT = 20000;
+    public static final long WIFI_SCAN_TIMEOUT = 30000;
+    public static final long PROVISION_TIMEOUT = 60000;
+    public static final long CUSTOM_DATA_TIMEOUT = 15000;
+    private static final long RECONNECT_BASE_DELAY = 500;
+    private static final long RECONNECT_MAX_DELAY = 8000;
+    // Toggling bluetooth fires TURNING_ON/ON (or TURNING_OFF/OFF) in quick succession - only the last one matters
+    private static final long BLUETOOTH_STATE_DEBOUNCE = 250;
+    public static final int DEFAULT_MAX_RECONNECT_ATTEMPTS = 5;
+    private static final long STATUS_POLL_BASE_DELAY = 250;
+    private static final long STATUS_POLL_MAX_DELAY = 4000;
+    private static final long TRACE_STOP_TIMEOUT = 2000;
+    private static final long CALLBACK_DRAIN_TIMEOUT = 500;
+    // Android throttles apps that start more than five scans in 30 seconds, so windows can't come any closer
+    public static final long PRESENCE_SCAN_PERIOD = 10000;
+    private static final long PRESENCE_SWEEP_INTERVAL = 1000;
+    // How long a disconnect the plugin asked for can take to come back as an event
+    private static final long EXPECTED_DISCONNECT_WINDOW = 2000;
 
     public EspProvisioningBLE(Bridge bridge, EspProvisioningEventListener eventListener){
         this.bridge = bridge;
+        this.eventListener = eventListener;
+        this.history = new ProvisioningHistory(new File(bridge.getContext().getFilesDir(), "esp-provisioning-history"));
+
+        Workers workers = new Workers(this.resources, this.history, CALLBACK_DRAIN_TIMEOUT);
+        this.callbackExecutor = workers.callbackExecutor;
+        this.handshakeExecutor = workers.handshakeExecutor;
+        this.timeoutScheduler = workers.timeoutScheduler;
+        this.payloadCompressor = workers.payloadCompressor;
 
         EspProvisioningBLE self = this;
 
@@ -80,37 +164,195 @@ public class EspProvisioningBLE {
                 if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
                     final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
                     debugLog(String.format("Bluetooth state change: %d", state));
-                    eventListener.bluetoothStateChange(state);
+                    self.debounceBluetoothStateChange(state);
                 }
             }
         };
 
-        IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
-        bridge.getActivity().registerReceiver(broadcastReceiver, filter);
+        // Registered by start(), against the activity this instance was made for - the bridge may have moved on to
+        // a new one by the time it's unregistered
+        Context receiverContext = bridge.getActivity();
+        this.resources.add("bluetoothStateReceiver", new LifecycleResources.Registration() {
+            @Override
+            public void register() {
+                receiverContext.registerReceiver(broadcastReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
+            }
+
+            @Override
+            public void unregister() {
+                receiverContext.unregisterReceiver(broadcastReceiver);
+            }
+        });
 
         // This listens for random device disconnections and will end up sending an out-of-band event to the capacitor plugin
         this.disconnectionHandler = new EventCallback(){
-            @Subscribe(threadMode = ThreadMode.MAIN)
+            @Subscribe(threadMode = ThreadMode.POSTING)
             public void onEvent(DeviceConnectionEvent event) {
+                self.trace(SessionTrace.CONNECTION_EVENT, null, Integer.toString(event.getEventType()), null);
+                callbackExecutor.execute(() -> this.handle(event));
+            }
+
+            private void handle(DeviceConnectionEvent event) {
                 if(event.getEventType() == ESPConstants.EVENT_DEVICE_DISCONNECTED ){
-                    debugLog("Device disconnected unexpectedly");
+                    // The event doesn't say which device it was about
+                    for (Map.Entry<String, ESPDevice> link : self.disconnects.attribute(event).getDroppedLinks().entrySet()) {
+                        if (self.links.get(link.getKey()) != link.getValue()) continue; // already let go
+                        debugLog(String.format("Device %s disconnected unexpectedly", link.getKey()));
+                        self.linkDropped(link.getKey());
+                    }
+                }
+            }
+        };
+
+        // Only subscribed while a link is up
+        this.links = new Links<ESPDevice>(new LifecycleResources.Registration() {
+            @Override
+            public void register() {
+                if (!EventBus.getDefault().isRegistered(self.disconnectionHandler)) EventBus.getDefault().register(self.disconnectionHandler);
+            }
 
-                    String deviceName = self.currentDeviceName;
+            @Override
+            public void unregister() {
+                if (EventBus.getDefault().isRegistered(self.disconnectionHandler)) EventBus.getDefault().unregister(self.disconnectionHandler);
+            }
+        });
+        this.disconnects = new DisconnectAttribution<ESPDevice>(this.links, this::linkState, EXPECTED_DISCONNECT_WINDOW);
 
-                    // Call disconnect just to clean up all the state
-                    self.disconnect(deviceName, null);
+        this.scanBroker = new ScanBroker(this.devices, this::connectedDeviceNames, new ScanBroker.Scanner() {
+            @Override
+            public void start(ScanBroker.PhysicalScan scan) {
+                self.startScan(scan);
+            }
 
-                    // Now notify up 1 level so a capacitor event can be sent
-                    eventListener.deviceDisconnectedUnexpectedly(deviceName);
-                }
+            @Override
+            public void stop(ScanBroker.PhysicalScan scan) {
+                // A WiFi scan can't be stopped, its results are just ignored
+                if (scan.getTransport() == ESPConstants.TransportType.TRANSPORT_BLE) self.getESPProvisionManager().stopBleScan();
             }
-        };
+        });
+
+        this.connectionScheduler = new ConnectionScheduler(new ConnectionScheduler.SessionCloser() {
+            @Override
+            public boolean isIdle(String deviceName) {
+                return self.isIdle(deviceName);
+            }
+
+            @Override
+            public void close(String deviceName) {
+                debugLog(String.format("Closing idle session with %s to make room for another connection", deviceName));
+                self.disconnect(deviceName, null);
+                eventListener.idleSessionClosed(deviceName);
+            }
+        });
+        this.operations = new OperationTracker(this.phases, this.timeoutScheduler, this.callbackExecutor, this.connectionScheduler::touch);
+
+        // Closed first, before the workers: no state change or disconnect is acted on once teardown starts
+        this.resources.addCloseable(() -> {
+            synchronized (this) {
+                if (this.pendingStateChange != null) this.pendingStateChange.cancel();
+            }
+            if (EventBus.getDefault().isRegistered(this.disconnectionHandler)) EventBus.getDefault().unregister(this.disconnectionHandler);
+        });
     }
 
-    public void setTransport(ESPConstants.TransportType transport) {
-        if(transport == ESPConstants.TransportType.TRANSPORT_SOFTAP){
-            throw new Error("softap transport is not supported");
+    /**
+     * Registers for bluetooth state changes. Called when the plugin loads and again on every resume - it's a no-op
+     * while already registered.
+     */
+    public void start() {
+        this.resources.start();
+    }
+
+    /**
+     * Tears everything down for good when the activity goes: operations still running are cancelled, every session
+     * is closed, and receivers, subscribers, threads and native state are released. The instance can't be used
+     * afterwards.
+     *
+     * Called on the main thread, so only the quick part happens here. Stopping the trace and draining the callback
+     * thread can each take a while and are left to a background thread.
+     */
+    public void shutdown() {
+        if (!this.shutDown.compareAndSet(false, true)) return;
+        debugLog("Shutting down");
+
+        List<String> deviceNames = this.links.getDeviceNames();
+        synchronized (this) {
+            for (String deviceName : this.sessionConfigs.keySet()) if (!deviceNames.contains(deviceName)) deviceNames.add(deviceName);
+            for (String deviceName : this.pendingReconnects.keySet()) if (!deviceNames.contains(deviceName)) deviceNames.add(deviceName);
+        }
+
+        // Cancelling rather than aborting, so a connect still waiting on the radio lets go of its subscriber and GATT
+        this.operations.cancelAll();
+        for (String deviceName : deviceNames) this.disconnect(deviceName, null);
+
+        this.stopPresenceMonitor();
+        this.resources.stop();
+
+        Thread teardown = Workers.namedThreadFactory("esp-provisioning-shutdown").newThread(() -> {
+            this.stopTrace();
+            this.resources.close();
+        });
+        teardown.start();
+    }
+
+    private void linkDropped(String deviceName) {
+        DeviceSessionConfig config = this.getSessionConfig(deviceName);
+        if (config != null && config.isAutoReconnect()) {
+            // Keep the session config around and try to get the link back before telling anyone
+            ESPDevice staleDevice = this.links.remove(deviceName);
+            this.operations.suspend(deviceName);
+
+            if (staleDevice != null) this.disconnectDevice(deviceName, staleDevice);
+
+            this.scheduleReconnect(config, 1);
+            return;
+        }
+
+        // Call disconnect just to clean up all the state
+        this.disconnect(deviceName, null);
+
+        // Now notify up 1 level so a capacitor event can be sent
+        this.eventListener.deviceDisconnectedUnexpectedly(deviceName);
+    }
+
+    /**
+     * Where a device's connection stands, for working out who a disconnect event was about. BLE connections are
+     * checked against the GATT connection state. SoftAP ones can't be checked.
+     */
+    @SuppressLint("MissingPermission")
+    private int linkState(String deviceName, ESPDevice espDevice) {
+        DiscoveredBluetoothDevice device = this.devices.get(deviceName);
+        if (device == null) return DisconnectAttribution.STATE_CONNECTED; // nothing to check it against, so it isn't blamed
+        if (device.isSoftAp()) return DisconnectAttribution.STATE_UNKNOWN;
+
+        BluetoothManager manager = this.getBluetoothManager();
+        if (manager != null && manager.getConnectionState(device.getBluetoothDevice(), BluetoothProfile.GATT) == BluetoothProfile.STATE_CONNECTED) {
+            return DisconnectAttribution.STATE_CONNECTED;
         }
+        return DisconnectAttribution.STATE_DISCONNECTED;
+    }
+
+    /**
+     * Disconnects a device the plugin is done with. Goes through here rather than straight to the ESPDevice so the
+     * disconnect event it causes isn't blamed on a SoftAP link.
+     */
+    private void disconnectDevice(String deviceName, ESPDevice espDevice) {
+        this.disconnects.expect(deviceName, espDevice);
+        espDevice.disconnectDevice();
+    }
+
+    private synchronized void debounceBluetoothStateChange(int state) {
+        if (this.pendingStateChange != null) this.pendingStateChange.cancel();
+
+        this.pendingStateChange = this.timeoutScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callbackExecutor.execute(() -> eventListener.bluetoothStateChange(state));
+            }
+        }, BLUETOOTH_STATE_DEBOUNCE);
+    }
+
+    public void setTransport(ESPConstants.TransportType transport) {
         this.transport = transport;
     }
 
@@ -122,6 +364,18 @@ public class EspProvisioningBLE {
         this.loggingEnabled = loggingEnabled;
     }
 
+    /**
+     * Writes each phase of a session to the system trace as an async slice keyed by device name, for Perfetto or
+     * systrace. Off by default.
+     */
+    public void setSystemTracingEnabled(boolean enabled) {
+        this.phases.setTracer(enabled ? new SystemPhaseTracer() : PhaseTracer.NONE);
+    }
+
+    public PhaseTracer getPhaseTracer() {
+        return this.phases.getTracer();
+    }
+
     private synchronized ESPProvisionManager getESPProvisionManager() {
         if (this.provisionManager == null) {
             this.provisionManager = ESPProvisionManager.getInstance(this.bridge.getContext());
@@ -129,14 +383,98 @@ public class EspProvisioningBLE {
         return this.provisionManager;
     }
 
+    /**
+     * Builds the provision manager, looks up the bluetooth adapter and checks capabilities and permissions on a
+     * background thread, so the first scan after launch doesn't pay for them. Runs once - later calls get the same
+     * metrics.
+     */
+    public void warmUp(WarmUpListener listener) {
+        CompletableFuture<WarmUpMetrics> warmUp;
+        synchronized (this) {
+            if (this.warmUp == null) {
+                this.warmUp = new CompletableFuture<WarmUpMetrics>();
+                Thread thread = Workers.namedThreadFactory("esp-provisioning-warmup").newThread(this::runWarmUp);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.start();
+            }
+            warmUp = this.warmUp;
+        }
+
+        warmUp.whenCompleteAsync((metrics, error) -> {
+            if (error != null) {
+                listener.warmUpFailed(error instanceof Exception ? (Exception) error : new Exception(error));
+            } else {
+                listener.warmedUp(metrics);
+            }
+        }, this.callbackExecutor);
+    }
+
+    private void runWarmUp() {
+        CompletableFuture<WarmUpMetrics> warmUp;
+        synchronized (this) {
+            warmUp = this.warmUp;
+        }
+
+        try {
+            long startedAt = System.nanoTime();
+
+            this.getESPProvisionManager();
+            long provisionManagerDone = System.nanoTime();
+
+            BluetoothManager manager = this.getBluetoothManager();
+            if (manager != null) manager.getAdapter();
+            long adapterDone = System.nanoTime();
+
+            boolean bleSupported = this.hasBLEHardware();
+            boolean bleEnabled = this.bleIsEnabled();
+            long capabilitiesDone = System.nanoTime();
+
+            boolean permissionsGranted = bleSupported && this.blePermissionsGranted();
+            long permissionsDone = System.nanoTime();
+
+            WarmUpMetrics metrics = new WarmUpMetrics(
+                    (provisionManagerDone - startedAt) / 1000000,
+                    (adapterDone - provisionManagerDone) / 1000000,
+                    (capabilitiesDone - adapterDone) / 1000000,
+                    (permissionsDone - capabilitiesDone) / 1000000,
+                    (permissionsDone - startedAt) / 1000000,
+                    bleSupported, bleEnabled, permissionsGranted);
+
+            debugLog(String.format("Warmed up in %dms: provisionManager=%dms; adapter=%dms; capabilities=%dms; permissions=%dms;", metrics.getTotalTime(), metrics.getProvisionManagerTime(), metrics.getAdapterTime(), metrics.getCapabilitiesTime(), metrics.getPermissionsTime()));
+            warmUp.complete(metrics);
+        } catch (Exception e) {
+            errorLog("Warm-up failed", e);
+            warmUp.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Cached - the system service lookup goes through a binder call the first time.
+     */
+    private BluetoothManager getBluetoothManager() {
+        BluetoothManager manager = this.bluetoothManager;
+        if (manager == null) {
+            manager = (BluetoothManager) this.bridge.getContext().getSystemService(Context.BLUETOOTH_SERVICE);
+            this.bluetoothManager = manager;
+        }
+        return manager;
+    }
+
     public boolean hasBLEHardware(){
-        return this.bridge.getContext().getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
+        // Hardware doesn't come and go, so it's only asked once
+        Boolean bleHardware = this.bleHardware;
+        if (bleHardware == null) {
+            bleHardware = this.bridge.getContext().getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
+            this.bleHardware = bleHardware;
+        }
+        return bleHardware;
     }
 
     public boolean bleIsEnabled(){
         if(!this.hasBLEHardware()) return false;
 
-        BluetoothManager manager = (BluetoothManager) this.bridge.getActivity().getSystemService(Context.BLUETOOTH_SERVICE);
+        BluetoothManager manager = this.getBluetoothManager();
+        if (manager == null) return false;
         BluetoothAdapter adapter = manager.getAdapter();
 
         if (adapter == null) return false; // Unable to access? Does this really happen?
@@ -162,6 +500,15 @@ public class EspProvisioningBLE {
         return true;
     }
 
+    /**
+     * Devices found over SoftAP are reached through WiFi, so bluetooth doesn't need to be available for them.
+     */
+    public boolean assertTransport(String deviceName, UsesBluetooth listener) {
+        DiscoveredBluetoothDevice device = this.findDevice(deviceName);
+        if (device != null && device.isSoftAp()) return true;
+        return this.assertBluetooth(listener);
+    }
+
     private boolean blePermissionsGranted(){
         if (Build.VERSION.SDK_INT >= 31) {
             if (ActivityCompat.checkSelfPermission(this.bridge.getContext(), Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
@@ -187,8 +534,16 @@ public class EspProvisioningBLE {
 
     @SuppressLint("MissingPermission")
     @PluginMethod
-    public void searchESPDevices(String devicePrefix, ESPConstants.TransportType transport, ESPConstants.SecurityType security, ScanListener listener) {
-        if (!this.assertBluetooth(null)) return;
+    public void searchESPDevices(String operationId, String devicePrefix, ESPConstants.TransportType transport, ESPConstants.SecurityType security, ScanListener listener) {
+        this.searchESPDevices(operationId, devicePrefix, transport, security, false, listener);
+    }
+
+    /**
+     * Scans through the ScanBroker, so overlapping searches share one radio scan. With partial set, a search that
+     * can join a scan already running answers straight away with what it has found so far.
+     */
+    public void searchESPDevices(String operationId, String devicePrefix, ESPConstants.TransportType transport, ESPConstants.SecurityType security, boolean partial, ScanListener listener) {
+        if (transport == ESPConstants.TransportType.TRANSPORT_BLE && !this.assertBluetooth(null)) return;
 
         // if (ActivityCompat.checkSelfPermission(this.bridge.getContext(), Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
         //     Error permissionError = new Error("Not able to start scan as Location permission is not granted.");
@@ -197,9 +552,6 @@ public class EspProvisioningBLE {
         //     return;
         // }
 
-        // Clear the device cache
-        this.devices = new HashMap<String, DiscoveredBluetoothDevice>();
-
         // This sucks, but the ESProvisioning library on iOS takes security and transport for the scan and
         // the Android version takes them for the connect. We're going to store it here from the scan and
         // use it during connect to make the plugin interface consistent. Other option is to take both values
@@ -207,7 +559,73 @@ public class EspProvisioningBLE {
         this.setSecurity(security);
         this.setTransport(transport);
 
-        debugLog(String.format("searchESPDevices: devicePrefix=%s; transport=%s; security=%s;", devicePrefix, transport, security));
+        debugLog(String.format("searchESPDevices: devicePrefix=%s; transport=%s; security=%s; partial=%s;", devicePrefix, transport, security, partial));
+
+        new ScanCall(operationId, devicePrefix, transport, partial, listener).start();
+    }
+
+    /**
+     * One searchESPDevices call, waiting on the ScanBroker for the devices that match its prefix.
+     */
+    private class ScanCall implements ScanBroker.Caller {
+
+        private final String devicePrefix;
+        private final ScanListener listener;
+        private final InFlightOperation operation;
+        private final ScanBroker.Request request;
+
+        ScanCall(String operationId, String devicePrefix, ESPConstants.TransportType transport, boolean partial, ScanListener listener) {
+            this.devicePrefix = devicePrefix;
+            this.listener = listener;
+            this.operation = operations.begin(operationId, null, PhaseSlices.SCAN, null, listener::errorOccurred, this::cancel);
+            this.request = new ScanBroker.Request(transport, devicePrefix, partial, this);
+        }
+
+        void start() {
+            scanBroker.submit(this.request);
+        }
+
+        @Override
+        public void scanCompleted(List<DiscoveredBluetoothDevice> devices) {
+            callbackExecutor.execute(() -> {
+                if (!operations.finish(this.operation)) return;
+                this.listener.foundDevices(devices);
+            });
+        }
+
+        @Override
+        public void scanFailed(Exception e) {
+            callbackExecutor.execute(() -> {
+                if (!operations.finish(this.operation)) return;
+                if (e instanceof BlePermissionsException) {
+                    this.listener.blePermissionsIssue();
+                } else {
+                    this.listener.errorOccurred(new Error(e.getMessage()));
+                }
+            });
+        }
+
+        private void cancel() {
+            debugLog(String.format("Cancelling scan for %s", this.devicePrefix));
+            // The radio scan only stops once nobody else is waiting on it
+            scanBroker.leave(this.request);
+            this.listener.operationCancelled(this.operation.getOperationId());
+        }
+
+    }
+
+    /**
+     * Runs a physical scan for the ScanBroker. Found devices are collected into the scan as they turn up, and its
+     * callers are answered once it completes.
+     */
+    @SuppressLint("MissingPermission")
+    private void startScan(ScanBroker.PhysicalScan scan) {
+        debugLog(String.format("Starting %s scan for %s", scan.getTransport(), scan.getDevicePrefix()));
+
+        if (scan.getTransport() == ESPConstants.TransportType.TRANSPORT_SOFTAP) {
+            this.searchSoftApDevices(scan);
+            return;
+        }
 
         EspProvisioningBLE self = this;
 
@@ -215,304 +633,2032 @@ public class EspProvisioningBLE {
 
             @Override
             public void scanStartFailed() {
-                listener.errorOccurred(new Error("Couldn't start scan"));
+                scan.fail(new Exception("Couldn't start scan"));
             }
 
             @Override
             public void onPeripheralFound(BluetoothDevice device, ScanResult scanResult) {
-                if(!self.devices.containsKey(device.getName())) {
-                    self.devices.put(device.getName(), new DiscoveredBluetoothDevice(device, scanResult));
+                if(!scan.contains(device.getName()) && scan.add(new DiscoveredBluetoothDevice(device, scanResult))) {
+                    self.trace(SessionTrace.SCAN_RESULT, device.getName(), device.getAddress() + " " + scanResult.getRssi(), null);
                 }
             }
 
             @Override
             public void scanCompleted() {
-                List<DiscoveredBluetoothDevice> devices = new ArrayList<DiscoveredBluetoothDevice>();
-                for (Map.Entry<String,DiscoveredBluetoothDevice> entry : self.devices.entrySet()) {
-                    DiscoveredBluetoothDevice device = entry.getValue();
-                    devices.add(device);
-                }
-                listener.foundDevices(devices);
+                scan.complete();
             }
 
             @Override
             public void onFailure(Exception e) {
                 String message = e.getMessage();
-                if (message.indexOf("errorCode=2") > -1) {
+                if (message != null && message.indexOf("errorCode=2") > -1) {
                     // statusCode=2 means that the nearby devices permission is not allowed in the device app settings
                     // For some reason this can be true and all the permissions checks coded here are valid
                     // Deciding to map this error here so the UI can at least response with a useful message
-                    listener.blePermissionsIssue();
+                    scan.fail(new BlePermissionsException());
                 }else {
                     Error bleScanFailedError = new Error("BLE Scan failed: " + e.getMessage());
                     errorLog(bleScanFailedError);
-                    listener.errorOccurred(bleScanFailedError);
+                    scan.fail(new Exception(bleScanFailedError.getMessage()));
                 }
             }
         };
 
-        this.getESPProvisionManager().searchBleEspDevices(devicePrefix, bleScanListener);
+        this.getESPProvisionManager().searchBleEspDevices(scan.getDevicePrefix(), bleScanListener);
     }
 
     @SuppressLint("MissingPermission")
+    private void searchSoftApDevices(ScanBroker.PhysicalScan scan) {
+        EspProvisioningBLE self = this;
+
+        this.getESPProvisionManager().searchWiFiEspDevices(scan.getDevicePrefix(), new WiFiScanListener() {
+
+            @Override
+            public void onWifiListReceived(ArrayList<WiFiAccessPoint> wifiList) {
+                for (WiFiAccessPoint accessPoint : wifiList) {
+                    if (scan.add(new DiscoveredBluetoothDevice(accessPoint))) {
+                        self.trace(SessionTrace.SCAN_RESULT, accessPoint.getWifiName(), "softap " + accessPoint.getRssi(), null);
+                    }
+                }
+                scan.complete();
+            }
+
+            @Override
+            public void onWiFiScanFailed(Exception e) {
+                Error wifiScanFailedError = new Error("WiFi Scan failed: " + e.getMessage());
+                errorLog(wifiScanFailedError);
+                scan.fail(new Exception(wifiScanFailedError.getMessage()));
+            }
+
+        });
+    }
+
+    /**
+     * A device from the last published scan, or one the running scan has found so far.
+     */
+    private DiscoveredBluetoothDevice findDevice(String deviceName) {
+        DiscoveredBluetoothDevice device = this.devices.get(deviceName);
+        return device != null ? device : this.scanBroker.find(deviceName);
+    }
+
     public void connect(String deviceName, String proofOfPossession, ConnectListener listener){
-        if (!this.assertBluetooth(null)) return;
+        this.connect(null, deviceName, new ConnectOptions(proofOfPossession), listener);
+    }
+
+    public void connect(String operationId, String deviceName, ConnectOptions options, ConnectListener connectListener){
+        if (!this.assertTransport(deviceName, null)) return;
 
-        DiscoveredBluetoothDevice bleDevice = this.devices.get(deviceName);
+        ConnectListener listener = this.recordingConnect(deviceName, connectListener);
+
+        DiscoveredBluetoothDevice bleDevice = this.findDevice(deviceName);
         if(bleDevice == null) {
             listener.deviceNotFound(deviceName);
             return;
         }
 
-        long connectTimeout = this.DEVICE_CONNECT_TIMEOUT;
+        if (this.security == ESPConstants.SecurityType.SECURITY_2 && options.getUsername() == null) {
+            listener.initSessionFailed(new Exception("A username is required for secure2"));
+            return;
+        }
+
+        this.connect(operationId, new DeviceSessionConfig(bleDevice, this.transport, this.security, options), listener);
+    }
+
+    private void connect(String operationId, DeviceSessionConfig config, ConnectListener listener){
+        new ConnectionAttempt(operationId, config, listener).start();
+    }
+
+    /**
+     * Records connects the app asked for in the history - reconnects are counted as retries of the session instead.
+     */
+    private ConnectListener recordingConnect(String deviceName, ConnectListener listener) {
+        EspProvisioningBLE self = this;
+        long startedAt = System.nanoTime();
 
-        Runnable connectionTimeoutTask = new Runnable() {
+        return new ConnectListener() {
 
             @Override
-            public void run() {
-                debugLog("Capacitor ESP connect timeout");
-                errorLog(new Error(String.format("Timed out after %s seconds while trying to connect to device: %s", connectTimeout, deviceName)));
+            public void connected(DeviceSession session) {
+                self.sessionStarted(session);
+                listener.connected(session);
+            }
+
+            @Override
+            public void connectionTimedOut() {
+                this.failed(HistoryEntry.OUTCOME_TIMEOUT, HistoryEntry.PHASE_CONNECT, "Timed out");
                 listener.connectionTimedOut();
-                // EventBus.getDefault().unregister(connectionHandler); // TODO: how to fix this reference issue?
             }
 
-        };
+            @Override
+            public void connectionFailed() {
+                this.failed(HistoryEntry.OUTCOME_FAILED, HistoryEntry.PHASE_CONNECT, "Connection failed");
+                listener.connectionFailed();
+            }
 
-        EspProvisioningBLE provisioningBLE = this;
+            @Override
+            public void initSessionFailed(Exception e) {
+                this.failed(HistoryEntry.OUTCOME_FAILED, HistoryEntry.PHASE_SESSION, e.getMessage());
+                listener.initSessionFailed(e);
+            }
+
+            @Override
+            public void deviceNotFound(String deviceName) {
+                this.failed(HistoryEntry.OUTCOME_FAILED, HistoryEntry.PHASE_CONNECT, "Device not found");
+                listener.deviceNotFound(deviceName);
+            }
 
-        EventCallback connectionHandler = new EventCallback(){
+            @Override
+            public void operationCancelled(String operationId) {
+                this.failed(HistoryEntry.OUTCOME_CANCELLED, HistoryEntry.PHASE_CONNECT, null);
+                listener.operationCancelled(operationId);
+            }
 
-            @Subscribe(threadMode = ThreadMode.MAIN)
-            public void onEvent(DeviceConnectionEvent event) {
-                debugLog(String.format("ESP Connection handler callback: %s",event.getEventType()));
+            private void failed(String outcome, String phase, String message) {
+                long elapsed = (System.nanoTime() - startedAt) / 1000000;
+                self.recordHistory(deviceName, outcome, phase, elapsed, -1, -1, -1, null, message);
+            }
 
-                handler.removeCallbacks(connectionTimeoutTask); // Cancels connection timeout task
-                EventBus.getDefault().unregister(this);
+        };
+    }
 
-                switch (event.getEventType()) {
+    /**
+     * One connect + initSession. Keeps the connection handler, the deadline and the device together so that a
+     * timeout or a cancel can tear all of them down. The deadline covers initSession too.
+     */
+    private class ConnectionAttempt extends EventCallback {
+
+        private final DeviceSessionConfig config;
+        private final ConnectListener listener;
+        private final InFlightOperation operation;
+        private ESPDevice espDevice;
+        private long startedAt;
+        private int requestedMtu = 0;
+        private boolean highPriority = false;
+        private volatile ConnectionScheduler.Ticket ticket;
+
+        ConnectionAttempt(String operationId, DeviceSessionConfig config, ConnectListener listener) {
+            this.config = config;
+            this.listener = listener;
+            this.operation = operations.begin(operationId, config.getDeviceName(), PhaseSlices.CONNECT, null, this::aborted, this::cancel);
+        }
 
-                    case ESPConstants.EVENT_DEVICE_CONNECTED:
-                        debugLog("Device connected event received");
-                        provisioningBLE.startListeningForDisconnection(bleDevice.getName());
+        /**
+         * Waits for a connection slot, then connects. The deadline starts now, so time spent queued counts.
+         */
+        void start() {
+            operations.startDeadline(this.operation, this.config.getConnectTimeout(), this::timedOut);
+            phases.begin(this.config.getDeviceName(), PhaseSlices.CONNECT_QUEUED);
+            connectionScheduler.request(this.config.getDeviceName(), this.config.getPriority(), this::connect);
+        }
 
-                        ESPDevice device = provisionManager.getEspDevice();
-                        device.setProofOfPossession(proofOfPossession);
+        @SuppressLint("MissingPermission")
+        private void connect(ConnectionScheduler.Ticket ticket) {
+            this.ticket = ticket;
+            phases.end(this.config.getDeviceName(), PhaseSlices.CONNECT_QUEUED);
 
-                        // Initing a session during connection so that secret failures happen
-                        // during connection (like iOS) and not later during other operations.
-                        // This also let's me send a more specific error - rather than a generic code=4
-                        device.initSession(new ResponseListener() {
+            // Timed out or cancelled while it was queued
+            if (!operations.isInFlight(this.operation)) {
+                connectionScheduler.cancel(ticket);
+                return;
+            }
 
-                            @Override
-                            public void onSuccess(byte[] returnData) {
-                                listener.connected(device);
-                            }
+            DiscoveredBluetoothDevice bleDevice = this.config.getBleDevice();
+
+            this.startedAt = System.nanoTime();
+            this.espDevice = getESPProvisionManager().createESPDevice(this.config.getTransport(), this.config.getSecurity());
+            disconnects.connecting(this, this.config.getDeviceName(), this.espDevice);
+            EventBus.getDefault().register(this);
+            debugLog(String.format("Connecting:. %s, %s, %s", this.espDevice.getDeviceName(), bleDevice.getName(), bleDevice.getServiceUUID()));
+
+            if (bleDevice.isSoftAp()) {
+                // Named after the access point, the same as a BLE device is named after its advertised name
+                this.espDevice.setDeviceName(bleDevice.getName());
+                if (this.config.getSoftApPassword() != null) {
+                    this.espDevice.connectWiFiDevice(bleDevice.getName(), this.config.getSoftApPassword());
+                } else {
+                    this.espDevice.connectWiFiDevice(); // The phone is expected to have joined the access point already
+                }
+            } else {
+                this.espDevice.connectBLEDevice(bleDevice.getBluetoothDevice(), bleDevice.getServiceUUID());
+            }
+        }
 
-                            @Override
-                            public void onFailure(Exception e) {
-                                listener.initSessionFailed(e);
-                            }
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onEvent(DeviceConnectionEvent event) {
+            // Every link hears every disconnect - evicting an idle session to make room for this connect sends one - and a
+            // connect given up on can still come up after this one started
+            if (event.getEventType() == ESPConstants.EVENT_DEVICE_CONNECTED && !disconnects.isUp(this)) return;
+            if (event.getEventType() == ESPConstants.EVENT_DEVICE_DISCONNECTED && !disconnects.attribute(event).isFor(this)) return;
+
+            // Unregister right away so a second event can't sneak in before the callback thread gets to it
+            EventBus.getDefault().unregister(this);
+            trace(SessionTrace.CONNECTION_EVENT, this.config.getDeviceName(), Integer.toString(event.getEventType()), null);
+            callbackExecutor.execute(() -> this.handle(event));
+        }
 
-                        });
-                        break;
+        private void handle(DeviceConnectionEvent event) {
+            debugLog(String.format("ESP Connection handler callback: %s",event.getEventType()));
+
+            switch (event.getEventType()) {
+
+                case ESPConstants.EVENT_DEVICE_CONNECTED:
+                    if (this.operation.isSuperseded()) return;
+
+                    debugLog("Device connected event received");
+                    ESPDevice device = this.espDevice;
+                    links.add(this.config.getDeviceName(), device);
+                    disconnects.linked(this);
+                    if (this.ticket != null) connectionScheduler.connected(this.ticket);
+
+                    if (this.config.getBleDevice().isSoftAp()) useSoftApTransport(this.config.getDeviceName(), this.config.getBleDevice().getName(), device);
+                    device.setProofOfPossession(this.config.getProofOfPossession());
+                    if (this.config.getSecurity() == ESPConstants.SecurityType.SECURITY_2) {
+                        device.setUserName(this.config.getUsername());
+                    }
+                    if (!this.config.getBleDevice().isSoftAp()) this.tuneLink(device);
+
+                    long connectedAt = System.nanoTime();
+                    long connectTime = (connectedAt - this.startedAt) / 1000000;
+
+                    // Initing a session during connection so that secret failures happen
+                    // during connection (like iOS) and not later during other operations.
+                    // This also let's me send a more specific error - rather than a generic code=4
+                    // The handshake gets its own thread - Security 2's SRP6a math is slow on low end handsets and
+                    // would hold up every other callback.
+                    // No need to wait for the MTU exchange - the GATT client queues the handshake's first write behind it.
+                    handshakeExecutor.execute(() -> this.initSession(device, connectTime, System.nanoTime()));
+                    break;
+
+                case ESPConstants.EVENT_DEVICE_DISCONNECTED:
+                    disconnects.settled(this);
+                    if (!operations.finish(this.operation)) return;
+                    debugLog("Device disconnected event received");
+                    this.release();
+                    this.listener.connectionFailed();
+                    break;
+
+                case ESPConstants.EVENT_DEVICE_CONNECTION_FAILED:
+                    disconnects.settled(this);
+                    if (!operations.finish(this.operation)) return;
+                    debugLog("Device connection failed event received");
+                    // The event doesn't say which connect failed - it may have been one given up on earlier, so this
+                    // one's GATT connect is called off too
+                    this.release();
+                    this.listener.connectionFailed();
+                    break;
+            }
+        }
 
-                    case ESPConstants.EVENT_DEVICE_DISCONNECTED:
-                        debugLog("Device disconnected event received");
-                        listener.connectionFailed();
-                        break;
+        /**
+         * Asks for a bigger MTU and a shorter connection interval, so large custom data payloads need fewer and
+         * quicker GATT writes. Both are only requests - the device or the phone can still refuse them.
+         */
+        private void tuneLink(ESPDevice device) {
+            if (this.config.getMtu() <= 0 && !this.config.isHighPriority()) return;
+
+            BluetoothGatt gatt = findGatt(device);
+            if (gatt == null) {
+                debugLog("No BluetoothGatt found on ESPDevice, leaving the link as it is");
+                return;
+            }
 
-                    case ESPConstants.EVENT_DEVICE_CONNECTION_FAILED:
-                        debugLog("Device connection failed event received");
-                        listener.connectionFailed();
-                        break;
+            if (this.config.isHighPriority() && gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH)) {
+                this.highPriority = true;
+                synchronized (EspProvisioningBLE.this) {
+                    highPriorityLinks.put(this.config.getDeviceName(), gatt);
                 }
             }
-        };
 
-        EventBus.getDefault().register(connectionHandler);
+            if (this.config.getMtu() > 0 && gatt.requestMtu(this.config.getMtu())) {
+                this.requestedMtu = this.config.getMtu();
+            }
 
-        ESPDevice espDevice = this.getESPProvisionManager().createESPDevice(transport, security);
-        debugLog(String.format("Connecting:. %s, %s, %s", espDevice.getDeviceName(), bleDevice.getName(), bleDevice.getServiceUUID()));
+            debugLog(String.format("Tuned link to %s: requestedMtu=%d; highPriority=%s;", this.config.getDeviceName(), this.requestedMtu, this.highPriority));
+        }
 
-        espDevice.connectBLEDevice(bleDevice.getBluetoothDevice(), bleDevice.getServiceUUID());
+        private void initSession(ESPDevice device, long connectTime, long connectedAt) {
+            phases.begin(config.getDeviceName(), PhaseSlices.CONNECT_INIT_SESSION);
+
+            device.initSession(new ResponseListener() {
+
+                @Override
+                public void onSuccess(byte[] returnData) {
+                    long handshakeTime = (System.nanoTime() - connectedAt) / 1000000;
+                    phases.end(config.getDeviceName(), PhaseSlices.CONNECT_INIT_SESSION);
+                    callbackExecutor.execute(() -> {
+                        if (!operations.finish(operation)) return;
+                        debugLog(String.format("Session with %s established: security=%s; connectTime=%dms; handshakeTime=%dms;", config.getDeviceName(), config.getSecurity(), connectTime, handshakeTime));
+                        putSessionConfig(config);
+                        startPrefetch(config, device);
+                        startDeviceInfo(config.getDeviceName(), device);
+                        listener.connected(new DeviceSession(config, device, connectTime, handshakeTime, requestedMtu, highPriority));
+                    });
+                }
 
-        this.handler.postDelayed(connectionTimeoutTask, this.DEVICE_CONNECT_TIMEOUT );
-    }
+                @Override
+                public void onFailure(Exception e) {
+                    callbackExecutor.execute(() -> {
+                        if (!operations.finish(operation)) return;
+                        listener.initSessionFailed(e);
+                    });
+                }
 
-    private void startListeningForDisconnection(String deviceName){
-        this.currentDeviceName = deviceName;
-        EventBus.getDefault().register(this.disconnectionHandler);
-    }
+            });
+        }
 
-    private void stopListeningForDisconnection(){
-        this.currentDeviceName = null;
-        EventBus.getDefault().unregister(this.disconnectionHandler);
-    }
+        private void timedOut() {
+            debugLog("Capacitor ESP connect timeout");
+            errorLog(new Error(String.format("Timed out after %dms while trying to connect to device: %s", this.config.getConnectTimeout(), this.config.getDeviceName())));
 
-    private ESPDevice getESPDevice(String deviceName){
-        DiscoveredBluetoothDevice bleDevice = this.devices.get(deviceName);
-        if(bleDevice == null) return null;
+            this.release();
+            this.listener.connectionTimedOut();
+        }
 
-        ESPDevice espDevice = this.getESPProvisionManager().getEspDevice();
-        if(espDevice == null) return null;
+        /**
+         * The device was disconnected while this attempt was still running - a reconnect the app has since called off,
+         * say. The attempt's subscriber and GATT connect have to go the same way as on a timeout.
+         */
+        private void aborted(Error error) {
+            debugLog(String.format("Connect to %s aborted: %s", this.config.getDeviceName(), error.getMessage()));
 
-        if( !Objects.equals(espDevice.getDeviceName(), bleDevice.getName()) ){
-            debugLog(String.format("Device mismatch. %s != %s", espDevice.getDeviceName(), bleDevice.getName()));
-            return null;
+            this.release();
+            this.listener.connectionFailed();
         }
 
-        return espDevice;
-    }
+        private void cancel() {
+            debugLog(String.format("Cancelling connect to %s", this.config.getDeviceName()));
 
-    private ESPDevice getESPDevice(String deviceName, UsesESPDevice listener){
-        ESPDevice device = this.getESPDevice(deviceName);
+            this.release();
+            this.listener.operationCancelled(this.operation.getOperationId());
+        }
 
-        if (device == null && listener != null) {
-            listener.deviceNotFound(deviceName);
+        /**
+         * Stops waiting on the connection and gives the radio back - a GATT connect left pending would otherwise
+         * keep trying in the background.
+         */
+        private void release() {
+            if (EventBus.getDefault().isRegistered(this)) EventBus.getDefault().unregister(this);
+            disconnects.settled(this);
+
+            if (this.espDevice != null) {
+                links.remove(this.config.getDeviceName(), this.espDevice);
+                disconnectDevice(this.config.getDeviceName(), this.espDevice);
+            }
+            if (this.ticket != null) connectionScheduler.cancel(this.ticket);
+            closeSoftApTransport(this.config.getDeviceName());
+            forgetHighPriorityLink(this.config.getDeviceName());
         }
 
-        return device;
     }
 
-    public void scanWifiList(String deviceName, ScanWiFiListener listener) {
-        if (!this.assertBluetooth(null)) return;
-
-        ESPDevice espDevice = this.getESPDevice(deviceName, listener);
-        if(espDevice == null) return;
+    /**
+     * Swaps the library's SoftAP transport for one that keeps a single HTTP connection open. protocomm ties the
+     * security session to the connection, and reconnecting for every request costs a TCP handshake each time. The
+     * library has no setter for it, so it's done by reflection - if that fails the library's own transport is used.
+     */
+    private void useSoftApTransport(String deviceName, String ssid, ESPDevice device) {
+        this.closeSoftApTransport(deviceName);
+
+        // On Android 10 and up sockets go over the validated default network - mobile data, while the access point
+        // has no internet - unless they're made on the access point's network
+        Network network = this.findWifiNetwork(ssid);
+        SoftApTransport transport;
+        if (network != null) {
+            transport = new SoftApTransport(SoftApTransport.DEFAULT_HOST, SoftApTransport.DEFAULT_PORT, network.getSocketFactory());
+        } else {
+            debugLog(String.format("No Wi-Fi network found for %s, the SoftAP transport uses the default network", ssid));
+            transport = new SoftApTransport();
+        }
 
-        espDevice.scanNetworks(new WiFiScanListener() {
+        for (Class<?> type = device.getClass(); type != null; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (field.getType() != Transport.class) continue;
+                try {
+                    field.setAccessible(true);
+                    field.set(device, transport);
+                } catch (Exception e) {
+                    errorLog("Couldn't replace the SoftAP transport, using the library's", e);
+                    transport.close();
+                    return;
+                }
 
-            @Override
-            public void onWifiListReceived(ArrayList<WiFiAccessPoint> wifiList) {
-                listener.foundWiFiNetworks(wifiList);
+                synchronized (this) {
+                    this.softApTransports.put(deviceName, transport);
+                }
+                debugLog(String.format("Using keep-alive SoftAP transport for %s", deviceName));
+                return;
             }
+        }
 
-            @Override
-            public void onWiFiScanFailed(Exception e) {
-                errorLog(e);
-                listener.wiFiScanFailed(e);
-            }
+        debugLog("No transport field found on ESPDevice, using the library's SoftAP transport");
+        transport.close();
+    }
 
-        });
+    /**
+     * The Wi-Fi network the phone joined for the access point. If its SSID can't be read - it's hidden without the
+     * location permission - the only Wi-Fi network will do, the phone is on one access point at a time.
+     */
+    @SuppressLint("MissingPermission")
+    private Network findWifiNetwork(String ssid) {
+        ConnectivityManager manager = (ConnectivityManager) this.bridge.getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (manager == null) return null;
+
+        List<Network> unnamed = new ArrayList<Network>();
+        for (Network network : manager.getAllNetworks()) {
+            NetworkCapabilities capabilities = manager.getNetworkCapabilities(network);
+            if (capabilities == null || !capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) continue;
+
+            String networkSsid = this.wifiSsid(capabilities);
+            if (networkSsid != null && networkSsid.equals(ssid)) return network;
+            if (networkSsid == null) unnamed.add(network);
+        }
+        return unnamed.size() == 1 ? unnamed.get(0) : null;
     }
 
-    public void provision(String deviceName, String ssid, String passPhrase, WifiProvisionListener listener) {
-        if (!this.assertBluetooth(null)) return;
+    /**
+     * Null when it can't be read.
+     */
+    @SuppressLint("MissingPermission")
+    private String wifiSsid(NetworkCapabilities capabilities) {
+        WifiInfo info = null;
+        if (Build.VERSION.SDK_INT >= 31) {
+            if (capabilities.getTransportInfo() instanceof WifiInfo) info = (WifiInfo) capabilities.getTransportInfo();
+        } else {
+            WifiManager manager = (WifiManager) this.bridge.getContext().getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+            if (manager != null) info = manager.getConnectionInfo();
+        }
+        if (info == null || info.getSSID() == null || WifiManager.UNKNOWN_SSID.equals(info.getSSID())) return null;
 
-        ESPDevice espDevice = this.getESPDevice(deviceName, listener);
-        if (espDevice == null) return;
+        String ssid = info.getSSID();
+        if (ssid.length() >= 2 && ssid.startsWith("\"") && ssid.endsWith("\"")) ssid = ssid.substring(1, ssid.length() - 1);
+        return ssid;
+    }
 
-        espDevice.provision(ssid, passPhrase, new ProvisionListener() {
+    private void closeSoftApTransport(String deviceName) {
+        SoftApTransport transport;
+        synchronized (this) {
+            transport = this.softApTransports.remove(deviceName);
+        }
+        if (transport != null) transport.close();
+    }
 
-            @Override
-            public void createSessionFailed(Exception e) {
-                Error createSessionError = new Error("Couldn't create a secure session", e);
-                errorLog(createSessionError);
-                listener.provisioningFailed(createSessionError);
-            }
+    /**
+     * The library keeps the GATT connection inside its BLE transport with no getter, so it has to be dug out.
+     */
+    private BluetoothGatt findGatt(ESPDevice device) {
+        Object transport = readField(device, Transport.class);
+        if (transport == null) return null;
+        return (BluetoothGatt) readField(transport, BluetoothGatt.class);
+    }
 
-            @Override
-            public void wifiConfigSent() {
-                debugLog("WiFi config sent");
+    private Object readField(Object target, Class<?> fieldType) {
+        for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (!fieldType.isAssignableFrom(field.getType())) continue;
+                try {
+                    field.setAccessible(true);
+                    return field.get(target);
+                } catch (Exception e) {
+                    errorLog("Couldn't read " + field.getName(), e);
+                    return null;
+                }
             }
+        }
+        return null;
+    }
 
-            @Override
-            public void wifiConfigFailed(Exception e) {
-                Error wifiConfigFailedError = new Error("Failed to send WiFi config", e);
-                errorLog(wifiConfigFailedError);
-                listener.provisioningFailed(wifiConfigFailedError);
-            }
+    /**
+     * Puts a link that was switched to high priority back on balanced, so it stops draining both batteries once
+     * the heavy lifting is over.
+     */
+    private void relaxConnectionPriority(String deviceName) {
+        BluetoothGatt gatt;
+        synchronized (this) {
+            gatt = this.highPriorityLinks.remove(deviceName);
+        }
+        if (gatt == null) return;
 
-            @Override
-            public void wifiConfigApplied() {
-                debugLog("WiFi config applied");
-            }
+        debugLog(String.format("Returning %s to balanced connection priority", deviceName));
+        gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+    }
 
-            @Override
-            public void wifiConfigApplyFailed(Exception e) {
-                Error wifiConfigApplyError = new Error("Failed to apply WiFi config", e);
-                errorLog(wifiConfigApplyError);
-                listener.provisioningFailed(wifiConfigApplyError);
-            }
+    /**
+     * What the history needs to know about a session besides how it ended. Guarded by EspProvisioningBLE.this.
+     */
+    private static class SessionStats {
 
-            @Override
-            public void provisioningFailedFromDevice(final ESPConstants.ProvisionFailureReason failureReason) {
-                switch (failureReason) {
-                    case AUTH_FAILED:
-                        Error authFailedError = new Error("WiFi credential error. Please check your SSID and password and try again");
-                        errorLog(authFailedError);
-                        listener.provisioningFailed(authFailedError);
-                        break;
-                    case DEVICE_DISCONNECTED:
-                        Error deviceDisconnectedError = new Error("Device Disconnected unexpectedly");
-                        errorLog(deviceDisconnectedError);
-                        listener.provisioningFailed(deviceDisconnectedError);
-                        break;
-                    case NETWORK_NOT_FOUND:
-                        Error networkNotFoundError = new Error(String.format("WiFi network not found", ssid));
-                        errorLog(networkNotFoundError);
-                        listener.provisioningFailed(networkNotFoundError);
-                        break;
-                    case UNKNOWN:
-                    default:
-                        Error unknownError = new Error("Unknown Error");
-                        errorLog(unknownError);
-                        listener.provisioningFailed(unknownError);
-                }
-            }
+        private final long connectTime;
+        private final long handshakeTime;
+        private int reconnects = 0;
+        private int provisionAttempts = 0;
 
-            @Override
-            public void deviceProvisioningSuccess() {
-                listener.provisioningSuccess();
-            }
+        SessionStats(long connectTime, long handshakeTime) {
+            this.connectTime = connectTime;
+            this.handshakeTime = handshakeTime;
+        }
 
-            @Override
-            public void onProvisioningFailed(Exception e) {
-                errorLog("Error provisioning device: " + e.getMessage(), e);
-                listener.provisioningFailed(new Error("Provisioning Failed: " + e.getMessage()));
-            }
+        int getRetries() {
+            return this.reconnects + Math.max(0, this.provisionAttempts - 1);
+        }
 
-        });
     }
 
-    public void sendCustomDataString(String deviceName, String path, String dataString, SendCustomDataStringListener listener) {
+    private synchronized void sessionStarted(DeviceSession session) {
+        this.sessionStats.put(session.getDeviceName(), new SessionStats(session.getConnectTime(), session.getHandshakeTime()));
+    }
+
+    private synchronized void sessionReconnected(String deviceName, int attempts) {
+        SessionStats stats = this.sessionStats.get(deviceName);
+        if (stats != null) stats.reconnects += attempts;
+    }
+
+    private synchronized void provisionStarted(String deviceName) {
+        SessionStats stats = this.sessionStats.get(deviceName);
+        if (stats != null) stats.provisionAttempts++;
+    }
+
+    private void recordHistory(String deviceName, String outcome, String phase, long connectTime, long handshakeTime, long provisionTime, long timeToConnected, String failureReason, String message) {
+        int retries;
+        synchronized (this) {
+            SessionStats stats = this.sessionStats.get(deviceName);
+            retries = stats == null ? 0 : stats.getRetries();
+        }
+
+        DiscoveredBluetoothDevice device = this.devices.get(deviceName);
+        String address = device == null || device.isSoftAp() ? null : device.getBluetoothDevice().getAddress();
+
+        this.history.append(new HistoryEntry(System.currentTimeMillis(), deviceName, address, outcome, phase, connectTime, handshakeTime, provisionTime, timeToConnected, retries, failureReason, message));
+    }
+
+    /**
+     * Starts recording a SessionTrace of scans, connection events, endpoint traffic and provisioning callbacks into
+     * the app's cache directory. Returns the trace file. A trace already being recorded is stopped first.
+     */
+    public File startTrace() throws IOException {
+        File file = new File(this.bridge.getContext().getCacheDir(), String.format("esp-provisioning-trace-%d.bin", System.currentTimeMillis()));
+        TraceRecorder recorder = new TraceRecorder(file);
+
+        TraceRecorder previous;
+        synchronized (this) {
+            previous = this.traceRecorder;
+            this.traceRecorder = recorder;
+        }
+        if (previous != null) previous.stop(TRACE_STOP_TIMEOUT);
+
+        debugLog(String.format("Recording session trace to %s", file));
+        return file;
+    }
+
+    /**
+     * Stops recording and returns the recorder, with the trace fully written, or null if nothing was being recorded.
+     */
+    public TraceRecorder stopTrace() {
+        TraceRecorder recorder;
+        synchronized (this) {
+            recorder = this.traceRecorder;
+            this.traceRecorder = null;
+        }
+        if (recorder != null) recorder.stop(TRACE_STOP_TIMEOUT);
+        return recorder;
+    }
+
+    private void trace(int type, String deviceName, String detail, byte[] data) {
+        TraceRecorder recorder = this.traceRecorder;
+        if (recorder != null) recorder.record(type, deviceName, detail, data);
+    }
+
+    /**
+     * Records an endpoint request and whatever comes back for it, when a trace is being recorded.
+     */
+    private ResponseListener tracing(String deviceName, String path, byte[] data, ResponseListener listener) {
+        if (this.traceRecorder == null) return listener;
+
+        EspProvisioningBLE self = this;
+        this.trace(SessionTrace.CUSTOM_REQUEST, deviceName, path, data);
+
+        return new ResponseListener() {
+
+            @Override
+            public void onSuccess(byte[] returnData) {
+                self.trace(SessionTrace.CUSTOM_RESPONSE, deviceName, path, returnData);
+                listener.onSuccess(returnData);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                self.trace(SessionTrace.CUSTOM_FAILURE, deviceName, path, String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                listener.onFailure(e);
+            }
+
+        };
+    }
+
+    /**
+     * Entries recorded at or after since, most recent limit of them, optionally only those with the given outcome.
+     */
+    public void queryHistory(long since, int limit, String outcome, QueryHistoryListener listener) {
+        this.history.query(since, limit, outcome, new ProvisioningHistory.QueryCallback() {
+
+            @Override
+            public void entriesFound(List<HistoryEntry> entries) {
+                callbackExecutor.execute(() -> listener.historyFound(entries));
+            }
+
+            @Override
+            public void queryFailed(Exception e) {
+                callbackExecutor.execute(() -> {
+                    errorLog("Couldn't read the provisioning history", e);
+                    listener.historyFailed(e);
+                });
+            }
+
+        });
+    }
+
+    /**
+     * Writes the whole history to a file in the app's cache directory.
+     */
+    public void exportHistory(ExportHistoryListener listener) {
+        File destination = new File(this.bridge.getContext().getCacheDir(), String.format("esp-provisioning-history-%d.log", System.currentTimeMillis()));
+
+        this.history.export(destination, new ProvisioningHistory.ExportCallback() {
+
+            @Override
+            public void historyExported(File file, int count) {
+                callbackExecutor.execute(() -> listener.historyExported(file, count));
+            }
+
+            @Override
+            public void exportFailed(Exception e) {
+                callbackExecutor.execute(() -> {
+                    errorLog("Couldn't export the provisioning history", e);
+                    listener.historyFailed(e);
+                });
+            }
+
+        });
+    }
+
+    private synchronized void forgetHighPriorityLink(String deviceName) {
+        this.highPriorityLinks.remove(deviceName);
+    }
+
+    private synchronized List<String> connectedDeviceNames() {
+        List<String> deviceNames = new ArrayList<String>(this.sessionConfigs.keySet());
+        deviceNames.addAll(this.links.getDeviceNames());
+        return deviceNames;
+    }
+
+    private synchronized DeviceSessionConfig getSessionConfig(String deviceName) {
+        if (deviceName == null) return null;
+        return this.sessionConfigs.get(deviceName);
+    }
+
+    private synchronized void putSessionConfig(DeviceSessionConfig config) {
+        this.sessionConfigs.put(config.getDeviceName(), config);
+    }
+
+    private void scheduleReconnect(DeviceSessionConfig config, int attempt) {
+        String deviceName = config.getDeviceName();
+        long delay = Math.min(RECONNECT_BASE_DELAY << Math.min(attempt - 1, 16), RECONNECT_MAX_DELAY);
+
+        debugLog(String.format("Reconnecting to %s in %dms (attempt %d of %d)", deviceName, delay, attempt, config.getMaxReconnectAttempts()));
+        this.eventListener.deviceReconnecting(deviceName, attempt, delay);
+
+        synchronized (this) {
+            TimeoutScheduler.Timeout reconnectTask = this.timeoutScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callbackExecutor.execute(() -> attemptReconnect(config, attempt));
+                }
+            }, delay);
+            // A link that drops during a reconnect attempt schedules a new one as the attempt fails - keep only one
+            TimeoutScheduler.Timeout previous = this.pendingReconnects.put(deviceName, reconnectTask);
+            if (previous != null) previous.cancel();
+        }
+    }
+
+    private void attemptReconnect(DeviceSessionConfig config, int attempt) {
+        String deviceName = config.getDeviceName();
+
+        synchronized (this) {
+            // The app disconnected explicitly while we were waiting
+            if (this.pendingReconnects.remove(deviceName) == null) return;
+        }
+
+        if (!this.assertTransport(deviceName, null)) {
+            this.reconnectFailed(config, attempt);
+            return;
+        }
+
+        EspProvisioningBLE self = this;
+
+        this.connect(null, config, new ConnectListener() {
+
+            @Override
+            public void connected(DeviceSession session) {
+                debugLog(String.format("Reconnected to %s after %d attempt(s)", deviceName, attempt));
+                self.sessionReconnected(deviceName, attempt);
+                self.eventListener.deviceReconnected(deviceName, attempt);
+                int resumed = self.operations.resume(deviceName);
+                if (resumed > 0) debugLog(String.format("Replayed %d in-flight operation(s) on %s", resumed, deviceName));
+            }
+
+            @Override
+            public void connectionTimedOut() {
+                self.reconnectFailed(config, attempt);
+            }
+
+            @Override
+            public void connectionFailed() {
+                self.reconnectFailed(config, attempt);
+            }
+
+            @Override
+            public void initSessionFailed(Exception e) {
+                errorLog("Failed to re-initialise session during reconnect", e);
+                self.reconnectFailed(config, attempt);
+            }
+
+            @Override
+            public void deviceNotFound(String deviceName) {
+                self.reconnectFailed(config, attempt);
+            }
+
+            @Override
+            public void operationCancelled(String operationId) {
+                // Reconnect attempts have no operationId so they can't be cancelled
+            }
+
+        });
+    }
+
+    private void reconnectFailed(DeviceSessionConfig config, int attempt) {
+        String deviceName = config.getDeviceName();
+
+        // The app disconnected while the attempt was running - it already knows, and everything is cleaned up
+        if (this.getSessionConfig(deviceName) == null) return;
+
+        if (attempt < config.getMaxReconnectAttempts()) {
+            this.scheduleReconnect(config, attempt + 1);
+            return;
+        }
+
+        errorLog(new Error(String.format("Giving up reconnecting to %s after %d attempt(s)", deviceName, attempt)));
+
+        // Same as the non-reconnecting path: clean up all the state and let the app know
+        this.disconnect(deviceName, null);
+        this.eventListener.deviceDisconnectedUnexpectedly(deviceName);
+    }
+
+    /**
+     * Runs start once the background operations in flight on the device have answered - protocomm only takes one
+     * request at a time, so an app call sent on top of one would fail. Straight away if there are none, otherwise on
+     * the callback thread, and only if the operation is still in flight by then.
+     */
+    private void afterBackgroundWork(String deviceName, InFlightOperation operation, Runnable start) {
+        int pending = this.operations.afterBackgroundWork(deviceName, operation, start);
+        if (pending > 0) debugLog(String.format("Waiting for %d background operation(s) on %s", pending, deviceName));
+    }
+
+    /**
+     * Cancels every in-flight operation started with the given operationId. Each one releases what it holds and
+     * calls back operationCancelled(). Returns false if nothing was running under that id.
+     */
+    public boolean cancel(String operationId) {
+        return this.operations.cancel(operationId);
+    }
+
+    private boolean isIdle(String deviceName) {
+        if (this.operations.hasInFlight(deviceName)) return false;
+
+        synchronized (this) {
+            if (this.pendingReconnects.containsKey(deviceName)) return false;
+            for (EndpointWatch watch : this.endpointWatches.values()) {
+                if (watch.deviceName.equals(deviceName)) return false;
+            }
+        }
+        return true;
+    }
+
+    private ESPDevice getESPDevice(String deviceName){
+        return this.links.get(deviceName);
+    }
+
+    private ESPDevice getESPDevice(String deviceName, UsesESPDevice listener){
+        ESPDevice device = this.getESPDevice(deviceName);
+
+        if (device == null && listener != null) {
+            listener.deviceNotFound(deviceName);
+        }
+
+        return device;
+    }
+
+    /**
+     * Picks up the list from a prefetch when the connect asked for one, waiting for it if the device is still
+     * scanning. A prefetch is only used once, and one that failed is followed by a scan of its own.
+     */
+    public void scanWifiList(String operationId, String deviceName, long timeout, ScanWiFiListener listener) {
+        if (!this.assertTransport(deviceName, null)) return;
+
         ESPDevice espDevice = this.getESPDevice(deviceName, listener);
         if(espDevice == null) return;
 
-        byte[] bytes = dataString.getBytes(StandardCharsets.UTF_8);
+        EspProvisioningBLE self = this;
+        CompletableFuture<ArrayList<WiFiAccessPoint>> prefetched = this.takePrefetchedWifiList(deviceName);
 
-        espDevice.sendDataToCustomEndPoint(path, bytes, new ResponseListener(){
+        // Asking for the WiFi list again is harmless, so this one can be replayed after a reconnect
+        InFlightOperation operation = this.operations.begin(operationId, deviceName, PhaseSlices.SCAN_NETWORKS, new Runnable() {
+            @Override
+            public void run() {
+                self.scanWifiList(operationId, deviceName, timeout, listener);
+            }
+        }, error -> listener.wiFiScanFailed(new Exception(error.getMessage(), error)), () -> listener.operationCancelled(operationId));
+
+        if (prefetched != null) {
+            debugLog(String.format("Using the prefetched WiFi list from %s", deviceName));
+            prefetched.whenCompleteAsync((wifiList, error) -> {
+                if (error != null) {
+                    if (operation.isSuperseded()) return;
+                    debugLog(String.format("Prefetched WiFi scan on %s failed, scanning again: %s", deviceName, error.getMessage()));
+                    self.scanNetworks(espDevice, operation, listener);
+                    return;
+                }
+                if (!self.operations.finish(operation)) return;
+                listener.foundWiFiNetworks(wifiList);
+            }, callbackExecutor);
+        } else {
+            this.scanNetworks(espDevice, operation, listener);
+        }
+
+        this.operations.startDeadline(operation, timeout, () -> listener.operationTimedOut(timeout));
+    }
+
+    private void scanNetworks(ESPDevice espDevice, InFlightOperation operation, ScanWiFiListener listener) {
+        this.afterBackgroundWork(operation.getDeviceName(), operation, () -> this.sendScanNetworks(espDevice, operation, listener));
+    }
+
+    private void sendScanNetworks(ESPDevice espDevice, InFlightOperation operation, ScanWiFiListener listener) {
+        EspProvisioningBLE self = this;
+
+        espDevice.scanNetworks(new WiFiScanListener() {
+
+            @Override
+            public void onWifiListReceived(ArrayList<WiFiAccessPoint> wifiList) {
+                callbackExecutor.execute(() -> {
+                    if (!self.operations.finish(operation)) return;
+                    listener.foundWiFiNetworks(wifiList);
+                });
+            }
+
+            @Override
+            public void onWiFiScanFailed(Exception e) {
+                callbackExecutor.execute(() -> {
+                    if (!self.operations.finish(operation)) return;
+                    errorLog(e);
+                    listener.wiFiScanFailed(e);
+                });
+            }
+
+        });
+    }
+
+    /**
+     * Scans for WiFi networks from every named device at once. Each device's list goes to deviceScanned as soon as
+     * it arrives, and surveyCompleted gets them merged once every device has answered or failed. Each scan is an
+     * ordinary scanWifiList under the same operationId, so a prefetched list is used and cancel() stops them all.
+     */
+    public void scanWifiListMany(String operationId, List<String> deviceNames, long timeout, ScanWiFiManyListener listener) {
+        WifiSurvey survey = new WifiSurvey(deviceNames);
+        if (survey.getDeviceNames().isEmpty()) {
+            callbackExecutor.execute(() -> listener.surveyCompleted(survey));
+            return;
+        }
+
+        SurveyCall surveyCall = new SurveyCall(operationId, survey, listener);
+        for (String deviceName : survey.getDeviceNames()) {
+            // scanWifiList returns without answering when the transport is gone, which would leave the survey waiting
+            if (!this.assertTransport(deviceName, null)) {
+                surveyCall.failed(deviceName, "Bluetooth is not available");
+                continue;
+            }
+            this.scanWifiList(operationId, deviceName, timeout, surveyCall.forDevice(deviceName));
+        }
+    }
+
+    /**
+     * Collects the answers to a scanWifiListMany and reports the outcome once the last device has answered.
+     */
+    private class SurveyCall {
+
+        private final String operationId;
+        private final WifiSurvey survey;
+        private final ScanWiFiManyListener listener;
+        private int remaining;
+        private boolean cancelled;
+
+        SurveyCall(String operationId, WifiSurvey survey, ScanWiFiManyListener listener) {
+            this.operationId = operationId;
+            this.survey = survey;
+            this.listener = listener;
+            this.remaining = survey.getDeviceNames().size();
+        }
+
+        ScanWiFiListener forDevice(String deviceName) {
+            SurveyCall surveyCall = this;
+
+            return new ScanWiFiListener() {
+
+                @Override
+                public void foundWiFiNetworks(List<WiFiAccessPoint> networks) {
+                    surveyCall.survey.add(deviceName, networks);
+                    surveyCall.listener.deviceScanned(deviceName, networks);
+                    surveyCall.answered(false);
+                }
+
+                @Override
+                public void deviceNotFound(String deviceName) {
+                    surveyCall.failed(deviceName, "Device not found");
+                }
+
+                @Override
+                public void wiFiScanFailed(Exception error) {
+                    surveyCall.failed(deviceName, "WiFi scan failed: " + error.getMessage());
+                }
+
+                @Override
+                public void operationTimedOut(long timeout) {
+                    surveyCall.failed(deviceName, String.format("WiFi scan timed out after %dms", timeout));
+                }
+
+                @Override
+                public void operationCancelled(String operationId) {
+                    surveyCall.answered(true);
+                }
+
+            };
+        }
+
+        private void failed(String deviceName, String reason) {
+            this.survey.failed(deviceName, reason);
+            this.listener.deviceScanFailed(deviceName, reason);
+            this.answered(false);
+        }
+
+        private void answered(boolean cancelled) {
+            synchronized (this) {
+                this.cancelled |= cancelled;
+                if (--this.remaining > 0) return;
+            }
+
+            if (this.cancelled) {
+                this.listener.operationCancelled(this.operationId);
+            } else {
+                this.listener.surveyCompleted(this.survey);
+            }
+        }
+
+    }
+
+    private void startPrefetch(DeviceSessionConfig config, ESPDevice device) {
+        if (!config.isPrefetchWifiList() && !config.isPrefetchVersionInfo()) return;
+
+        Prefetch prefetch = new Prefetch(config.getDeviceName());
+        synchronized (this) {
+            this.prefetches.put(config.getDeviceName(), prefetch); // a reconnect's prefetch replaces the old one
+        }
+        prefetch.start(device, config.isPrefetchVersionInfo(), config.isPrefetchWifiList());
+    }
+
+    private synchronized CompletableFuture<ArrayList<WiFiAccessPoint>> takePrefetchedWifiList(String deviceName) {
+        Prefetch prefetch = this.prefetches.get(deviceName);
+        return prefetch == null ? null : prefetch.takeWifiList();
+    }
+
+    /**
+     * The version info a prefetch got from the device, or null if it wasn't asked for or hasn't arrived yet.
+     */
+    public String getPrefetchedVersionInfo(String deviceName) {
+        CompletableFuture<String> versionInfo;
+        synchronized (this) {
+            Prefetch prefetch = this.prefetches.get(deviceName);
+            versionInfo = prefetch == null ? null : prefetch.versionInfo;
+        }
+        if (versionInfo == null || !versionInfo.isDone() || versionInfo.isCompletedExceptionally()) return null;
+        return versionInfo.join();
+    }
+
+    /**
+     * Starts a new session's device info. The library has usually read the version info while connecting, in which
+     * case it's parsed now. Otherwise it's fetched by the first getDeviceInfo, or taken from the prefetch.
+     */
+    private void startDeviceInfo(String deviceName, ESPDevice device) {
+        String known = device.getVersionInfo();
+        synchronized (this) {
+            if (known == null) {
+                this.deviceInfos.remove(deviceName); // a reconnect may be to new firmware
+            } else {
+                this.deviceInfos.put(deviceName, CompletableFuture.completedFuture(DeviceInfo.parse(known, device.getDeviceCapabilities())));
+            }
+        }
+    }
+
+    /**
+     * The device's version and capabilities. They're fetched at most once per session and answered from memory after
+     * that, until the device disconnects. A failed fetch isn't kept, so the next call tries again.
+     */
+    public void getDeviceInfo(String deviceName, DeviceInfoListener listener) {
+        if (!this.assertTransport(deviceName, null)) return;
+
+        ESPDevice espDevice = this.getESPDevice(deviceName, listener);
+        if (espDevice == null) return;
+
+        CompletableFuture<DeviceInfo> deviceInfo;
+        boolean fetch = false;
+        CompletableFuture<String> prefetched = null;
+        synchronized (this) {
+            deviceInfo = this.deviceInfos.get(deviceName);
+            if (deviceInfo == null) {
+                deviceInfo = new CompletableFuture<DeviceInfo>();
+                this.deviceInfos.put(deviceName, deviceInfo);
+                Prefetch prefetch = this.prefetches.get(deviceName);
+                prefetched = prefetch == null ? null : prefetch.versionInfo;
+                if (prefetched != null && prefetched.isCompletedExceptionally()) prefetched = null; // ask again
+                fetch = true;
+            }
+        }
+
+        // Outside the lock - fetching sends to the device
+        if (fetch) {
+            if (prefetched == null) prefetched = this.fetchVersionInfo(deviceName, espDevice, PhaseSlices.DEVICE_INFO, false);
+            this.parseDeviceInfo(deviceName, espDevice, prefetched, deviceInfo);
+        }
+
+        deviceInfo.whenCompleteAsync((info, error) -> {
+            if (error == null) {
+                listener.deviceInfoReceived(info);
+            } else if (error instanceof Exception) {
+                listener.deviceInfoFailed((Exception) error);
+            } else {
+                listener.deviceInfoFailed(new Exception(error.getMessage(), error));
+            }
+        }, callbackExecutor);
+    }
+
+    private void parseDeviceInfo(String deviceName, ESPDevice espDevice, CompletableFuture<String> versionInfo, CompletableFuture<DeviceInfo> deviceInfo) {
+        EspProvisioningBLE self = this;
+
+        versionInfo.whenComplete((raw, error) -> {
+            if (error == null) {
+                deviceInfo.complete(DeviceInfo.parse(raw, espDevice.getDeviceCapabilities()));
+                return;
+            }
+            synchronized (self) {
+                self.deviceInfos.remove(deviceName, deviceInfo);
+            }
+            deviceInfo.completeExceptionally(error);
+        });
+    }
+
+    /**
+     * The device's proto-ver JSON. Uses what the library read while connecting, if it did, otherwise asks the device.
+     * A background fetch goes out straight away - it's only started while nothing else is in flight on the device.
+     */
+    private CompletableFuture<String> fetchVersionInfo(String deviceName, ESPDevice device, String phase, boolean background) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+
+        String known = device.getVersionInfo();
+        if (known != null) {
+            future.complete(known);
+            return future;
+        }
+
+        InFlightOperation operation = this.operations.begin(null, deviceName, phase, null, future::completeExceptionally, () -> future.cancel(false), background);
+        this.operations.startDeadline(operation, CUSTOM_DATA_TIMEOUT, () -> future.completeExceptionally(new Exception("Timed out getting the version info")));
+        if (background) {
+            this.sendVersionInfoRequest(deviceName, device, operation, future);
+        } else {
+            this.afterBackgroundWork(deviceName, operation, () -> this.sendVersionInfoRequest(deviceName, device, operation, future));
+        }
+        return future;
+    }
+
+    private void sendVersionInfoRequest(String deviceName, ESPDevice device, InFlightOperation operation, CompletableFuture<String> future) {
+        byte[] data = "ESP".getBytes(StandardCharsets.UTF_8);
+
+        device.sendDataToCustomEndPoint(ESPConstants.HANDLER_PROTO_VER, data, this.tracing(deviceName, ESPConstants.HANDLER_PROTO_VER, data, new ResponseListener() {
 
             @Override
             public void onSuccess(byte[] returnData) {
-                String returnString = new String(returnData, StandardCharsets.UTF_8);
-                debugLog(String.format("Sent custom data: sent=%s returnString=%s", dataString, returnString));
-                listener.sentCustomDataStringWithResponse(returnString);
+                callbackExecutor.execute(() -> {
+                    if (!operations.finish(operation)) return;
+                    future.complete(new String(returnData, StandardCharsets.UTF_8));
+                });
             }
 
             @Override
             public void onFailure(Exception e) {
-                Error sendCustomDataStringError = new Error("Error sending custom data string: " + e.getMessage(), e);
-                errorLog(sendCustomDataStringError);
-                listener.failedToSendCustomDataString(sendCustomDataStringError);
+                callbackExecutor.execute(() -> {
+                    if (!operations.finish(operation)) return;
+                    future.completeExceptionally(e);
+                });
+            }
+
+        }));
+    }
+
+    /**
+     * Device-side work started as soon as a session is up, so the device's latency overlaps with the app getting to
+     * its next call. Each part runs as a background operation, so app calls on the device wait for it, a disconnect
+     * fails it and shutdown cancels it. Both parts are registered before the connect resolves, so nothing the app does
+     * can get in between them. The version info goes first: the library usually has it from connecting, and protocomm
+     * only takes one request at a time anyway.
+     */
+    private class Prefetch {
+
+        private final String deviceName;
+        private volatile CompletableFuture<String> versionInfo;
+        private CompletableFuture<ArrayList<WiFiAccessPoint>> wifiList;
+
+        Prefetch(String deviceName) {
+            this.deviceName = deviceName;
+        }
+
+        void start(ESPDevice device, boolean versionInfo, boolean wifiList) {
+            CompletableFuture<?> ready = CompletableFuture.completedFuture(null);
+
+            if (versionInfo) {
+                this.versionInfo = fetchVersionInfo(this.deviceName, device, PhaseSlices.PREFETCH_VERSION_INFO, true);
+                ready = this.versionInfo;
+            }
+
+            if (wifiList) {
+                CompletableFuture<ArrayList<WiFiAccessPoint>> future = new CompletableFuture<ArrayList<WiFiAccessPoint>>();
+                synchronized (this) {
+                    this.wifiList = future;
+                }
+                InFlightOperation operation = operations.begin(null, this.deviceName, PhaseSlices.PREFETCH_WIFI_LIST, null, future::completeExceptionally, () -> future.cancel(false), true);
+                ready.whenCompleteAsync((result, error) -> this.scanNetworks(device, operation, future), callbackExecutor);
+            }
+        }
+
+        synchronized CompletableFuture<ArrayList<WiFiAccessPoint>> takeWifiList() {
+            CompletableFuture<ArrayList<WiFiAccessPoint>> wifiList = this.wifiList;
+            this.wifiList = null; // a list goes stale, so the next scanWifiList asks again
+            return wifiList;
+        }
+
+        private void scanNetworks(ESPDevice device, InFlightOperation operation, CompletableFuture<ArrayList<WiFiAccessPoint>> future) {
+            if (!operations.isInFlight(operation)) return; // failed or cancelled while the version info was being fetched
+
+            debugLog(String.format("Prefetching the WiFi list from %s", this.deviceName));
+
+            device.scanNetworks(new WiFiScanListener() {
+
+                @Override
+                public void onWifiListReceived(ArrayList<WiFiAccessPoint> wifiList) {
+                    callbackExecutor.execute(() -> {
+                        if (!operations.finish(operation)) return;
+                        future.complete(wifiList);
+                    });
+                }
+
+                @Override
+                public void onWiFiScanFailed(Exception e) {
+                    callbackExecutor.execute(() -> {
+                        if (!operations.finish(operation)) return;
+                        future.completeExceptionally(e);
+                    });
+                }
+
+            });
+
+            operations.startDeadline(operation, WIFI_SCAN_TIMEOUT, () -> future.completeExceptionally(new Exception("Timed out prefetching the WiFi list")));
+        }
+
+    }
+
+    public void provision(String operationId, String deviceName, String ssid, String passPhrase, boolean waitForConnected, long timeout, WifiProvisionListener provisionListener) {
+        if (!this.assertTransport(deviceName, null)) return;
+
+        ProvisionOutcome listener = new ProvisionOutcome(deviceName, provisionListener);
+
+        ESPDevice espDevice = this.getESPDevice(deviceName, listener);
+        if (espDevice == null) return;
+
+        this.provisionStarted(deviceName);
+
+        // Never replayed - we can't tell how far the device got with the config before the link dropped
+        // The device can't be told to stop applying a config, so a cancel only releases the caller
+        InFlightOperation operation = this.operations.begin(operationId, deviceName, PhaseSlices.PROVISION, null, listener::provisioningFailed, () -> listener.operationCancelled(operationId));
+        this.operations.startDeadline(operation, timeout, () -> listener.operationTimedOut(timeout));
+
+        this.afterBackgroundWork(deviceName, operation, () -> {
+            if (waitForConnected) {
+                new StationConnectionWait(espDevice, ssid, passPhrase, operation, listener).start();
+            } else {
+                this.sendWifiConfig(espDevice, deviceName, ssid, passPhrase, operation, listener);
+            }
+        });
+    }
+
+    private void sendWifiConfig(ESPDevice espDevice, String deviceName, String ssid, String passPhrase, InFlightOperation operation, ProvisionOutcome listener) {
+        EspProvisioningBLE self = this;
+
+        this.phases.begin(deviceName, PhaseSlices.PROVISION_SEND_CONFIG);
+        espDevice.provision(ssid, passPhrase, new ProvisionListener() {
+
+            @Override
+            public void createSessionFailed(Exception e) {
+                callbackExecutor.execute(() -> {
+                    if (!self.operations.finish(operation)) return;
+                    Error createSessionError = new Error("Couldn't create a secure session", e);
+                    errorLog(createSessionError);
+                    listener.provisioningFailed(createSessionError);
+                });
+            }
+
+            @Override
+            public void wifiConfigSent() {
+                debugLog("WiFi config sent");
+                self.trace(SessionTrace.PROVISION_CALLBACK, deviceName, "wifiConfigSent", null);
+                self.phases.end(deviceName, PhaseSlices.PROVISION_SEND_CONFIG);
+                self.phases.begin(deviceName, PhaseSlices.PROVISION_APPLY_CONFIG);
+            }
+
+            @Override
+            public void wifiConfigFailed(Exception e) {
+                callbackExecutor.execute(() -> {
+                    if (!self.operations.finish(operation)) return;
+                    Error wifiConfigFailedError = new Error("Failed to send WiFi config", e);
+                    errorLog(wifiConfigFailedError);
+                    listener.provisioningFailed(wifiConfigFailedError);
+                });
+            }
+
+            @Override
+            public void wifiConfigApplied() {
+                debugLog("WiFi config applied");
+                self.trace(SessionTrace.PROVISION_CALLBACK, deviceName, "wifiConfigApplied", null);
+                self.phases.end(deviceName, PhaseSlices.PROVISION_APPLY_CONFIG);
+                self.phases.begin(deviceName, PhaseSlices.PROVISION_WAIT_FOR_STATION);
+            }
+
+            @Override
+            public void wifiConfigApplyFailed(Exception e) {
+                callbackExecutor.execute(() -> {
+                    if (!self.operations.finish(operation)) return;
+                    Error wifiConfigApplyError = new Error("Failed to apply WiFi config", e);
+                    errorLog(wifiConfigApplyError);
+                    listener.provisioningFailed(wifiConfigApplyError);
+                });
+            }
+
+            @Override
+            public void provisioningFailedFromDevice(final ESPConstants.ProvisionFailureReason failureReason) {
+                callbackExecutor.execute(() -> {
+                    if (!self.operations.finish(operation)) return;
+                    listener.setFailureReason(failureReason.name());
+                    switch (failureReason) {
+                        case AUTH_FAILED:
+                            Error authFailedError = new Error("WiFi credential error. Please check your SSID and password and try again");
+                            errorLog(authFailedError);
+                            listener.provisioningFailed(authFailedError);
+                            break;
+                        case DEVICE_DISCONNECTED:
+                            Error deviceDisconnectedError = new Error("Device Disconnected unexpectedly");
+                            errorLog(deviceDisconnectedError);
+                            listener.provisioningFailed(deviceDisconnectedError);
+                            break;
+                        case NETWORK_NOT_FOUND:
+                            Error networkNotFoundError = new Error(String.format("WiFi network not found", ssid));
+                            errorLog(networkNotFoundError);
+                            listener.provisioningFailed(networkNotFoundError);
+                            break;
+                        case UNKNOWN:
+                        default:
+                            Error unknownError = new Error("Unknown Error");
+                            errorLog(unknownError);
+                            listener.provisioningFailed(unknownError);
+                    }
+                });
+            }
+
+            @Override
+            public void deviceProvisioningSuccess() {
+                callbackExecutor.execute(() -> {
+                    if (!self.operations.finish(operation)) return;
+                    listener.provisioningSuccess();
+                });
+            }
+
+            @Override
+            public void onProvisioningFailed(Exception e) {
+                callbackExecutor.execute(() -> {
+                    if (!self.operations.finish(operation)) return;
+                    errorLog("Error provisioning device: " + e.getMessage(), e);
+                    listener.provisioningFailed(new Error("Provisioning Failed: " + e.getMessage()));
+                });
             }
 
         });
     }
 
+    /**
+     * provision() with waitForConnected. Sends and applies the WiFi config through prov-config itself, then polls
+     * the station status with a backoff until the device reports connected or failed. Unlike the library's provision
+     * this sees the moment the station connects and the IP it was given. The provision timeout bounds the whole thing.
+     */
+    private class StationConnectionWait {
+
+        private final ESPDevice espDevice;
+        private final String ssid;
+        private final String passPhrase;
+        private final InFlightOperation operation;
+        private final WifiProvisionListener listener;
+        private long appliedAt;
+        private long pollDelay = STATUS_POLL_BASE_DELAY;
+
+        StationConnectionWait(ESPDevice espDevice, String ssid, String passPhrase, InFlightOperation operation, WifiProvisionListener listener) {
+            this.espDevice = espDevice;
+            this.ssid = ssid;
+            this.passPhrase = passPhrase == null ? "" : passPhrase;
+            this.operation = operation;
+            this.listener = listener;
+        }
+
+        void start() {
+            phases.begin(this.operation.getDeviceName(), PhaseSlices.PROVISION_SEND_CONFIG);
+
+            // Traces can be exported, so the passphrase is left out of the one that's recorded
+            this.send(this.setConfig(this.passPhrase), this.setConfig(""), response -> {
+
+                if (response.getRespSetConfig().getStatus() != Constants.Status.Success) {
+                    this.fail(new Error("Failed to send WiFi config: " + response.getRespSetConfig().getStatus()));
+                    return;
+                }
+                debugLog("WiFi config sent");
+                trace(SessionTrace.PROVISION_CALLBACK, this.operation.getDeviceName(), "wifiConfigSent", null);
+                phases.end(this.operation.getDeviceName(), PhaseSlices.PROVISION_SEND_CONFIG);
+                phases.begin(this.operation.getDeviceName(), PhaseSlices.PROVISION_APPLY_CONFIG);
+
+                this.send(WifiConfig.WiFiConfigPayload.newBuilder()
+                        .setMsg(WifiConfig.WiFiConfigMsgType.TypeCmdApplyConfig)
+                        .setCmdApplyConfig(WifiConfig.CmdApplyConfig.newBuilder().build())
+                        .build(), applied -> {
+
+                    if (applied.getRespApplyConfig().getStatus() != Constants.Status.Success) {
+                        this.fail(new Error("Failed to apply WiFi config: " + applied.getRespApplyConfig().getStatus()));
+                        return;
+                    }
+                    debugLog("WiFi config applied");
+                    trace(SessionTrace.PROVISION_CALLBACK, this.operation.getDeviceName(), "wifiConfigApplied", null);
+                    phases.end(this.operation.getDeviceName(), PhaseSlices.PROVISION_APPLY_CONFIG);
+                    phases.begin(this.operation.getDeviceName(), PhaseSlices.PROVISION_WAIT_FOR_STATION);
+
+                    this.appliedAt = System.nanoTime();
+                    this.schedulePoll();
+                });
+            });
+        }
+
+        private void schedulePoll() {
+            long delay = this.pollDelay;
+            this.pollDelay = Math.min(this.pollDelay * 2, STATUS_POLL_MAX_DELAY);
+
+            timeoutScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callbackExecutor.execute(() -> poll());
+                }
+            }, delay);
+        }
+
+        private void poll() {
+            if (!operations.isInFlight(this.operation)) return; // timed out or cancelled while waiting
+
+            this.send(WifiConfig.WiFiConfigPayload.newBuilder()
+                    .setMsg(WifiConfig.WiFiConfigMsgType.TypeCmdGetStatus)
+                    .setCmdGetStatus(WifiConfig.CmdGetStatus.newBuilder().build())
+                    .build(), response -> this.handleStatus(response.getRespGetStatus()));
+        }
+
+        private void handleStatus(WifiConfig.RespGetStatus status) {
+            long elapsed = (System.nanoTime() - this.appliedAt) / 1000000;
+
+            switch (status.getStaState()) {
+                case Connected:
+                    if (!operations.finish(this.operation)) return;
+                    String ip = status.getConnected().getIp4Addr();
+                    debugLog(String.format("Station connected to %s after %dms with ip %s", this.ssid, elapsed, ip));
+                    this.listener.stationConnected(elapsed, ip);
+                    break;
+
+                case ConnectionFailed:
+                    if (!operations.finish(this.operation)) return;
+                    this.stationFailed(status.getFailReason(), elapsed);
+                    break;
+
+                default:
+                    // Connecting, or Disconnected between attempts - ask again a bit later
+                    this.schedulePoll();
+            }
+        }
+
+        private void stationFailed(WifiConstants.WifiConnectFailedReason failReason, long elapsed) {
+            Error error;
+            String reason;
+
+            if (failReason == WifiConstants.WifiConnectFailedReason.AuthError) {
+                reason = "AUTH_ERROR";
+                error = new Error("WiFi credential error. Please check your SSID and password and try again");
+            } else if (failReason == WifiConstants.WifiConnectFailedReason.NetworkNotFound) {
+                reason = "NETWORK_NOT_FOUND";
+                error = new Error("WiFi network not found");
+            } else {
+                reason = "CONNECTION_FAILED";
+                error = new Error("WiFi connection failed");
+            }
+
+            errorLog(new Error(String.format("Station failed to connect to %s after %dms: %s", this.ssid, elapsed, reason)));
+            this.listener.stationConnectionFailed(reason, error);
+        }
+
+        private WifiConfig.WiFiConfigPayload setConfig(String passPhrase) {
+            WifiConfig.CmdSetConfig setConfig = WifiConfig.CmdSetConfig.newBuilder()
+                    .setSsid(ByteString.copyFrom(this.ssid.getBytes(StandardCharsets.UTF_8)))
+                    .setPassphrase(ByteString.copyFrom(passPhrase.getBytes(StandardCharsets.UTF_8)))
+                    .build();
+
+            return WifiConfig.WiFiConfigPayload.newBuilder()
+                    .setMsg(WifiConfig.WiFiConfigMsgType.TypeCmdSetConfig)
+                    .setCmdSetConfig(setConfig)
+                    .build();
+        }
+
+        private void send(WifiConfig.WiFiConfigPayload payload, Consumer<WifiConfig.WiFiConfigPayload> onResponse) {
+            this.send(payload, payload, onResponse);
+        }
+
+        private void send(WifiConfig.WiFiConfigPayload payload, WifiConfig.WiFiConfigPayload traced, Consumer<WifiConfig.WiFiConfigPayload> onResponse) {
+            this.espDevice.sendDataToCustomEndPoint(ESPConstants.HANDLER_PROV_CONFIG, payload.toByteArray(), tracing(this.operation.getDeviceName(), ESPConstants.HANDLER_PROV_CONFIG, traced.toByteArray(), new ResponseListener() {
+
+                @Override
+                public void onSuccess(byte[] returnData) {
+                    callbackExecutor.execute(() -> {
+                        if (!operations.isInFlight(operation)) return;
+
+                        WifiConfig.WiFiConfigPayload response;
+                        try {
+                            response = WifiConfig.WiFiConfigPayload.parseFrom(returnData);
+                        } catch (Exception e) {
+                            fail(new Error("Couldn't read the device's response: " + e.getMessage(), e));
+                            return;
+                        }
+                        onResponse.accept(response);
+                    });
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    callbackExecutor.execute(() -> fail(new Error("Provisioning Failed: " + e.getMessage(), e)));
+                }
+
+            }));
+        }
+
+        private void fail(Error error) {
+            if (!operations.finish(this.operation)) return;
+            errorLog(error);
+            this.listener.provisioningFailed(error);
+        }
+
+    }
+
+    /**
+     * Wraps the app's listener with what every provision outcome needs: the link goes back on balanced priority and
+     * the outcome goes into the history.
+     */
+    private class ProvisionOutcome implements WifiProvisionListener {
+
+        private final String deviceName;
+        private final WifiProvisionListener listener;
+        private final long startedAt = System.nanoTime();
+        private volatile String failureReason;
+
+        ProvisionOutcome(String deviceName, WifiProvisionListener listener) {
+            this.deviceName = deviceName;
+            this.listener = listener;
+        }
+
+        /**
+         * The reason the device gave, recorded with the provisioningFailed that follows.
+         */
+        void setFailureReason(String failureReason) {
+            this.failureReason = failureReason;
+        }
+
+        @Override
+        public void provisioningSuccess() {
+            this.finish("provisioningSuccess", HistoryEntry.OUTCOME_SUCCESS, -1, null, null);
+            this.listener.provisioningSuccess();
+        }
+
+        @Override
+        public void provisioningFailed(Error error) {
+            this.finish("provisioningFailed", HistoryEntry.OUTCOME_FAILED, -1, this.failureReason, error.getMessage());
+            this.listener.provisioningFailed(error);
+        }
+
+        @Override
+        public void stationConnected(long timeToConnected, String ip4Address) {
+            this.finish("stationConnected", HistoryEntry.OUTCOME_SUCCESS, timeToConnected, null, null);
+            this.listener.stationConnected(timeToConnected, ip4Address);
+        }
+
+        @Override
+        public void stationConnectionFailed(String reason, Error error) {
+            this.finish("stationConnectionFailed", HistoryEntry.OUTCOME_FAILED, -1, reason, error.getMessage());
+            this.listener.stationConnectionFailed(reason, error);
+        }
+
+        @Override
+        public void operationCancelled(String operationId) {
+            this.finish("operationCancelled", HistoryEntry.OUTCOME_CANCELLED, -1, null, null);
+            this.listener.operationCancelled(operationId);
+        }
+
+        @Override
+        public void operationTimedOut(long timeout) {
+            this.finish("operationTimedOut", HistoryEntry.OUTCOME_TIMEOUT, -1, null, String.format("Timed out after %dms", timeout));
+            this.listener.operationTimedOut(timeout);
+        }
+
+        @Override
+        public void deviceNotFound(String deviceName) {
+            this.listener.deviceNotFound(deviceName);
+        }
+
+        private void finish(String callback, String outcome, long timeToConnected, String failureReason, String message) {
+            relaxConnectionPriority(this.deviceName);
+            trace(SessionTrace.PROVISION_CALLBACK, this.deviceName, failureReason == null ? callback : callback + " " + failureReason, null);
+
+            long provisionTime = (System.nanoTime() - this.startedAt) / 1000000;
+            long connectTime = -1;
+            long handshakeTime = -1;
+            synchronized (EspProvisioningBLE.this) {
+                SessionStats stats = sessionStats.get(this.deviceName);
+                if (stats != null) {
+                    connectTime = stats.connectTime;
+                    handshakeTime = stats.handshakeTime;
+                }
+            }
+
+            recordHistory(this.deviceName, outcome, HistoryEntry.PHASE_PROVISION, connectTime, handshakeTime, provisionTime, timeToConnected, failureReason, message);
+        }
+
+    }
+
+    public void sendCustomDataString(String operationId, String deviceName, String path, String dataString, boolean compress, long timeout, SendCustomDataStringListener listener) {
+        ESPDevice espDevice = this.getESPDevice(deviceName, listener);
+        if(espDevice == null) return;
+
+        byte[] data = dataString.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = compress ? this.payloadCompressor.compress(data) : data;
+        if (compress) debugLog(String.format("Custom data for %s: %d bytes, %d bytes sent", path, data.length, bytes.length));
+
+        // Custom endpoints may not be idempotent, so these are failed rather than replayed
+        InFlightOperation operation = this.operations.begin(operationId, deviceName, PhaseSlices.customData(path), null, listener::failedToSendCustomDataString, () -> listener.operationCancelled(operationId));
+        this.operations.startDeadline(operation, timeout, () -> listener.operationTimedOut(timeout));
+        this.afterBackgroundWork(deviceName, operation, () -> this.sendCustomData(espDevice, deviceName, path, dataString, bytes, compress, operation, listener));
+    }
+
+    private void sendCustomData(ESPDevice espDevice, String deviceName, String path, String dataString, byte[] bytes, boolean compress, InFlightOperation operation, SendCustomDataStringListener listener) {
+        EspProvisioningBLE self = this;
+
+        espDevice.sendDataToCustomEndPoint(path, bytes, this.tracing(deviceName, path, bytes, new ResponseListener(){
+
+            @Override
+            public void onSuccess(byte[] returnData) {
+                callbackExecutor.execute(() -> {
+                    if (!self.operations.finish(operation)) return;
+
+                    byte[] responseData = returnData;
+                    if (compress) {
+                        try {
+                            responseData = self.payloadCompressor.decompress(returnData);
+                        } catch (DataFormatException e) {
+                            Error decompressError = new Error("Couldn't inflate the custom data response: " + e.getMessage(), e);
+                            errorLog(decompressError);
+                            listener.failedToSendCustomDataString(decompressError);
+                            return;
+                        }
+                    }
+
+                    String returnString = new String(responseData, StandardCharsets.UTF_8);
+                    debugLog(String.format("Sent custom data: sent=%s returnString=%s", dataString, returnString));
+                    listener.sentCustomDataStringWithResponse(returnString);
+                });
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                callbackExecutor.execute(() -> {
+                    if (!self.operations.finish(operation)) return;
+                    Error sendCustomDataStringError = new Error("Error sending custom data string: " + e.getMessage(), e);
+                    errorLog(sendCustomDataStringError);
+                    listener.failedToSendCustomDataString(sendCustomDataStringError);
+                });
+            }
+
+        }));
+    }
+
+    /**
+     * Polls a custom endpoint until unwatch() is called or the device is disconnected. Polls back off towards
+     * maxInterval while the response stays the same and return to interval as soon as it changes. Only changes are
+     * reported. Returns the watchId to pass to unwatch(), or null if there's no session with the device.
+     */
+    public String watchCustomEndpoint(String deviceName, String path, String dataString, long interval, long maxInterval) {
+        EndpointWatch watch = new EndpointWatch(UUID.randomUUID().toString(), deviceName, path, dataString.getBytes(StandardCharsets.UTF_8), interval, Math.max(interval, maxInterval));
+
+        synchronized (this) {
+            // Nothing would ever end it - disconnect() is what stops a device's watches
+            if (!this.sessionConfigs.containsKey(deviceName)) return null;
+            this.endpointWatches.put(watch.watchId, watch);
+        }
+
+        debugLog(String.format("Watching %s on %s: interval=%dms; maxInterval=%dms;", path, deviceName, interval, maxInterval));
+        watch.schedule(0);
+        return watch.watchId;
+    }
+
+    /**
+     * Returns false if there was no watch with that id.
+     */
+    public boolean unwatch(String watchId) {
+        EndpointWatch watch;
+        synchronized (this) {
+            watch = this.endpointWatches.remove(watchId);
+        }
+        if (watch == null) return false;
+
+        watch.stop();
+        return true;
+    }
+
+    private void stopEndpointWatches(String deviceName) {
+        List<EndpointWatch> stopped = new ArrayList<EndpointWatch>();
+
+        synchronized (this) {
+            for (EndpointWatch watch : this.endpointWatches.values()) {
+                if (watch.deviceName.equals(deviceName)) stopped.add(watch);
+            }
+            for (EndpointWatch watch : stopped) {
+                this.endpointWatches.remove(watch.watchId);
+            }
+        }
+
+        for (EndpointWatch watch : stopped) {
+            debugLog(String.format("Stopped watching %s on %s", watch.path, deviceName));
+            watch.stop();
+        }
+    }
+
+    /**
+     * One watched endpoint. Only one poll is outstanding at a time. Polls are background operations: they step aside
+     * while the app has its own operation running on the device, and app calls wait for a poll that's already out -
+     * the transport can't interleave them.
+     */
+    private class EndpointWatch {
+
+        private final String watchId;
+        private final String deviceName;
+        private final String path;
+        private final byte[] requestData;
+        private final long interval;
+        private final long maxInterval;
+        private long currentInterval;
+        private byte[] lastResponse;
+        private volatile boolean stopped = false;
+        private TimeoutScheduler.Timeout pending;
+
+        EndpointWatch(String watchId, String deviceName, String path, byte[] requestData, long interval, long maxInterval) {
+            this.watchId = watchId;
+            this.deviceName = deviceName;
+            this.path = path;
+            this.requestData = requestData;
+            this.interval = interval;
+            this.maxInterval = maxInterval;
+            this.currentInterval = interval;
+        }
+
+        synchronized void schedule(long delay) {
+            if (this.stopped) return;
+
+            this.pending = timeoutScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callbackExecutor.execute(() -> poll());
+                }
+            }, delay);
+        }
+
+        synchronized void stop() {
+            this.stopped = true;
+            if (this.pending != null) this.pending.cancel();
+        }
+
+        private void poll() {
+            if (this.stopped) return;
+
+            // Picks up the new ESPDevice after a reconnect
+            ESPDevice espDevice = getESPDevice(this.deviceName);
+            if (espDevice == null) {
+                if (getSessionConfig(this.deviceName) == null) {
+                    unwatch(this.watchId); // disconnected, and not coming back
+                } else {
+                    this.backOff(); // reconnecting
+                }
+                return;
+            }
+
+            InFlightOperation operation = operations.beginBackground(this.deviceName, PhaseSlices.customData(this.path), error -> callbackExecutor.execute(this::backOff), () -> {});
+            if (operation == null) {
+                this.schedule(this.interval);
+                return;
+            }
+
+            // A poll that never answers mustn't stall the watch
+            operations.startDeadline(operation, CUSTOM_DATA_TIMEOUT, () -> {
+                debugLog(String.format("Poll of %s on %s timed out", path, deviceName));
+                backOff();
+            });
+
+            espDevice.sendDataToCustomEndPoint(this.path, this.requestData, tracing(this.deviceName, this.path, this.requestData, new ResponseListener() {
+
+                @Override
+                public void onSuccess(byte[] returnData) {
+                    callbackExecutor.execute(() -> {
+                        if (!operations.finish(operation)) return;
+                        received(returnData);
+                    });
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    callbackExecutor.execute(() -> {
+                        if (!operations.finish(operation)) return;
+                        debugLog(String.format("Poll of %s on %s failed: %s", path, deviceName, e.getMessage()));
+                        backOff();
+                    });
+                }
+
+            }));
+        }
+
+        private void received(byte[] returnData) {
+            if (this.stopped) return;
+
+            if (Arrays.equals(returnData, this.lastResponse)) {
+                this.backOff();
+                return;
+            }
+
+            this.lastResponse = returnData;
+            this.currentInterval = this.interval;
+            eventListener.customDataChanged(this.watchId, this.deviceName, this.path, new String(returnData, StandardCharsets.UTF_8));
+            this.schedule(this.currentInterval);
+        }
+
+        private void backOff() {
+            this.currentInterval = Math.min(this.currentInterval * 2, this.maxInterval);
+            this.schedule(this.currentInterval);
+        }
+
+    }
+
+    /**
+     * Watches for devices whose names start with devicePrefix and reports them through deviceAppeared(),
+     * deviceLost() and deviceRssiChanged(). The radio scans in scanMode for dutyCycle of every PRESENCE_SCAN_PERIOD
+     * and rests for the remainder. lostAfter is raised to at least a scan period, so a device isn't lost just
+     * because it fell between scan windows. Replaces a monitor that's already running. Devices seen by the monitor
+     * don't go into the scan results - searchESPDevices is still how they're found to connect to.
+     */
+    public void startPresenceMonitor(String devicePrefix, int scanMode, double dutyCycle, long lostAfter) {
+        PresenceMonitor monitor = new PresenceMonitor(devicePrefix == null ? "" : devicePrefix, scanMode, Math.min(dutyCycle, 1), Math.max(lostAfter, PRESENCE_SCAN_PERIOD));
+
+        PresenceMonitor previous;
+        synchronized (this) {
+            previous = this.presenceMonitor;
+            this.presenceMonitor = monitor;
+        }
+        if (previous != null) previous.stop();
+
+        debugLog(String.format("Monitoring presence of %s: scanMode=%d; dutyCycle=%.2f; lostAfter=%dms;", devicePrefix, scanMode, dutyCycle, monitor.tracker.getLostAfter()));
+        callbackExecutor.execute(monitor::scan);
+        monitor.sweep();
+    }
+
+    /**
+     * Returns false if no monitor was running.
+     */
+    public boolean stopPresenceMonitor() {
+        PresenceMonitor monitor;
+        synchronized (this) {
+            monitor = this.presenceMonitor;
+            this.presenceMonitor = null;
+        }
+        if (monitor == null) return false;
+
+        monitor.stop();
+        return true;
+    }
+
+    /**
+     * A duty-cycled BLE scan feeding a PresenceTracker. The scan goes straight to the system's scanner rather than
+     * through ESPProvisionManager, which only offers one-shot scans with the default scan mode.
+     */
+    private class PresenceMonitor extends ScanCallback implements PresenceTracker.Listener {
+
+        private final String devicePrefix;
+        private final ScanSettings settings;
+        private final long window;
+        private final PresenceTracker tracker;
+        private BluetoothLeScanner scanner;
+        private TimeoutScheduler.Timeout cycle;
+        private TimeoutScheduler.Timeout sweep;
+        private volatile boolean stopped = false;
+
+        PresenceMonitor(String devicePrefix, int scanMode, double dutyCycle, long lostAfter) {
+            this.devicePrefix = devicePrefix;
+            this.settings = new ScanSettings.Builder().setScanMode(scanMode).build();
+            this.window = Math.max(1, (long) (PRESENCE_SCAN_PERIOD * dutyCycle));
+            this.tracker = new PresenceTracker(lostAfter, this);
+        }
+
+        /**
+         * Runs on the callback thread. Starting and stopping the scan are binder calls, so they stay off the timer
+         * thread and outside the monitor's lock - stop() only has to wait for the bookkeeping.
+         */
+        @SuppressLint("MissingPermission")
+        void scan() {
+            if (this.stopped) return;
+
+            BluetoothManager manager = getBluetoothManager();
+            BluetoothLeScanner scanner = manager == null || !bleIsEnabled() ? null : manager.getAdapter().getBluetoothLeScanner();
+            if (scanner != null) {
+                try {
+                    scanner.startScan(null, this.settings, this);
+                } catch (RuntimeException e) {
+                    // Bluetooth went off between the check and the call - try again next period
+                    errorLog("Couldn't start the presence scan", e);
+                    scanner = null;
+                }
+            }
+
+            synchronized (this) {
+                if (!this.stopped) {
+                    this.scanner = scanner;
+                    if (this.window < PRESENCE_SCAN_PERIOD) this.schedule(this::rest, this.window); // else scanning all the time
+                    return;
+                }
+            }
+
+            // Stopped while the scan was starting
+            this.stopScan(scanner);
+        }
+
+        void rest() {
+            BluetoothLeScanner scanner;
+            synchronized (this) {
+                if (this.stopped) return;
+                scanner = this.scanner;
+                this.scanner = null;
+                this.schedule(this::scan, PRESENCE_SCAN_PERIOD - this.window);
+            }
+            this.stopScan(scanner);
+        }
+
+        private void schedule(Runnable step, long delay) {
+            this.cycle = timeoutScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callbackExecutor.execute(step);
+                }
+            }, delay);
+        }
+
+        synchronized void sweep() {
+            if (this.stopped) return;
+
+            long now = System.currentTimeMillis();
+            callbackExecutor.execute(() -> this.tracker.sweep(now));
+            this.sweep = timeoutScheduler.schedule(this::sweep, PRESENCE_SWEEP_INTERVAL);
+        }
+
+        void stop() {
+            BluetoothLeScanner scanner;
+            synchronized (this) {
+                this.stopped = true;
+                if (this.cycle != null) this.cycle.cancel();
+                if (this.sweep != null) this.sweep.cancel();
+                scanner = this.scanner;
+                this.scanner = null;
+            }
+            this.stopScan(scanner);
+            this.tracker.clear();
+        }
+
+        @SuppressLint("MissingPermission")
+        private void stopScan(BluetoothLeScanner scanner) {
+            if (scanner == null) return;
+            try {
+                scanner.stopScan(this);
+            } catch (RuntimeException e) {
+                // Bluetooth is off, so the scan is already gone
+            }
+        }
+
+        @SuppressLint("MissingPermission")
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            String deviceName = result.getDevice().getName();
+            if (deviceName == null || !deviceName.startsWith(this.devicePrefix)) return;
+            this.tracker.seen(deviceName, result.getRssi(), System.currentTimeMillis());
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            // Usually the system throttling scan starts - the next period tries again
+            errorLog(new Error(String.format("Presence scan failed: errorCode=%d", errorCode)));
+        }
+
+        @Override
+        public void deviceAppeared(String deviceName, int rssi) {
+            callbackExecutor.execute(() -> {
+                if (!this.stopped) eventListener.deviceAppeared(deviceName, rssi);
+            });
+        }
+
+        @Override
+        public void deviceLost(String deviceName) {
+            if (!this.stopped) eventListener.deviceLost(deviceName); // sweeps already run on the callback thread
+        }
+
+        @Override
+        public void rssiChanged(String deviceName, int rssi) {
+            callbackExecutor.execute(() -> {
+                if (!this.stopped) eventListener.deviceRssiChanged(deviceName, rssi);
+            });
+        }
+
+    }
+
     public void disconnect(String deviceName, DisconnectListener listener) {
-        this.stopListeningForDisconnection();
+        TimeoutScheduler.Timeout pendingReconnect;
+        synchronized (this) {
+            this.sessionConfigs.remove(deviceName);
+            pendingReconnect = this.pendingReconnects.remove(deviceName);
+        }
+        if (pendingReconnect != null) pendingReconnect.cancel();
 
-        ESPDevice espDevice = this.getESPDevice(deviceName); // don't pass listener since we don't care about deviceNotFound() for disconnection.
-        if (espDevice != null) espDevice.disconnectDevice();
+        // After the session config is gone, so no new watch can slip in
+        this.stopEndpointWatches(deviceName);
+
+        this.operations.abort(deviceName, new Error("Device disconnected"));
+        synchronized (this) {
+            this.sessionStats.remove(deviceName); // after the abort, so aborted provisions are recorded with their timings
+            this.prefetches.remove(deviceName);
+            this.deviceInfos.remove(deviceName);
+        }
+
+        ESPDevice espDevice = this.links.remove(deviceName); // no deviceNotFound() for disconnection, there's nothing to report
+        if (espDevice != null) this.disconnectDevice(deviceName, espDevice);
+        this.connectionScheduler.released(deviceName);
+        this.closeSoftApTransport(deviceName);
+        this.forgetHighPriorityLink(deviceName);
+
+        this.phases.endAll(deviceName);
 
         if (listener != null ) listener.deviceDisconnected();
 
         // Stopped clearing devices because it was causing issues. We call 'disconnect' from the app side a lot
         // to ensure we aren't leaking BLE connections. We need this map around if the app fails to connect due to a
         // bad proof of possession and the user want's to try again. Otherwise they have to rescan all devices.
-        // This will leak devices - maybe we should have a timer that evicts old discovered devices
-        // this.devices = new HashMap<String, DiscoveredBluetoothDevice>();
+        // They're dropped when the next scan publishes a generation without them.
+    }
+
+    /**
+     * A scan the system refused because the nearby devices permission is off in the app's settings.
+     */
+    private static class BlePermissionsException extends Exception {
+
+        BlePermissionsException() {
+            super("Bluetooth (Nearby Devices) and Location permissions are required");
+        }
+
     }
 
     private void debugLog(String message){
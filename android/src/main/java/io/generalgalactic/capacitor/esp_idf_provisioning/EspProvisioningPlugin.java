@@ -1,6 +1,7 @@
 package io.generalgalactic.capacitor.esp_idf_provisioning;
 
 import android.Manifest;
+import android.bluetooth.le.ScanSettings;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
@@ -11,7 +12,6 @@ import android.util.Log;
 import androidx.core.content.ContextCompat;
 
 import com.espressif.provisioning.ESPConstants;
-import com.espressif.provisioning.ESPDevice;
 import com.espressif.provisioning.WiFiAccessPoint;
 import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
@@ -23,16 +23,28 @@ import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
 import com.getcapacitor.annotation.PermissionCallback;
 
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.ConnectListener;
+import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.DeviceInfoListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.DisconnectListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.EspProvisioningEventListener;
+import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.ExportHistoryListener;
+import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.QueryHistoryListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.ScanListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.ScanWiFiListener;
+import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.ScanWiFiManyListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.SendCustomDataStringListener;
+import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.WarmUpListener;
 import io.generalgalactic.capacitor.esp_idf_provisioning.listeners.WifiProvisionListener;
 
 class EventCallback {
@@ -83,10 +95,44 @@ class EventCallback {
 public class EspProvisioningPlugin extends Plugin implements EspProvisioningEventListener {
 
     private EspProvisioningBLE implementation;
+    private String lastStatusUpdate;
 
     @Override
     public void load() {
         implementation = new EspProvisioningBLE(this.getBridge(), this);
+        implementation.start();
+
+        // Opt in with plugins.EspProvisioning.warmUp in the capacitor config
+        if (this.getConfig().getBoolean("warmUp", false)) {
+            implementation.warmUp(new WarmUpListener() {
+
+                @Override
+                public void warmedUp(WarmUpMetrics metrics) {
+                    Log.d("capacitor-esp-provision", String.format("Warmed up on load in %dms", metrics.getTotalTime()));
+                }
+
+                @Override
+                public void warmUpFailed(Exception e) {
+                    Log.e("capacitor-esp-provision", "Warm-up on load failed", e);
+                }
+
+            });
+        }
+    }
+
+    @Override
+    protected void handleOnResume() {
+        super.handleOnResume();
+        // Nothing is unregistered on pause - a provision running while the app is in the background still needs to
+        // hear about bluetooth going off. Starting again only registers what isn't registered.
+        if (implementation != null) implementation.start();
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        // A reload or configuration change builds a new plugin, so this one has to let go of everything it holds
+        if (implementation != null) implementation.shutdown();
+        super.handleOnDestroy();
     }
 
     public String[] blePermissionAliases(){
@@ -214,28 +260,33 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
 
     @PluginMethod
     public void searchESPDevices(PluginCall call) {
-        if (!this.implementation.assertBluetooth(new BluetoothRequiredCallHandler(call))) return;
+        ESPConstants.TransportType transport = this.transportTypeFromString(call.getString("transport"));
+        if (transport == ESPConstants.TransportType.TRANSPORT_BLE && !this.implementation.assertBluetooth(new BluetoothRequiredCallHandler(call))) return;
 
+        String operationId = call.getString("operationId");
         String devicePrefix = call.getString("devicePrefix");
-        ESPConstants.TransportType transport = this.transportTypeFromString(call.getString("transport"));
         ESPConstants.SecurityType security = this.securityTypeFromString(call.getString("security"));
+        boolean partial = call.getBoolean("partial", false);
+        EspProvisioningPlugin that = this;
 
-        this.implementation.searchESPDevices(devicePrefix, transport, security, new ScanListener() {
+        this.implementation.searchESPDevices(operationId, devicePrefix, transport, security, partial, new ScanListener() {
 
             @Override
             public void foundDevices(List<DiscoveredBluetoothDevice> devices) {
-                JSArray devicesOutput = new JSArray();
-
-                for (DiscoveredBluetoothDevice device : devices) {
-                    JSObject deviceJson = new JSObject();
-                    deviceJson.put("id", device.getName());
-                    deviceJson.put("name", device.getName());
-                    devicesOutput.put(deviceJson);
-                }
-
-                JSObject ret = new JSObject();
-                ret.put("devices", devicesOutput);
-                call.resolve(ret);
+                that.resolveTraced(call, "EspProvisioningPlugin.searchESPDevices", () -> {
+                    JSArray devicesOutput = new JSArray();
+
+                    for (DiscoveredBluetoothDevice device : devices) {
+                        JSObject deviceJson = new JSObject();
+                        deviceJson.put("id", device.getName());
+                        deviceJson.put("name", device.getName());
+                        devicesOutput.put(deviceJson);
+                    }
+
+                    JSObject ret = new JSObject();
+                    ret.put("devices", devicesOutput);
+                    return ret;
+                });
             }
 
             @Override
@@ -248,22 +299,58 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
                 call.reject("Bluetooth (Nearby Devices) and Location permissions are required", "PERMISSIONS_ISSUE");
             }
 
+            @Override
+            public void operationCancelled(String operationId) {
+                call.reject("Operation cancelled: " + operationId, "CANCELLED");
+            }
+
         });
     }
 
     @PluginMethod
     public void connect(PluginCall call) {
-        if (!this.implementation.assertBluetooth(new BluetoothRequiredCallHandler(call))) return;
-
+        String operationId = call.getString("operationId");
         String deviceName = call.getString("deviceName");
-        String proofOfPossession = call.getString("proofOfPossession");
+        if (!this.implementation.assertTransport(deviceName, new BluetoothRequiredCallHandler(call))) return;
+
+        ConnectOptions options = new ConnectOptions(call.getString("proofOfPossession"));
+        options.setUsername(call.getString("username"));
+        options.setSoftApPassword(call.getString("softApPassword"));
+        options.setAutoReconnect(call.getBoolean("autoReconnect", false));
+        options.setMaxReconnectAttempts(call.getInt("maxReconnectAttempts", EspProvisioningBLE.DEFAULT_MAX_RECONNECT_ATTEMPTS));
+        options.setTimeout(this.timeoutFromCall(call, EspProvisioningBLE.DEVICE_CONNECT_TIMEOUT));
+        options.setMtu(call.getInt("mtu", 0));
+        options.setHighPriority(call.getBoolean("highPriority", false));
+        options.setPriority(call.getInt("priority", 0));
+
+        JSArray prefetch = call.getArray("prefetch", new JSArray());
+        for (int i = 0; i < prefetch.length(); i++) {
+            String item = prefetch.optString(i);
+            if ("wifiList".equals(item)) {
+                options.setPrefetchWifiList(true);
+            } else if ("versionInfo".equals(item)) {
+                options.setPrefetchVersionInfo(true);
+            } else {
+                call.reject("Unknown prefetch: " + item);
+                return;
+            }
+        }
+
+        EspProvisioningPlugin that = this;
 
-        this.implementation.connect(deviceName, proofOfPossession, new ConnectListener() {
+        this.implementation.connect(operationId, deviceName, options, new ConnectListener() {
 
             @Override
-            public void connected(ESPDevice device) {
+            public void connected(DeviceSession session) {
                 JSObject response = new JSObject();
                 response.put("connected", true);
+                response.put("connectTime", session.getConnectTime());
+                response.put("handshakeTime", session.getHandshakeTime());
+                if (session.getRequestedMtu() > 0) response.put("requestedMtu", session.getRequestedMtu());
+                response.put("connectionPriority", session.isHighPriority() ? "high" : "balanced");
+
+                String versionInfo = that.implementation.getPrefetchedVersionInfo(deviceName);
+                if (versionInfo != null) response.put("versionInfo", versionInfo);
                 call.resolve(response);
             }
 
@@ -274,7 +361,7 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
 
             @Override
             public void connectionTimedOut() {
-                call.reject("Connection timed out: " + deviceName);
+                call.reject("Connection timed out: " + deviceName, "TIMEOUT");
             }
 
             @Override
@@ -287,9 +374,26 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
                 call.reject("Failed to initialise session with the device. [sessionInitError] " + e.getMessage()); // sessionInitError matches the error I receive on the iOS side. Just reusing it here for consistency.
             }
 
+            @Override
+            public void operationCancelled(String operationId) {
+                call.reject("Operation cancelled: " + operationId, "CANCELLED");
+            }
+
         });
     }
 
+    private JSArray networksToJSArray(List<WiFiAccessPoint> networks) {
+        JSArray networksResponse = new JSArray();
+        for (WiFiAccessPoint accessPoint : networks) {
+            JSObject network = new JSObject();
+            network.put("ssid", accessPoint.getWifiName());
+            network.put("rssi", accessPoint.getRssi());
+            network.put("auth", this.securityIntToString(accessPoint.getSecurity()));
+            networksResponse.put(network);
+        }
+        return networksResponse;
+    }
+
     private String securityIntToString(int security) {
         switch (security) {
             case 0:
@@ -315,25 +419,20 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
 
     @PluginMethod
     public void scanWifiList(PluginCall call) {
-        if (!this.implementation.assertBluetooth(new BluetoothRequiredCallHandler(call))) return;
-
+        String operationId = call.getString("operationId");
         String deviceName = call.getString("deviceName");
+        if (!this.implementation.assertTransport(deviceName, new BluetoothRequiredCallHandler(call))) return;
         EspProvisioningPlugin that = this;
-        this.implementation.scanWifiList(deviceName, new ScanWiFiListener() {
+        long timeout = this.timeoutFromCall(call, EspProvisioningBLE.WIFI_SCAN_TIMEOUT);
+        this.implementation.scanWifiList(operationId, deviceName, timeout, new ScanWiFiListener() {
 
             @Override
             public void foundWiFiNetworks(List<WiFiAccessPoint> networks) {
-                JSArray networksResponse = new JSArray();
-                for (WiFiAccessPoint accessPoint : networks) {
-                    JSObject network = new JSObject();
-                    network.put("ssid", accessPoint.getWifiName());
-                    network.put("rssi", accessPoint.getRssi());
-                    network.put("auth", that.securityIntToString(accessPoint.getSecurity()));
-                    networksResponse.put(network);
-                }
-                JSObject ret = new JSObject();
-                ret.put("networks", networksResponse);
-                call.resolve(ret);
+                that.resolveTraced(call, "EspProvisioningPlugin.scanWifiList", () -> {
+                    JSObject ret = new JSObject();
+                    ret.put("networks", that.networksToJSArray(networks));
+                    return ret;
+                });
             }
 
             @Override
@@ -346,18 +445,137 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
                 call.reject("WiFi scan failed: " + error.getMessage());
             }
 
+            @Override
+            public void operationCancelled(String operationId) {
+                call.reject("Operation cancelled: " + operationId, "CANCELLED");
+            }
+
+            @Override
+            public void operationTimedOut(long timeout) {
+                call.reject(String.format("WiFi scan timed out after %dms", timeout), "TIMEOUT");
+            }
+
         });
     }
 
     @PluginMethod
-    public void provision(PluginCall call) {
-        if (!this.implementation.assertBluetooth(new BluetoothRequiredCallHandler(call))) return;
+    public void scanWifiListMany(PluginCall call) {
+        String operationId = call.getString("operationId");
+        JSArray deviceNamesArg = call.getArray("deviceNames");
+        if (deviceNamesArg == null || deviceNamesArg.length() == 0) {
+            call.reject("deviceNames is required");
+            return;
+        }
+
+        List<String> deviceNames = new ArrayList<String>();
+        for (int i = 0; i < deviceNamesArg.length(); i++) {
+            String deviceName = deviceNamesArg.optString(i, null);
+            if (deviceName == null) {
+                call.reject("deviceNames must be strings");
+                return;
+            }
+            if (!this.implementation.assertTransport(deviceName, new BluetoothRequiredCallHandler(call))) return;
+            deviceNames.add(deviceName);
+        }
+
+        EspProvisioningPlugin that = this;
+        long timeout = this.timeoutFromCall(call, EspProvisioningBLE.WIFI_SCAN_TIMEOUT);
+        this.implementation.scanWifiListMany(operationId, deviceNames, timeout, new ScanWiFiManyListener() {
+
+            @Override
+            public void deviceScanned(String deviceName, List<WiFiAccessPoint> networks) {
+                JSObject ret = new JSObject();
+                ret.put("deviceName", deviceName);
+                ret.put("networks", that.networksToJSArray(networks));
+                that.notifyListeners("wifiListScanned", ret);
+            }
+
+            @Override
+            public void deviceScanFailed(String deviceName, String reason) {
+                JSObject ret = new JSObject();
+                ret.put("deviceName", deviceName);
+                ret.put("error", reason);
+                that.notifyListeners("wifiListScanned", ret);
+            }
+
+            @Override
+            public void surveyCompleted(WifiSurvey survey) {
+                that.resolveTraced(call, "EspProvisioningPlugin.scanWifiListMany", () -> {
+                    JSArray networksResponse = new JSArray();
+                    for (WifiSurvey.Network network : survey.getNetworks()) {
+                        JSArray rssi = new JSArray();
+                        for (Integer deviceRssi : network.getRssi()) {
+                            rssi.put(deviceRssi == null ? JSONObject.NULL : deviceRssi);
+                        }
+                        JSObject row = new JSObject();
+                        row.put("ssid", network.getSsid());
+                        row.put("auth", that.securityIntToString(network.getSecurity()));
+                        row.put("rssi", rssi);
+                        networksResponse.put(row);
+                    }
+
+                    JSObject failures = new JSObject();
+                    for (Map.Entry<String, String> failure : survey.getFailures().entrySet()) {
+                        failures.put(failure.getKey(), failure.getValue());
+                    }
+
+                    JSObject ret = new JSObject();
+                    ret.put("deviceNames", new JSArray(survey.getDeviceNames()));
+                    ret.put("networks", networksResponse);
+                    ret.put("failures", failures);
+                    return ret;
+                });
+            }
+
+            @Override
+            public void operationCancelled(String operationId) {
+                call.reject("Operation cancelled: " + operationId, "CANCELLED");
+            }
+
+        });
+    }
+
+    @PluginMethod
+    public void getDeviceInfo(PluginCall call) {
+        String deviceName = call.getString("deviceName");
+        if (!this.implementation.assertTransport(deviceName, new BluetoothRequiredCallHandler(call))) return;
+
+        this.implementation.getDeviceInfo(deviceName, new DeviceInfoListener() {
+
+            @Override
+            public void deviceInfoReceived(DeviceInfo deviceInfo) {
+                JSObject ret = new JSObject();
+                if (deviceInfo.getVersion() != null) ret.put("version", deviceInfo.getVersion());
+                if (deviceInfo.getSecurityVersion() >= 0) ret.put("securityVersion", deviceInfo.getSecurityVersion());
+                ret.put("capabilities", new JSArray(deviceInfo.getCapabilities()));
+                if (deviceInfo.getVersionInfo() != null) ret.put("versionInfo", deviceInfo.getVersionInfo());
+                call.resolve(ret);
+            }
+
+            @Override
+            public void deviceNotFound(String deviceName) {
+                call.reject("Device not found: " + deviceName);
+            }
 
+            @Override
+            public void deviceInfoFailed(Exception error) {
+                call.reject("Failed to get device info: " + error.getMessage());
+            }
+
+        });
+    }
+
+    @PluginMethod
+    public void provision(PluginCall call) {
+        String operationId = call.getString("operationId");
         String deviceName = call.getString("deviceName");
+        if (!this.implementation.assertTransport(deviceName, new BluetoothRequiredCallHandler(call))) return;
         String ssid = call.getString("ssid");
         String passPhrase = call.getString("passPhrase");
+        boolean waitForConnected = call.getBoolean("waitForConnected", false);
+        long timeout = this.timeoutFromCall(call, EspProvisioningBLE.PROVISION_TIMEOUT);
 
-        this.implementation.provision(deviceName, ssid, passPhrase, new WifiProvisionListener() {
+        this.implementation.provision(operationId, deviceName, ssid, passPhrase, waitForConnected, timeout, new WifiProvisionListener() {
 
             @Override
             public void provisioningSuccess() {
@@ -371,6 +589,30 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
                 call.reject("WiFi provisioning failed: " + error.getMessage());
             }
 
+            @Override
+            public void stationConnected(long timeToConnected, String ip4Address) {
+                JSObject response = new JSObject();
+                response.put("success", true);
+                response.put("timeToConnected", timeToConnected);
+                response.put("ip", ip4Address);
+                call.resolve(response);
+            }
+
+            @Override
+            public void stationConnectionFailed(String reason, Error error) {
+                call.reject("WiFi provisioning failed: " + error.getMessage(), reason);
+            }
+
+            @Override
+            public void operationCancelled(String operationId) {
+                call.reject("Operation cancelled: " + operationId, "CANCELLED");
+            }
+
+            @Override
+            public void operationTimedOut(long timeout) {
+                call.reject(String.format("WiFi provisioning timed out after %dms", timeout), "TIMEOUT");
+            }
+
             @Override
             public void deviceNotFound(String deviceName) {
                 call.reject("Device not found: " + deviceName);
@@ -381,13 +623,20 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
 
     @PluginMethod
     public void sendCustomDataString(PluginCall call) {
-        if (!this.implementation.assertBluetooth(new BluetoothRequiredCallHandler(call))) return;
-
+        String operationId = call.getString("operationId");
         String deviceName = call.getString("deviceName");
+        if (!this.implementation.assertTransport(deviceName, new BluetoothRequiredCallHandler(call))) return;
         String path = call.getString("path");
         String dataString = call.getString("dataString");
+        long timeout = this.timeoutFromCall(call, EspProvisioningBLE.CUSTOM_DATA_TIMEOUT);
+
+        String compression = call.getString("compression", "none");
+        if (!compression.equals("none") && !compression.equals("deflate")) {
+            call.reject("Unknown compression: " + compression);
+            return;
+        }
 
-        this.implementation.sendCustomDataString(deviceName, path, dataString, new SendCustomDataStringListener() {
+        this.implementation.sendCustomDataString(operationId, deviceName, path, dataString, compression.equals("deflate"), timeout, new SendCustomDataStringListener() {
 
             @Override
             public void sentCustomDataStringWithResponse(String returnString) {
@@ -402,6 +651,16 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
                 call.reject(error.getMessage());
             }
 
+            @Override
+            public void operationCancelled(String operationId) {
+                call.reject("Operation cancelled: " + operationId, "CANCELLED");
+            }
+
+            @Override
+            public void operationTimedOut(long timeout) {
+                call.reject(String.format("Sending custom data timed out after %dms", timeout), "TIMEOUT");
+            }
+
             @Override
             public void deviceNotFound(String deviceName) {
                 call.reject("Device not found: " + deviceName);
@@ -410,6 +669,199 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
         });
     }
 
+    @PluginMethod
+    public void cancel(PluginCall call) {
+        String operationId = call.getString("operationId");
+        if (operationId == null) {
+            call.reject("operationId is required");
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("cancelled", this.implementation.cancel(operationId));
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void watchCustomEndpoint(PluginCall call) {
+        String deviceName = call.getString("deviceName");
+        String path = call.getString("path");
+        if (deviceName == null || path == null) {
+            call.reject("deviceName and path are required");
+            return;
+        }
+
+        long interval = call.getInt("intervalMs", 1000);
+        long maxInterval = call.getInt("maxIntervalMs", 10000);
+        if (interval <= 0) {
+            call.reject("intervalMs must be greater than 0");
+            return;
+        }
+
+        String watchId = this.implementation.watchCustomEndpoint(deviceName, path, call.getString("dataString", ""), interval, maxInterval);
+        if (watchId == null) {
+            call.reject("Device not found: " + deviceName);
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("watchId", watchId);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void unwatch(PluginCall call) {
+        String watchId = call.getString("watchId");
+        if (watchId == null) {
+            call.reject("watchId is required");
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("stopped", this.implementation.unwatch(watchId));
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void startPresenceMonitor(PluginCall call) {
+        if (!this.implementation.assertBluetooth(new BluetoothRequiredCallHandler(call))) return;
+
+        String devicePrefix = call.getString("devicePrefix");
+        if (devicePrefix == null) {
+            call.reject("devicePrefix is required");
+            return;
+        }
+
+        double dutyCycle = call.getDouble("dutyCycle", 0.25);
+        if (dutyCycle <= 0 || dutyCycle > 1) {
+            call.reject("dutyCycle must be greater than 0 and at most 1");
+            return;
+        }
+
+        int scanMode;
+        switch (call.getString("scanMode", "lowPower")) {
+            case "lowPower":
+                scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+                break;
+            case "balanced":
+                scanMode = ScanSettings.SCAN_MODE_BALANCED;
+                break;
+            case "lowLatency":
+                scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+                break;
+            default:
+                call.reject("Unknown scanMode: " + call.getString("scanMode"));
+                return;
+        }
+
+        long lostAfter = call.getInt("lostAfterMs", 30000);
+        this.implementation.startPresenceMonitor(devicePrefix, scanMode, dutyCycle, lostAfter);
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void stopPresenceMonitor(PluginCall call) {
+        JSObject ret = new JSObject();
+        ret.put("stopped", this.implementation.stopPresenceMonitor());
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void queryHistory(PluginCall call) {
+        long since = call.getDouble("since", 0.0).longValue();
+        int limit = call.getInt("limit", 100);
+        String outcome = call.getString("outcome");
+        EspProvisioningPlugin that = this;
+
+        this.implementation.queryHistory(since, limit, outcome, new QueryHistoryListener() {
+
+            @Override
+            public void historyFound(List<HistoryEntry> entries) {
+                that.resolveTraced(call, "EspProvisioningPlugin.queryHistory", () -> {
+                    JSArray entriesResponse = new JSArray();
+                    for (HistoryEntry entry : entries) {
+                        entriesResponse.put(that.historyEntryToJSObject(entry));
+                    }
+                    JSObject ret = new JSObject();
+                    ret.put("entries", entriesResponse);
+                    return ret;
+                });
+            }
+
+            @Override
+            public void historyFailed(Exception e) {
+                call.reject("Couldn't read history: " + e.getMessage());
+            }
+
+        });
+    }
+
+    @PluginMethod
+    public void exportHistory(PluginCall call) {
+        this.implementation.exportHistory(new ExportHistoryListener() {
+
+            @Override
+            public void historyExported(File file, int count) {
+                JSObject ret = new JSObject();
+                ret.put("path", file.getAbsolutePath());
+                ret.put("count", count);
+                call.resolve(ret);
+            }
+
+            @Override
+            public void historyFailed(Exception e) {
+                call.reject("Couldn't export history: " + e.getMessage());
+            }
+
+        });
+    }
+
+    @PluginMethod
+    public void startTrace(PluginCall call) {
+        File file;
+        try {
+            file = this.implementation.startTrace();
+        } catch (IOException e) {
+            call.reject("Couldn't start trace: " + e.getMessage());
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("path", file.getAbsolutePath());
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void stopTrace(PluginCall call) {
+        TraceRecorder recorder = this.implementation.stopTrace();
+        if (recorder == null) {
+            call.reject("No trace is being recorded");
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("path", recorder.getFile().getAbsolutePath());
+        ret.put("events", recorder.getEventCount());
+        call.resolve(ret);
+    }
+
+    private JSObject historyEntryToJSObject(HistoryEntry entry) {
+        JSObject ret = new JSObject();
+        ret.put("timestamp", entry.getTimestamp());
+        ret.put("deviceName", entry.getDeviceName());
+        if (entry.getAddress() != null) ret.put("address", entry.getAddress());
+        ret.put("outcome", entry.getOutcome());
+        ret.put("phase", entry.getPhase());
+        if (entry.getConnectTime() >= 0) ret.put("connectTime", entry.getConnectTime());
+        if (entry.getHandshakeTime() >= 0) ret.put("handshakeTime", entry.getHandshakeTime());
+        if (entry.getProvisionTime() >= 0) ret.put("provisionTime", entry.getProvisionTime());
+        if (entry.getTimeToConnected() >= 0) ret.put("timeToConnected", entry.getTimeToConnected());
+        ret.put("retries", entry.getRetries());
+        if (entry.getFailureReason() != null) ret.put("failureReason", entry.getFailureReason());
+        if (entry.getMessage() != null) ret.put("message", entry.getMessage());
+        return ret;
+    }
+
     @PluginMethod
     public void disconnect(PluginCall call) {
         String deviceName = call.getString("deviceName");
@@ -455,6 +907,32 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
         call.resolve(ret);
     }
 
+    @PluginMethod
+    public void warmUp(PluginCall call) {
+        this.implementation.warmUp(new WarmUpListener() {
+
+            @Override
+            public void warmedUp(WarmUpMetrics metrics) {
+                JSObject ret = new JSObject();
+                ret.put("totalTime", metrics.getTotalTime());
+                ret.put("provisionManagerTime", metrics.getProvisionManagerTime());
+                ret.put("adapterTime", metrics.getAdapterTime());
+                ret.put("capabilitiesTime", metrics.getCapabilitiesTime());
+                ret.put("permissionsTime", metrics.getPermissionsTime());
+                ret.put("bleSupported", metrics.isBleSupported());
+                ret.put("bleEnabled", metrics.isBleEnabled());
+                ret.put("permissionsGranted", metrics.isPermissionsGranted());
+                call.resolve(ret);
+            }
+
+            @Override
+            public void warmUpFailed(Exception e) {
+                call.reject("Warm-up failed: " + e.getMessage());
+            }
+
+        });
+    }
+
     @PluginMethod
     public void enableLogging(PluginCall call){
         this.implementation.setLoggingEnabled(true);
@@ -467,6 +945,37 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
         call.resolve();
     }
 
+    @PluginMethod
+    public void enableSystemTracing(PluginCall call){
+        this.implementation.setSystemTracingEnabled(true);
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void disableSystemTracing(PluginCall call){
+        this.implementation.setSystemTracingEnabled(false);
+        call.resolve();
+    }
+
+    /**
+     * Resolves with what build returns, inside a trace section so building large results shows up on the timeline.
+     */
+    private void resolveTraced(PluginCall call, String sectionName, Supplier<JSObject> build) {
+        PhaseTracer tracer = this.implementation.getPhaseTracer();
+        tracer.beginSection(sectionName);
+        try {
+            call.resolve(build.get());
+        } finally {
+            tracer.endSection();
+        }
+    }
+
+    private long timeoutFromCall(PluginCall call, long defaultTimeout) {
+        Integer timeout = call.getInt("timeout");
+        if (timeout == null) return defaultTimeout;
+        return timeout;
+    }
+
     private ESPConstants.TransportType transportTypeFromString(String transportString){
         switch (transportString){
             case "ble":
@@ -484,6 +993,8 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
                 return ESPConstants.SecurityType.SECURITY_0;
             case "secure":
                 return ESPConstants.SecurityType.SECURITY_1;
+            case "secure2":
+                return ESPConstants.SecurityType.SECURITY_2;
             default:
                 throw new Error("Unknown security type: " + securityString);
         }
@@ -496,9 +1007,75 @@ public class EspProvisioningPlugin extends Plugin implements EspProvisioningEven
         this.notifyListeners("deviceDisconnected", ret);
     }
 
+    @Override
+    public void idleSessionClosed(String deviceName) {
+        JSObject ret = new JSObject();
+        ret.put("deviceName", deviceName);
+        ret.put("reason", "idle");
+        this.notifyListeners("deviceDisconnected", ret);
+    }
+
+    @Override
+    public void deviceReconnecting(String deviceName, int attempt, long delay) {
+        JSObject ret = new JSObject();
+        ret.put("deviceName", deviceName);
+        ret.put("attempt", attempt);
+        ret.put("delay", delay);
+        this.notifyListeners("reconnecting", ret);
+    }
+
+    @Override
+    public void deviceReconnected(String deviceName, int attempts) {
+        JSObject ret = new JSObject();
+        ret.put("deviceName", deviceName);
+        ret.put("attempts", attempts);
+        this.notifyListeners("reconnected", ret);
+    }
+
+    @Override
+    public void customDataChanged(String watchId, String deviceName, String path, String returnString) {
+        JSObject ret = new JSObject();
+        ret.put("watchId", watchId);
+        ret.put("deviceName", deviceName);
+        ret.put("path", path);
+        ret.put("returnString", returnString);
+        this.notifyListeners("customData", ret);
+    }
+
+    @Override
+    public void deviceAppeared(String deviceName, int rssi) {
+        JSObject ret = new JSObject();
+        ret.put("deviceName", deviceName);
+        ret.put("rssi", rssi);
+        this.notifyListeners("deviceAppeared", ret);
+    }
+
+    @Override
+    public void deviceLost(String deviceName) {
+        JSObject ret = new JSObject();
+        ret.put("deviceName", deviceName);
+        this.notifyListeners("deviceLost", ret);
+    }
+
+    @Override
+    public void deviceRssiChanged(String deviceName, int rssi) {
+        JSObject ret = new JSObject();
+        ret.put("deviceName", deviceName);
+        ret.put("rssi", rssi);
+        this.notifyListeners("rssiChanged", ret);
+    }
+
     @Override
     public void bluetoothStateChange(int state) {
-        this.notifyListeners("statusUpdate", this.buildStatus());
+        JSObject status = this.buildStatus();
+
+        // Different adapter states often map to the same status (TURNING_OFF and OFF are both poweredOn=false)
+        String statusKey = status.toString();
+        if (statusKey.equals(this.lastStatusUpdate)) return;
+        this.lastStatusUpdate = statusKey;
+
+        status.put("adapterState", state);
+        this.notifyListeners("statusUpdate", status);
     }
 
 }
@@ -0,0 +1,233 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+/**
+ * One provisioning outcome as kept by ProvisioningHistory. Timings are in milliseconds, -1 when the session never got
+ * that far.
+ *
+ * Stored as one tab separated line per entry, oldest first. The first field is a format version so the layout can
+ * grow without breaking logs already on a device.
+ */
+public class HistoryEntry {
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_FAILED = "failed";
+    public static final String OUTCOME_TIMEOUT = "timeout";
+    public static final String OUTCOME_CANCELLED = "cancelled";
+
+    public static final String PHASE_CONNECT = "connect";
+    public static final String PHASE_SESSION = "session";
+    public static final String PHASE_PROVISION = "provision";
+
+    private static final String FORMAT_VERSION = "1";
+    private static final int FIELD_COUNT = 13;
+
+    private long timestamp;
+    private String deviceName;
+    private String address;
+    private String outcome;
+    private String phase;
+    private long connectTime;
+    private long handshakeTime;
+    private long provisionTime;
+    private long timeToConnected;
+    private int retries;
+    private String failureReason;
+    private String message;
+
+    public HistoryEntry(long timestamp, String deviceName, String address, String outcome, String phase, long connectTime, long handshakeTime, long provisionTime, long timeToConnected, int retries, String failureReason, String message) {
+        this.timestamp = timestamp;
+        this.deviceName = deviceName;
+        this.address = address;
+        this.outcome = outcome;
+        this.phase = phase;
+        this.connectTime = connectTime;
+        this.handshakeTime = handshakeTime;
+        this.provisionTime = provisionTime;
+        this.timeToConnected = timeToConnected;
+        this.retries = retries;
+        this.failureReason = failureReason;
+        this.message = message;
+    }
+
+    /**
+     * Milliseconds since the epoch when the outcome was known.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    /**
+     * The BLE address, or null for SoftAP devices.
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * How far the session got: connect, session (the security handshake) or provision.
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    public long getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    public long getProvisionTime() {
+        return provisionTime;
+    }
+
+    public long getTimeToConnected() {
+        return timeToConnected;
+    }
+
+    /**
+     * Reconnects and repeated provision attempts it took on this session.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * The device reported reason, like AUTH_FAILED or NETWORK_NOT_FOUND, when there was one.
+     */
+    public String getFailureReason() {
+        return failureReason;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    String toLine() {
+        StringBuilder line = new StringBuilder(128);
+        line.append(FORMAT_VERSION);
+        appendField(line, Long.toString(this.timestamp));
+        appendField(line, this.deviceName);
+        appendField(line, this.address);
+        appendField(line, this.outcome);
+        appendField(line, this.phase);
+        appendField(line, Long.toString(this.connectTime));
+        appendField(line, Long.toString(this.handshakeTime));
+        appendField(line, Long.toString(this.provisionTime));
+        appendField(line, Long.toString(this.timeToConnected));
+        appendField(line, Integer.toString(this.retries));
+        appendField(line, this.failureReason);
+        appendField(line, this.message);
+        return line.toString();
+    }
+
+    /**
+     * Returns null for lines it can't read, like a line cut short by the app being killed mid-write.
+     */
+    static HistoryEntry fromLine(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < FIELD_COUNT || !fields[0].equals(FORMAT_VERSION)) return null;
+
+        try {
+            return new HistoryEntry(
+                    Long.parseLong(fields[1]),
+                    unescape(fields[2]),
+                    unescape(fields[3]),
+                    unescape(fields[4]),
+                    unescape(fields[5]),
+                    Long.parseLong(fields[6]),
+                    Long.parseLong(fields[7]),
+                    Long.parseLong(fields[8]),
+                    Long.parseLong(fields[9]),
+                    Integer.parseInt(fields[10]),
+                    unescape(fields[11]),
+                    unescape(fields[12]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads just the timestamp, so entries can be skipped without parsing the rest. Returns -1 if it can't.
+     */
+    static long timestampOf(String line) {
+        int start = line.indexOf('\t');
+        if (start < 0) return -1;
+        int end = line.indexOf('\t', start + 1);
+        if (end < 0) return -1;
+
+        try {
+            return Long.parseLong(line.substring(start + 1, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void appendField(StringBuilder line, String value) {
+        line.append('\t');
+        if (value == null) {
+            line.append("\\0");
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                default:
+                    line.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String field) {
+        if (field.equals("\\0")) return null;
+        if (field.indexOf('\\') < 0) return field;
+
+        StringBuilder value = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c != '\\' || i + 1 == field.length()) {
+                value.append(c);
+                continue;
+            }
+
+            char escaped = field.charAt(++i);
+            switch (escaped) {
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                default:
+                    value.append(escaped);
+            }
+        }
+        return value.toString();
+    }
+
+}
@@ -0,0 +1,112 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A scan or device operation that has been started but hasn't called back yet. Tracked so it can be cancelled by
+ * the app, and so an unexpected disconnect can either replay it after a reconnect (when it's safe to send again) or
+ * fail it instead of leaving it hanging.
+ *
+ * Background operations are the ones the plugin starts on its own, like endpoint polls. App calls on the same device
+ * wait for them to settle before sending anything.
+ */
+class InFlightOperation {
+
+    private final String operationId;
+    private final String deviceName;
+    private final String phase;
+    private final Runnable replay;
+    private final Consumer<Error> abort;
+    private final Runnable cancel;
+    private final boolean background;
+    private final CompletableFuture<Void> settled = new CompletableFuture<Void>();
+    private volatile boolean superseded = false;
+    private volatile TimeoutScheduler.Timeout deadline;
+
+    InFlightOperation(String operationId, String deviceName, String phase, Runnable replay, Consumer<Error> abort, Runnable cancel) {
+        this(operationId, deviceName, phase, replay, abort, cancel, false);
+    }
+
+    InFlightOperation(String operationId, String deviceName, String phase, Runnable replay, Consumer<Error> abort, Runnable cancel, boolean background) {
+        this.operationId = operationId;
+        this.deviceName = deviceName;
+        this.phase = phase;
+        this.replay = replay;
+        this.abort = abort;
+        this.cancel = cancel;
+        this.background = background;
+    }
+
+    String getOperationId() {
+        return operationId;
+    }
+
+    /**
+     * Null for operations that aren't tied to a device, like scans.
+     */
+    String getDeviceName() {
+        return deviceName;
+    }
+
+    /**
+     * The PhaseSlices phase the operation is traced as.
+     */
+    String getPhase() {
+        return phase;
+    }
+
+    boolean isBackground() {
+        return background;
+    }
+
+    /**
+     * Completes once the operation is superseded, however that happened.
+     */
+    CompletableFuture<Void> getSettled() {
+        return settled;
+    }
+
+    boolean isReplayable() {
+        return this.replay != null;
+    }
+
+    void replay() {
+        this.replay.run();
+    }
+
+    void abort(Error error) {
+        this.abort.accept(error);
+    }
+
+    /**
+     * Releases whatever the operation holds (scan, GATT connect, timeout) and tells the caller it was cancelled.
+     */
+    void cancel() {
+        this.cancel.run();
+    }
+
+    /**
+     * Once superseded, any late callback from the original attempt is ignored - the operation has already finished or been
+     * failed, cancelled or handed to a replay.
+     */
+    boolean isSuperseded() {
+        return superseded;
+    }
+
+    void supersede() {
+        this.superseded = true;
+        this.clearDeadline();
+        this.settled.complete(null);
+    }
+
+    void setDeadline(TimeoutScheduler.Timeout deadline) {
+        this.deadline = deadline;
+    }
+
+    void clearDeadline() {
+        TimeoutScheduler.Timeout deadline = this.deadline;
+        if (deadline != null) deadline.cancel();
+    }
+
+}
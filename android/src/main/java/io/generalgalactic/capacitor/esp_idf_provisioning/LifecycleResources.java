@@ -0,0 +1,132 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What EspProvisioningBLE holds outside of itself - receivers, subscribers, threads, native state - tied to the
+ * lifecycle of the activity it was created for. Anything registered with the system pins the plugin, the bridge and
+ * the activity behind it until it's unregistered, so a plugin that's destroyed without letting go leaks all of them
+ * on every reload or configuration change.
+ *
+ * - registrations are registered by start() (load and resume) and unregistered by stop() and close()
+ * - start() only registers what isn't registered already, so calling it again on every resume is fine
+ * - closeables are closed by close() (destroy), newest first, after the registrations are gone
+ * - once closed, start() does nothing, registrations added are ignored and closeables added are closed straight away
+ */
+public class LifecycleResources {
+
+    public interface Registration {
+
+        void register();
+
+        void unregister();
+
+    }
+
+    private final Map<String, Registration> registrations = new LinkedHashMap<String, Registration>();
+    private final Map<String, Registration> registered = new LinkedHashMap<String, Registration>();
+    private final Deque<AutoCloseable> closeables = new ArrayDeque<AutoCloseable>();
+    private boolean started = false;
+    private boolean closed = false;
+
+    /**
+     * Adds a registration under a name. It's registered right away if the resources have been started.
+     */
+    public synchronized void add(String name, Registration registration) {
+        if (this.closed) return;
+        if (this.registrations.containsKey(name)) throw new IllegalArgumentException(String.format("%s is already added", name));
+
+        this.registrations.put(name, registration);
+        if (this.started) {
+            registration.register();
+            this.registered.put(name, registration);
+        }
+    }
+
+    public void addCloseable(AutoCloseable closeable) {
+        synchronized (this) {
+            if (!this.closed) {
+                this.closeables.push(closeable);
+                return;
+            }
+        }
+        close(closeable);
+    }
+
+    /**
+     * Registers everything that isn't registered.
+     */
+    public synchronized void start() {
+        if (this.closed) return;
+        this.started = true;
+
+        for (Map.Entry<String, Registration> entry : this.registrations.entrySet()) {
+            if (this.registered.containsKey(entry.getKey())) continue;
+            entry.getValue().register();
+            this.registered.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Unregisters everything that's registered. A later start() registers it all again.
+     */
+    public synchronized void stop() {
+        this.started = false;
+
+        for (Registration registration : this.registered.values()) {
+            unregister(registration);
+        }
+        this.registered.clear();
+    }
+
+    /**
+     * Unregisters everything and closes the closeables. A closeable that fails doesn't stop the rest from closing.
+     */
+    public void close() {
+        Deque<AutoCloseable> closeables;
+        synchronized (this) {
+            if (this.closed) return;
+            this.stop();
+            this.closed = true;
+            this.registrations.clear();
+            closeables = new ArrayDeque<AutoCloseable>(this.closeables);
+            this.closeables.clear();
+        }
+
+        for (AutoCloseable closeable : closeables) {
+            close(closeable);
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    public synchronized int getRegisteredCount() {
+        return this.registered.size();
+    }
+
+    public synchronized int getCloseableCount() {
+        return this.closeables.size();
+    }
+
+    private static void unregister(Registration registration) {
+        try {
+            registration.unregister();
+        } catch (RuntimeException ignored) {
+            // Already gone - Context.unregisterReceiver() throws for a receiver it doesn't know
+        }
+    }
+
+    private static void close(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+            // Teardown carries on - one stuck resource mustn't keep the others alive
+        }
+    }
+
+}
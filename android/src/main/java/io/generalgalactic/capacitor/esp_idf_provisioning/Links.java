@@ -0,0 +1,67 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every device with its link up, by name, including ones still doing the session handshake. Something has to listen
+ * for link state while a link is up, and only then - a registered listener pins the plugin - so the listener is
+ * registered with the first link and unregistered with the last.
+ */
+class Links<D> {
+
+    private final Map<String, D> links = new HashMap<String, D>();
+    private final LifecycleResources.Registration listener;
+    private boolean listening = false;
+
+    Links(LifecycleResources.Registration listener) {
+        this.listener = listener;
+    }
+
+    synchronized void add(String deviceName, D device) {
+        this.links.put(deviceName, device);
+        if (this.listening) return;
+        this.listener.register();
+        this.listening = true;
+    }
+
+    synchronized D remove(String deviceName) {
+        D device = this.links.remove(deviceName);
+        if (this.links.isEmpty() && this.listening) {
+            this.listener.unregister();
+            this.listening = false;
+        }
+        return device;
+    }
+
+    /**
+     * Only removes the link if it's still this device's - a reconnect may have replaced it.
+     */
+    synchronized void remove(String deviceName, D device) {
+        if (this.links.get(deviceName) == device) this.remove(deviceName);
+    }
+
+    synchronized D get(String deviceName) {
+        if (deviceName == null) return null;
+        return this.links.get(deviceName);
+    }
+
+    synchronized List<String> getDeviceNames() {
+        return new ArrayList<String>(this.links.keySet());
+    }
+
+    synchronized Map<String, D> snapshot() {
+        return new HashMap<String, D>(this.links);
+    }
+
+    synchronized int size() {
+        return this.links.size();
+    }
+
+    synchronized boolean isListening() {
+        return this.listening;
+    }
+
+}
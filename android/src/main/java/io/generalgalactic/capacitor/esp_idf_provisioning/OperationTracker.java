@@ -0,0 +1,253 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Every operation in flight, plus the ones suspended while their device reconnects. Each is traced as a phase from
+ * the time it begins until it's finished, timed out, aborted or cancelled - whichever comes first wins, and every
+ * later callback for it is ignored.
+ *
+ * Nothing is called out to while the lock is held: aborts, cancels, replays and timeouts run after it's let go, and
+ * timeouts run on the callback executor.
+ */
+class OperationTracker {
+
+    private final PhaseSlices phases;
+    private final TimeoutScheduler timeoutScheduler;
+    private final Executor callbackExecutor;
+    private final Consumer<String> touched;
+    private final List<InFlightOperation> inFlightOperations = new ArrayList<InFlightOperation>();
+    private final List<InFlightOperation> suspendedOperations = new ArrayList<InFlightOperation>();
+
+    /**
+     * touched is told the device name whenever one of its operations finishes, so the connection scheduler can count
+     * the session as in use.
+     */
+    OperationTracker(PhaseSlices phases, TimeoutScheduler timeoutScheduler, Executor callbackExecutor, Consumer<String> touched) {
+        this.phases = phases;
+        this.timeoutScheduler = timeoutScheduler;
+        this.callbackExecutor = callbackExecutor;
+        this.touched = touched;
+    }
+
+    InFlightOperation begin(String operationId, String deviceName, String phase, Runnable replay, Consumer<Error> abort, Runnable cancel) {
+        return this.begin(operationId, deviceName, phase, replay, abort, cancel, false);
+    }
+
+    synchronized InFlightOperation begin(String operationId, String deviceName, String phase, Runnable replay, Consumer<Error> abort, Runnable cancel, boolean background) {
+        InFlightOperation operation = new InFlightOperation(operationId, deviceName, phase, replay, abort, cancel, background);
+        this.inFlightOperations.add(operation);
+        this.phases.begin(deviceName, phase);
+        return operation;
+    }
+
+    /**
+     * Starts work the plugin does on its own, like an endpoint poll. Returns null without starting anything while
+     * another operation is in flight on the device, so background work never goes out on top of an app call.
+     */
+    synchronized InFlightOperation beginBackground(String deviceName, String phase, Consumer<Error> abort, Runnable cancel) {
+        if (this.hasInFlight(deviceName)) return null;
+        return this.begin(null, deviceName, phase, null, abort, cancel, true);
+    }
+
+    /**
+     * Runs start once the background operations in flight on the device have answered - protocomm only takes one
+     * request at a time, so an app call sent on top of one would fail. Straight away if there are none, otherwise on
+     * the callback executor, and only if the operation is still in flight by then. Returns how many it waits for.
+     */
+    int afterBackgroundWork(String deviceName, InFlightOperation operation, Runnable start) {
+        List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+        synchronized (this) {
+            for (InFlightOperation other : this.inFlightOperations) {
+                if (other.isBackground() && deviceName.equals(other.getDeviceName())) pending.add(other.getSettled());
+            }
+        }
+
+        if (pending.isEmpty()) {
+            start.run();
+            return 0;
+        }
+
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((result, error) -> {
+            if (!this.isInFlight(operation)) return; // timed out, cancelled or disconnected while waiting
+            start.run();
+        }, this.callbackExecutor);
+        return pending.size();
+    }
+
+    /**
+     * Returns false when the operation was already finished, timed out, failed or replayed, in which case the callback
+     * must be ignored. Only the first caller gets true.
+     */
+    boolean finish(InFlightOperation operation) {
+        synchronized (this) {
+            if (operation.isSuperseded() || !this.inFlightOperations.remove(operation)) return false;
+            // Late callbacks that only check isSuperseded() have to see it as done too
+            operation.supersede();
+        }
+        this.endPhase(operation);
+
+        // Outside the lock - the scheduler calls back into isIdle()
+        if (operation.getDeviceName() != null) this.touched.accept(operation.getDeviceName());
+        return true;
+    }
+
+    /**
+     * Fails the operation with onTimeout if it hasn't finished within the timeout. Finishing, cancelling or
+     * superseding the operation clears the deadline.
+     */
+    void startDeadline(InFlightOperation operation, long timeout, Runnable onTimeout) {
+        if (timeout <= 0) return;
+
+        operation.setDeadline(this.timeoutScheduler.schedule(() -> this.callbackExecutor.execute(() -> {
+            if (!this.finish(operation)) return;
+            onTimeout.run();
+        }), timeout));
+
+        // It may have finished before the deadline was attached
+        if (operation.isSuperseded() || !this.isInFlight(operation)) operation.clearDeadline();
+    }
+
+    synchronized boolean isInFlight(InFlightOperation operation) {
+        return this.inFlightOperations.contains(operation);
+    }
+
+    synchronized boolean hasInFlight(String deviceName) {
+        for (InFlightOperation operation : this.inFlightOperations) {
+            if (deviceName.equals(operation.getDeviceName())) return true;
+        }
+        return false;
+    }
+
+    synchronized int getInFlightCount() {
+        return this.inFlightOperations.size();
+    }
+
+    synchronized int getSuspendedCount() {
+        return this.suspendedOperations.size();
+    }
+
+    /**
+     * Puts the device's replayable operations aside until resume(), and aborts the rest.
+     */
+    void suspend(String deviceName) {
+        List<InFlightOperation> aborted = new ArrayList<InFlightOperation>();
+
+        synchronized (this) {
+            for (InFlightOperation operation : take(this.inFlightOperations, deviceName)) {
+                operation.supersede();
+                this.endPhase(operation);
+                if (operation.isReplayable()) {
+                    this.suspendedOperations.add(operation);
+                } else {
+                    aborted.add(operation);
+                }
+            }
+        }
+
+        for (InFlightOperation operation : aborted) {
+            operation.abort(new Error("Device disconnected unexpectedly"));
+        }
+    }
+
+    /**
+     * Replays the device's suspended operations. Returns how many there were.
+     */
+    int resume(String deviceName) {
+        List<InFlightOperation> resumed;
+        synchronized (this) {
+            resumed = take(this.suspendedOperations, deviceName);
+        }
+
+        for (InFlightOperation operation : resumed) {
+            operation.replay();
+        }
+        return resumed.size();
+    }
+
+    /**
+     * Fails every operation on the device, suspended ones included, with the error.
+     */
+    void abort(String deviceName, Error error) {
+        List<InFlightOperation> aborted = new ArrayList<InFlightOperation>();
+
+        synchronized (this) {
+            aborted.addAll(take(this.inFlightOperations, deviceName));
+            aborted.addAll(take(this.suspendedOperations, deviceName));
+        }
+
+        for (InFlightOperation operation : aborted) {
+            // Suspended operations are already superseded but still owe their caller an answer
+            operation.supersede();
+            this.endPhase(operation);
+            operation.abort(error);
+        }
+    }
+
+    /**
+     * Cancels every operation started with the given operationId. Returns false if nothing was running under it.
+     */
+    boolean cancel(String operationId) {
+        if (operationId == null) return false;
+
+        List<InFlightOperation> cancelled = new ArrayList<InFlightOperation>();
+
+        synchronized (this) {
+            for (InFlightOperation operation : this.inFlightOperations) {
+                if (operationId.equals(operation.getOperationId())) cancelled.add(operation);
+            }
+            for (InFlightOperation operation : this.suspendedOperations) {
+                if (operationId.equals(operation.getOperationId())) cancelled.add(operation);
+            }
+            this.inFlightOperations.removeAll(cancelled);
+            this.suspendedOperations.removeAll(cancelled);
+        }
+
+        this.cancel(cancelled);
+        return !cancelled.isEmpty();
+    }
+
+    /**
+     * Cancels everything, in flight or suspended.
+     */
+    void cancelAll() {
+        List<InFlightOperation> cancelled = new ArrayList<InFlightOperation>();
+
+        synchronized (this) {
+            cancelled.addAll(this.inFlightOperations);
+            cancelled.addAll(this.suspendedOperations);
+            this.inFlightOperations.clear();
+            this.suspendedOperations.clear();
+        }
+
+        this.cancel(cancelled);
+    }
+
+    private void cancel(List<InFlightOperation> cancelled) {
+        for (InFlightOperation operation : cancelled) {
+            operation.supersede();
+            this.endPhase(operation);
+            operation.cancel();
+        }
+    }
+
+    private void endPhase(InFlightOperation operation) {
+        this.phases.end(operation.getDeviceName(), operation.getPhase());
+    }
+
+    private static List<InFlightOperation> take(List<InFlightOperation> operations, String deviceName) {
+        List<InFlightOperation> taken = new ArrayList<InFlightOperation>();
+        if (deviceName == null) return taken; // scans aren't tied to a device
+
+        for (InFlightOperation operation : operations) {
+            if (deviceName.equals(operation.getDeviceName())) taken.add(operation);
+        }
+        operations.removeAll(taken);
+        return taken;
+    }
+
+}
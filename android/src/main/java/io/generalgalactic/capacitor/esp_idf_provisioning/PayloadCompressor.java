@@ -0,0 +1,105 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates custom endpoint payloads. A compressed payload is a NUL byte followed by a zlib stream - text never starts
+ * with NUL, so the firmware can tell the two apart and answer in kind. Payloads under the threshold, or ones that
+ * don't get any smaller, are sent as they are.
+ *
+ * The Deflater, Inflater and buffers are kept between calls instead of allocating native zlib state for every
+ * payload, so calls are serialised. The native state is only allocated once a payload needs it, and has to be freed
+ * with release().
+ */
+class PayloadCompressor {
+
+    static final byte COMPRESSED_FLAG = 0x00;
+    static final int DEFAULT_THRESHOLD = 256;
+
+    private final int threshold;
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean released = false;
+    private final byte[] buffer = new byte[4096];
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(4096);
+
+    PayloadCompressor() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    PayloadCompressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    synchronized byte[] compress(byte[] data) {
+        if (data.length < this.threshold) return data;
+        this.assertNotReleased();
+
+        if (this.deflater == null) {
+            this.deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        } else {
+            this.deflater.reset();
+        }
+        this.deflater.setInput(data);
+        this.deflater.finish();
+
+        this.output.reset();
+        this.output.write(COMPRESSED_FLAG);
+        while (!this.deflater.finished()) {
+            int length = this.deflater.deflate(this.buffer);
+            this.output.write(this.buffer, 0, length);
+        }
+
+        if (this.output.size() >= data.length) return data;
+        return this.output.toByteArray();
+    }
+
+    static boolean isCompressed(byte[] data) {
+        return data.length > 0 && data[0] == COMPRESSED_FLAG;
+    }
+
+    /**
+     * Inflates a payload flagged as compressed. Anything else is returned untouched.
+     */
+    synchronized byte[] decompress(byte[] data) throws DataFormatException {
+        if (!isCompressed(data)) return data;
+        this.assertNotReleased();
+
+        if (this.inflater == null) {
+            this.inflater = new Inflater();
+        } else {
+            this.inflater.reset();
+        }
+        this.inflater.setInput(data, 1, data.length - 1);
+
+        this.output.reset();
+        while (!this.inflater.finished()) {
+            int length = this.inflater.inflate(this.buffer);
+            if (length == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+                throw new DataFormatException("Compressed payload is truncated");
+            }
+            this.output.write(this.buffer, 0, length);
+        }
+
+        return this.output.toByteArray();
+    }
+
+    /**
+     * Frees the native zlib state. The compressor can't be used afterwards. Calling it again does nothing.
+     */
+    synchronized void release() {
+        this.released = true;
+        if (this.deflater != null) this.deflater.end();
+        if (this.inflater != null) this.inflater.end();
+        this.deflater = null;
+        this.inflater = null;
+    }
+
+    private void assertNotReleased() {
+        if (this.released) throw new IllegalStateException("PayloadCompressor has been released");
+    }
+
+}
@@ -0,0 +1,131 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Async slices for the phases of a session, one track per device. A phase starts on one thread and usually ends on
+ * the callback thread, and sometimes ends twice (a timeout racing a late callback) or not at all (a link that drops),
+ * so open slices are tracked:
+ *
+ * - each phase is open at most once per device - a second begin is ignored
+ * - ending a phase that isn't open does nothing
+ * - ending a phase ends its sub-phases too (connect ends connect.queued), so failure paths only end the top one
+ * - endAll() closes whatever a device still has open, for when it disconnects
+ *
+ * With the NONE tracer, begin and end return before touching any of that.
+ */
+public class PhaseSlices {
+
+    public static final String SCAN = "scan";
+    public static final String CONNECT_QUEUED = "connect.queued";
+    public static final String CONNECT = "connect";
+    public static final String CONNECT_INIT_SESSION = "connect.initSession";
+    public static final String SCAN_NETWORKS = "scanNetworks";
+    public static final String PROVISION = "provision";
+    public static final String PROVISION_SEND_CONFIG = "provision.sendConfig";
+    public static final String PROVISION_APPLY_CONFIG = "provision.applyConfig";
+    public static final String PROVISION_WAIT_FOR_STATION = "provision.waitForStation";
+    public static final String PREFETCH_WIFI_LIST = "prefetch.wifiList";
+    public static final String PREFETCH_VERSION_INFO = "prefetch.versionInfo";
+    public static final String DEVICE_INFO = "deviceInfo";
+    private static final String CUSTOM_DATA_PREFIX = "customData:";
+
+    private volatile PhaseTracer tracer;
+    private final Map<String, Set<String>> open = new ConcurrentHashMap<String, Set<String>>();
+
+    public PhaseSlices() {
+        this(PhaseTracer.NONE);
+    }
+
+    public PhaseSlices(PhaseTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public PhaseTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Swaps the tracer. Slices still open on the old one are ended there, so none are left dangling.
+     */
+    public synchronized void setTracer(PhaseTracer tracer) {
+        PhaseTracer previous = this.tracer;
+        this.tracer = tracer;
+
+        for (String key : new ArrayList<String>(this.open.keySet())) {
+            Set<String> phases = this.open.remove(key);
+            if (phases == null) continue;
+            String deviceName = key.isEmpty() ? null : key;
+            for (String phase : phases) {
+                previous.endAsyncSection(sliceName(deviceName, phase), cookie(deviceName));
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.tracer.isEnabled();
+    }
+
+    public void begin(String deviceName, String phase) {
+        PhaseTracer tracer = this.tracer;
+        if (!tracer.isEnabled()) return;
+
+        Set<String> phases = this.open.computeIfAbsent(key(deviceName), key -> Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+        if (phases.add(phase)) tracer.beginAsyncSection(sliceName(deviceName, phase), cookie(deviceName));
+    }
+
+    public void end(String deviceName, String phase) {
+        PhaseTracer tracer = this.tracer;
+        if (!tracer.isEnabled()) return;
+
+        Set<String> phases = this.open.get(key(deviceName));
+        if (phases == null) return;
+
+        String prefix = phase + ".";
+        for (String open : phases) {
+            if (open.startsWith(prefix) && phases.remove(open)) tracer.endAsyncSection(sliceName(deviceName, open), cookie(deviceName));
+        }
+        if (phases.remove(phase)) tracer.endAsyncSection(sliceName(deviceName, phase), cookie(deviceName));
+    }
+
+    public void endAll(String deviceName) {
+        PhaseTracer tracer = this.tracer;
+        if (!tracer.isEnabled()) return;
+
+        Set<String> phases = this.open.remove(key(deviceName));
+        if (phases == null) return;
+        for (String phase : phases) {
+            tracer.endAsyncSection(sliceName(deviceName, phase), cookie(deviceName));
+        }
+    }
+
+    /**
+     * The open phases of a device. Empty when tracing is off.
+     */
+    public List<String> getOpenPhases(String deviceName) {
+        Set<String> phases = this.open.get(key(deviceName));
+        return phases == null ? Collections.<String>emptyList() : new ArrayList<String>(phases);
+    }
+
+    public static String customData(String path) {
+        return CUSTOM_DATA_PREFIX + path;
+    }
+
+    static String sliceName(String deviceName, String phase) {
+        return deviceName == null ? phase : phase + " " + deviceName;
+    }
+
+    static int cookie(String deviceName) {
+        return deviceName == null ? 0 : deviceName.hashCode();
+    }
+
+    private static String key(String deviceName) {
+        return deviceName == null ? "" : deviceName;
+    }
+
+}
@@ -0,0 +1,51 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+/**
+ * Where phase slices go. SystemPhaseTracer writes them to android.os.Trace for Perfetto and systrace. NONE drops
+ * them, and is what's used until tracing is turned on - its methods are empty, so the JIT reduces every call to
+ * nothing.
+ */
+public interface PhaseTracer {
+
+    PhaseTracer NONE = new PhaseTracer() {
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void beginSection(String name) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+
+        @Override
+        public void beginAsyncSection(String name, int cookie) {
+        }
+
+        @Override
+        public void endAsyncSection(String name, int cookie) {
+        }
+
+    };
+
+    boolean isEnabled();
+
+    /**
+     * A slice on the calling thread. Has to be ended on the same thread.
+     */
+    void beginSection(String name);
+
+    void endSection();
+
+    /**
+     * A slice that can start and end on different threads. name and cookie together identify it.
+     */
+    void beginAsyncSection(String name, int cookie);
+
+    void endAsyncSection(String name, int cookie);
+
+}
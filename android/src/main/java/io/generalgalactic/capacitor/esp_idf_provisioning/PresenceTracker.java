@@ -0,0 +1,127 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Last-seen bookkeeping for the presence monitor. Sightings come in from the scan callback as often as the radio
+ * reports them, but only changes are passed on:
+ *
+ * - deviceAppeared the first time a device is seen, and again if it comes back after being lost
+ * - deviceLost once sweep() finds it hasn't been seen for lostAfter
+ * - rssiChanged when the signal has moved at least rssiThreshold dB from the last value reported, and at most once
+ *   every rssiInterval per device
+ *
+ * Times are passed in, in milliseconds, so the scan thread and the sweep timer agree on the clock. The listener is
+ * called outside the lock.
+ */
+public class PresenceTracker {
+
+    public interface Listener {
+
+        void deviceAppeared(String deviceName, int rssi);
+
+        void deviceLost(String deviceName);
+
+        void rssiChanged(String deviceName, int rssi);
+
+    }
+
+    public static final int DEFAULT_RSSI_THRESHOLD = 5;
+    public static final long DEFAULT_RSSI_INTERVAL = 1000;
+
+    private final long lostAfter;
+    private final int rssiThreshold;
+    private final long rssiInterval;
+    private final Listener listener;
+    private final Map<String, Presence> present = new HashMap<String, Presence>();
+
+    public PresenceTracker(long lostAfter, Listener listener) {
+        this(lostAfter, DEFAULT_RSSI_THRESHOLD, DEFAULT_RSSI_INTERVAL, listener);
+    }
+
+    public PresenceTracker(long lostAfter, int rssiThreshold, long rssiInterval, Listener listener) {
+        this.lostAfter = lostAfter;
+        this.rssiThreshold = rssiThreshold;
+        this.rssiInterval = rssiInterval;
+        this.listener = listener;
+    }
+
+    public long getLostAfter() {
+        return lostAfter;
+    }
+
+    public void seen(String deviceName, int rssi, long now) {
+        if (deviceName == null) return;
+
+        boolean appeared = false;
+        boolean rssiChanged = false;
+
+        synchronized (this) {
+            Presence presence = this.present.get(deviceName);
+            if (presence == null) {
+                this.present.put(deviceName, new Presence(rssi, now));
+                appeared = true;
+            } else {
+                presence.lastSeen = now;
+                if (Math.abs(rssi - presence.reportedRssi) >= this.rssiThreshold && now - presence.reportedAt >= this.rssiInterval) {
+                    presence.reportedRssi = rssi;
+                    presence.reportedAt = now;
+                    rssiChanged = true;
+                }
+            }
+        }
+
+        if (appeared) this.listener.deviceAppeared(deviceName, rssi);
+        if (rssiChanged) this.listener.rssiChanged(deviceName, rssi);
+    }
+
+    /**
+     * Drops the devices that haven't been seen for lostAfter and reports them lost.
+     */
+    public void sweep(long now) {
+        List<String> lost = new ArrayList<String>();
+
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Presence>> iterator = this.present.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, Presence> entry = iterator.next();
+                if (now - entry.getValue().lastSeen < this.lostAfter) continue;
+                lost.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+
+        for (String deviceName : lost) {
+            this.listener.deviceLost(deviceName);
+        }
+    }
+
+    public synchronized List<String> getPresent() {
+        return new ArrayList<String>(this.present.keySet());
+    }
+
+    /**
+     * Forgets every device without reporting any of them lost.
+     */
+    public synchronized void clear() {
+        this.present.clear();
+    }
+
+    private static class Presence {
+
+        long lastSeen;
+        int reportedRssi;
+        long reportedAt;
+
+        Presence(int rssi, long now) {
+            this.lastSeen = now;
+            this.reportedRssi = rssi;
+            this.reportedAt = now;
+        }
+
+    }
+
+}
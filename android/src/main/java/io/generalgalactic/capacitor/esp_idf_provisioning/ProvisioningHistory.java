@@ -0,0 +1,237 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only log of provisioning outcomes, kept on the device so support can see which unit was provisioned when,
+ * how long each phase took and why the failures failed.
+ *
+ * Entries are one line each in history.log. Once that passes maxFileSize it's rotated to history.1.log, history.1 to
+ * history.2 and so on, dropping the oldest past maxFiles. Everything runs on one background thread, so appending
+ * never blocks the caller and reads always see whole lines.
+ */
+public class ProvisioningHistory {
+
+    public interface QueryCallback {
+
+        void entriesFound(List<HistoryEntry> entries);
+
+        void queryFailed(Exception e);
+
+    }
+
+    public interface ExportCallback {
+
+        void historyExported(File file, int count);
+
+        void exportFailed(Exception e);
+
+    }
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_FILES = 4;
+
+    private static final String FILE_PREFIX = "history";
+    private static final String FILE_SUFFIX = ".log";
+
+    private final File directory;
+    private final long maxFileSize;
+    private final int maxFiles;
+    // Work handed over after close() is dropped rather than thrown back at the caller
+    private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+        Thread thread = new Thread(runnable, "esp-provisioning-history");
+        thread.setDaemon(true);
+        return thread;
+    }, new ThreadPoolExecutor.DiscardPolicy());
+
+    // Only touched on the executor
+    private OutputStream output;
+    private long size;
+
+    public ProvisioningHistory(File directory) {
+        this(directory, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    public ProvisioningHistory(File directory, long maxFileSize, int maxFiles) {
+        if (maxFiles <= 0) throw new IllegalArgumentException("maxFiles must be greater than 0");
+
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+    }
+
+    public void append(HistoryEntry entry) {
+        this.executor.execute(() -> {
+            try {
+                this.write(entry);
+            } catch (IOException e) {
+                // History is best effort - losing an entry mustn't get in the way of provisioning
+                this.closeOutput();
+            }
+        });
+    }
+
+    /**
+     * Reads back entries at or after since, optionally only those with the given outcome. At most limit entries are
+     * returned, the most recent ones, oldest first. The files are streamed a line at a time, so only the entries being
+     * returned are held in memory.
+     */
+    public void query(long since, int limit, String outcome, QueryCallback callback) {
+        this.executor.execute(() -> {
+            ArrayDeque<HistoryEntry> entries = new ArrayDeque<HistoryEntry>(Math.min(Math.max(limit, 0), 1024));
+
+            try {
+                for (File file : this.filesOldestFirst()) {
+                    try (BufferedReader reader = this.open(file)) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (limit <= 0) break;
+                            if (HistoryEntry.timestampOf(line) < since) continue;
+
+                            HistoryEntry entry = HistoryEntry.fromLine(line);
+                            if (entry == null) continue;
+                            if (outcome != null && !outcome.equals(entry.getOutcome())) continue;
+
+                            if (entries.size() == limit) entries.removeFirst();
+                            entries.addLast(entry);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                callback.queryFailed(e);
+                return;
+            }
+
+            callback.entriesFound(new ArrayList<HistoryEntry>(entries));
+        });
+    }
+
+    /**
+     * Copies the whole history, oldest first, into destination - one file the app can share or upload.
+     */
+    public void export(File destination, ExportCallback callback) {
+        this.executor.execute(() -> {
+            int count = 0;
+
+            try (OutputStream out = new FileOutputStream(destination)) {
+                for (File file : this.filesOldestFirst()) {
+                    try (BufferedReader reader = this.open(file)) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (line.isEmpty()) continue;
+                            out.write(line.getBytes(StandardCharsets.UTF_8));
+                            out.write('\n');
+                            count++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                destination.delete();
+                callback.exportFailed(e);
+                return;
+            }
+
+            callback.historyExported(destination, count);
+        });
+    }
+
+    /**
+     * Finishes what's queued, closes the file and stops the background thread. Anything after that is ignored.
+     */
+    public void close() {
+        this.executor.execute(this::closeOutput);
+        this.executor.shutdown();
+    }
+
+    private void write(HistoryEntry entry) throws IOException {
+        byte[] line = (entry.toLine() + "\n").getBytes(StandardCharsets.UTF_8);
+
+        if (this.output == null) {
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                throw new IOException("Couldn't create " + this.directory);
+            }
+            File current = this.file(0);
+            this.size = current.length();
+            this.output = new FileOutputStream(current, true);
+
+            // The app was killed mid-write - end the torn line, or this entry would be glued onto it
+            if (this.size > 0 && !this.endsWithNewline(current)) {
+                this.output.write('\n');
+                this.size++;
+            }
+        }
+
+        if (this.size > 0 && this.size + line.length > this.maxFileSize) {
+            this.rotate();
+        }
+
+        this.output.write(line);
+        this.output.flush();
+        this.size += line.length;
+    }
+
+    private void rotate() throws IOException {
+        this.closeOutput();
+
+        File oldest = this.file(this.maxFiles - 1);
+        if (oldest.exists() && !oldest.delete()) throw new IOException("Couldn't delete " + oldest);
+
+        for (int i = this.maxFiles - 2; i >= 0; i--) {
+            File file = this.file(i);
+            if (file.exists() && !file.renameTo(this.file(i + 1))) throw new IOException("Couldn't rotate " + file);
+        }
+
+        this.output = new FileOutputStream(this.file(0), true);
+        this.size = 0;
+    }
+
+    private boolean endsWithNewline(File file) throws IOException {
+        try (RandomAccessFile reader = new RandomAccessFile(file, "r")) {
+            reader.seek(reader.length() - 1);
+            return reader.read() == '\n';
+        }
+    }
+
+    private void closeOutput() {
+        if (this.output == null) return;
+        try {
+            this.output.close();
+        } catch (IOException ignored) {
+        }
+        this.output = null;
+    }
+
+    private List<File> filesOldestFirst() {
+        List<File> files = new ArrayList<File>(this.maxFiles);
+        for (int i = this.maxFiles - 1; i >= 0; i--) {
+            File file = this.file(i);
+            if (file.isFile()) files.add(file);
+        }
+        return files;
+    }
+
+    private File file(int index) {
+        String name = index == 0 ? FILE_PREFIX + FILE_SUFFIX : FILE_PREFIX + "." + index + FILE_SUFFIX;
+        return new File(this.directory, name);
+    }
+
+    private BufferedReader open(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    }
+
+}
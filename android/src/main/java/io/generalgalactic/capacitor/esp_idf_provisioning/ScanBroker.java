@@ -0,0 +1,270 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import com.espressif.provisioning.ESPConstants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Shares the radio between searchESPDevices callers, so a background check and a user's search running at the same
+ * time don't restart each other's scans or throw away each other's results:
+ *
+ * - there's one physical scan at a time
+ * - a request joins the running scan when it's for the same transport and the scan's prefix covers its own - a scan
+ *   for "PROV_" sees everything a scan for "PROV_A" would
+ * - each caller gets the devices matching its own prefix, and everything found is published to the registry
+ * - a request that can't join waits. When the scan ends, the waiting requests for the first one's transport start
+ *   the next scan together, for the longest prefix they share
+ * - a partial request that can join takes what the running scan has found so far instead of waiting for the rest
+ * - a scan whose callers have all left is stopped and its results dropped
+ *
+ * Nothing calls back into the Scanner or a Caller while the broker's lock is held.
+ */
+public class ScanBroker {
+
+    /**
+     * Runs the physical scans. Reports back through PhysicalScan's add(), complete() and fail().
+     */
+    public interface Scanner {
+
+        void start(PhysicalScan scan);
+
+        void stop(PhysicalScan scan);
+
+    }
+
+    public interface Caller {
+
+        void scanCompleted(List<DiscoveredBluetoothDevice> devices);
+
+        void scanFailed(Exception e);
+
+    }
+
+    private final DeviceRegistry devices;
+    private final Supplier<Collection<String>> retain;
+    private final Scanner scanner;
+    private PhysicalScan running;
+    private final List<Request> waiting = new ArrayList<Request>();
+
+    /**
+     * retain names the devices each published generation carries over, as in DeviceRegistry.Scan.publish().
+     */
+    public ScanBroker(DeviceRegistry devices, Supplier<Collection<String>> retain, Scanner scanner) {
+        this.devices = devices;
+        this.retain = retain;
+        this.scanner = scanner;
+    }
+
+    public void submit(Request request) {
+        PhysicalScan start = null;
+        List<DiscoveredBluetoothDevice> partial = null;
+
+        synchronized (this) {
+            if (this.running != null && this.running.covers(request)) {
+                if (request.partial) {
+                    partial = matching(this.running.found.getDevices(), request.devicePrefix);
+                } else {
+                    this.running.callers.add(request);
+                }
+            } else if (this.running == null) {
+                start = new PhysicalScan(request.transport, request.devicePrefix, this.devices.beginScan());
+                start.callers.add(request);
+                this.running = start;
+            } else {
+                this.waiting.add(request);
+            }
+        }
+
+        if (partial != null) request.caller.scanCompleted(partial);
+        if (start != null) this.scanner.start(start);
+    }
+
+    /**
+     * Takes the request out of its scan, stopping the scan if nobody else is waiting on it. Returns false if the
+     * request had already been answered.
+     */
+    public boolean leave(Request request) {
+        PhysicalScan stop;
+        PhysicalScan next;
+
+        synchronized (this) {
+            if (this.waiting.remove(request)) return true;
+            if (this.running == null || !this.running.callers.remove(request)) return false;
+            if (!this.running.callers.isEmpty()) return true;
+
+            stop = this.running;
+            next = this.startNext();
+        }
+
+        this.scanner.stop(stop);
+        if (next != null) this.scanner.start(next);
+        return true;
+    }
+
+    /**
+     * A device the running scan has found but not yet published, so one taken from partial results can be connected
+     * to straight away.
+     */
+    public synchronized DiscoveredBluetoothDevice find(String deviceName) {
+        if (this.running == null) return null;
+        return this.running.found.get(deviceName);
+    }
+
+    public synchronized PhysicalScan getRunning() {
+        return this.running;
+    }
+
+    public synchronized int getWaitingCount() {
+        return this.waiting.size();
+    }
+
+    private void finished(PhysicalScan scan, Exception error) {
+        List<Request> callers;
+        PhysicalScan next;
+
+        synchronized (this) {
+            if (this.running != scan) return; // stopped once its callers left - what's left of it isn't wanted
+            callers = new ArrayList<Request>(scan.callers);
+            next = this.startNext();
+        }
+
+        // Outside the lock - publishing asks for the connected device names
+        List<DiscoveredBluetoothDevice> found = error == null ? scan.found.publish(this.retain.get()) : null;
+
+        for (Request request : callers) {
+            if (error != null) {
+                request.caller.scanFailed(error);
+            } else {
+                request.caller.scanCompleted(matching(found, request.devicePrefix));
+            }
+        }
+
+        if (next != null) this.scanner.start(next);
+    }
+
+    /**
+     * Moves the waiting requests that can share a scan into a new running one, or clears running if none are left.
+     */
+    private PhysicalScan startNext() {
+        this.running = null;
+        if (this.waiting.isEmpty()) return null;
+
+        ESPConstants.TransportType transport = this.waiting.get(0).transport;
+        String devicePrefix = null;
+        List<Request> callers = new ArrayList<Request>();
+
+        for (Iterator<Request> iterator = this.waiting.iterator(); iterator.hasNext(); ) {
+            Request request = iterator.next();
+            if (request.transport != transport) continue;
+
+            devicePrefix = devicePrefix == null ? request.devicePrefix : commonPrefix(devicePrefix, request.devicePrefix);
+            callers.add(request);
+            iterator.remove();
+        }
+
+        this.running = new PhysicalScan(transport, devicePrefix, this.devices.beginScan());
+        this.running.callers.addAll(callers);
+        return this.running;
+    }
+
+    private static List<DiscoveredBluetoothDevice> matching(Collection<DiscoveredBluetoothDevice> devices, String devicePrefix) {
+        List<DiscoveredBluetoothDevice> matches = new ArrayList<DiscoveredBluetoothDevice>();
+        for (DiscoveredBluetoothDevice device : devices) {
+            if (device.getName() != null && device.getName().startsWith(devicePrefix)) matches.add(device);
+        }
+        return matches;
+    }
+
+    private static String commonPrefix(String a, String b) {
+        int length = 0;
+        while (length < a.length() && length < b.length() && a.charAt(length) == b.charAt(length)) length++;
+        return a.substring(0, length);
+    }
+
+    /**
+     * One caller's scan.
+     */
+    public static class Request {
+
+        private final ESPConstants.TransportType transport;
+        private final String devicePrefix;
+        private final boolean partial;
+        private final Caller caller;
+
+        public Request(ESPConstants.TransportType transport, String devicePrefix, boolean partial, Caller caller) {
+            this.transport = transport;
+            this.devicePrefix = devicePrefix == null ? "" : devicePrefix;
+            this.partial = partial;
+            this.caller = caller;
+        }
+
+        public ESPConstants.TransportType getTransport() {
+            return transport;
+        }
+
+        public String getDevicePrefix() {
+            return devicePrefix;
+        }
+
+    }
+
+    /**
+     * A scan on the radio, on behalf of every request attached to it.
+     */
+    public class PhysicalScan {
+
+        private final ESPConstants.TransportType transport;
+        private final String devicePrefix;
+        private final DeviceRegistry.Scan found;
+        private final List<Request> callers = new ArrayList<Request>();
+
+        private PhysicalScan(ESPConstants.TransportType transport, String devicePrefix, DeviceRegistry.Scan found) {
+            this.transport = transport;
+            this.devicePrefix = devicePrefix;
+            this.found = found;
+        }
+
+        public ESPConstants.TransportType getTransport() {
+            return transport;
+        }
+
+        public String getDevicePrefix() {
+            return devicePrefix;
+        }
+
+        public int getCallerCount() {
+            synchronized (ScanBroker.this) {
+                return this.callers.size();
+            }
+        }
+
+        /**
+         * Returns false for a repeat sighting or a device without a name.
+         */
+        public boolean add(DiscoveredBluetoothDevice device) {
+            return this.found.add(device);
+        }
+
+        public boolean contains(String deviceName) {
+            return this.found.contains(deviceName);
+        }
+
+        public void complete() {
+            finished(this, null);
+        }
+
+        public void fail(Exception e) {
+            finished(this, e);
+        }
+
+        private boolean covers(Request request) {
+            return request.transport == this.transport && request.devicePrefix.startsWith(this.devicePrefix);
+        }
+
+    }
+
+}
@@ -0,0 +1,189 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The trace format written by TraceRecorder and read by TraceReplayer. A trace is a header followed by events in the
+ * order they happened:
+ *
+ * - type (byte)
+ * - microseconds since the previous event (var long)
+ * - device name, detail (UTF, with a flag byte so either can be null)
+ * - data (var long length, then the bytes - length 0 for none)
+ *
+ * Which detail and data an event carries depends on its type, see the constants.
+ */
+public class SessionTrace {
+
+    private static final int MAGIC = 0x45535054; // "ESPT"
+    private static final int VERSION = 1;
+
+    /** A device seen by a scan. detail is the BLE address ("softap" for SoftAP devices) and the rssi, space separated. */
+    public static final int SCAN_RESULT = 1;
+    /** A DeviceConnectionEvent. detail is the event type. */
+    public static final int CONNECTION_EVENT = 2;
+    /** A request to a device endpoint. detail is the path, data the bytes sent. */
+    public static final int CUSTOM_REQUEST = 3;
+    /** The answer to the oldest open request on the same device and path. data is the bytes received. */
+    public static final int CUSTOM_RESPONSE = 4;
+    /** The oldest open request on the same device and path failed. data is the error message. */
+    public static final int CUSTOM_FAILURE = 5;
+    /** A provisioning callback. detail is its name, followed by the failure reason if there is one. */
+    public static final int PROVISION_CALLBACK = 6;
+
+    public static class Event {
+
+        private final long time;
+        private final int type;
+        private final String deviceName;
+        private final String detail;
+        private final byte[] data;
+
+        /**
+         * time is in microseconds since the trace started.
+         */
+        public Event(long time, int type, String deviceName, String detail, byte[] data) {
+            this.time = time;
+            this.type = type;
+            this.deviceName = deviceName;
+            this.detail = detail;
+            this.data = data == null ? new byte[0] : data;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+    }
+
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private long lastTime = 0;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+        }
+
+        public void write(Event event) throws IOException {
+            this.out.writeByte(event.getType());
+            writeVarLong(this.out, Math.max(0, event.getTime() - this.lastTime));
+            writeString(this.out, event.getDeviceName());
+            writeString(this.out, event.getDetail());
+            writeVarLong(this.out, event.getData().length);
+            this.out.write(event.getData());
+            this.lastTime = Math.max(this.lastTime, event.getTime());
+        }
+
+        public void flush() throws IOException {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+
+    }
+
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private long time = 0;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            if (this.in.readInt() != MAGIC) throw new IOException("Not a session trace");
+            int version = this.in.readUnsignedByte();
+            if (version != VERSION) throw new IOException("Unsupported session trace version " + version);
+        }
+
+        /**
+         * Returns null at the end of the trace. A trace cut short by the app being killed ends at the last whole
+         * event.
+         */
+        public Event next() throws IOException {
+            int type = this.in.read();
+            if (type < 0) return null;
+
+            try {
+                this.time += readVarLong(this.in);
+                String deviceName = readString(this.in);
+                String detail = readString(this.in);
+                byte[] data = new byte[(int) readVarLong(this.in)];
+                this.in.readFully(data);
+                return new Event(this.time, type, deviceName, detail, data);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+
+    }
+
+    public static List<Event> read(InputStream in) throws IOException {
+        List<Event> events = new ArrayList<Event>();
+        Reader reader = new Reader(in);
+        Event event;
+        while ((event = reader.next()) != null) events.add(event);
+        return events;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed var long");
+    }
+
+}
@@ -0,0 +1,248 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import com.espressif.provisioning.listeners.ResponseListener;
+import com.espressif.provisioning.transport.Transport;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.SocketFactory;
+
+/**
+ * Talks to the protocomm HTTP endpoints of a device in SoftAP mode over one kept-alive connection.
+ *
+ * The device ties the security session to the TCP connection, so initSession, scanNetworks, provision and custom
+ * endpoints all have to go down the same socket - and reusing it also saves a TCP handshake per request. If the
+ * connection drops it is not silently replaced: the next request opens a new one, and the device will expect a new
+ * session on it.
+ */
+public class SoftApTransport implements Transport {
+
+    public static final String DEFAULT_HOST = "192.168.4.1";
+    public static final int DEFAULT_PORT = 80;
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 10000;
+
+    private final String host;
+    private final int port;
+    private final SocketFactory socketFactory;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "esp-provisioning-softap");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private int connectionsOpened = 0;
+
+    public SoftApTransport() {
+        this(DEFAULT_HOST, DEFAULT_PORT);
+    }
+
+    public SoftApTransport(String host, int port) {
+        this(host, port, SocketFactory.getDefault());
+    }
+
+    /**
+     * Pass the network's socket factory to make sure requests go over the device's access point even when the phone
+     * would rather route through mobile data.
+     */
+    public SoftApTransport(String host, int port, SocketFactory socketFactory) {
+        this.host = host;
+        this.port = port;
+        this.socketFactory = socketFactory;
+    }
+
+    @Override
+    public void sendConfigData(String path, byte[] data, ResponseListener listener) {
+        this.executor.execute(() -> {
+            byte[] response;
+            try {
+                response = this.post(path, data);
+            } catch (Exception e) {
+                listener.onFailure(e);
+                return;
+            }
+            listener.onSuccess(response);
+        });
+    }
+
+    /**
+     * Blocking POST of data to the endpoint at path. Requests are sent one at a time since they share the socket.
+     */
+    public synchronized byte[] post(String path, byte[] data) throws IOException {
+        try {
+            return this.exchange(path, data);
+        } catch (IOException e) {
+            this.closeSocket();
+            throw e;
+        }
+    }
+
+    /**
+     * How many TCP connections have been opened - stays at 1 as long as keep-alive holds.
+     */
+    public synchronized int getConnectionsOpened() {
+        return connectionsOpened;
+    }
+
+    public void close() {
+        synchronized (this) {
+            this.closeSocket();
+        }
+        this.executor.shutdownNow();
+    }
+
+    private byte[] exchange(String path, byte[] data) throws IOException {
+        this.ensureConnected();
+
+        String head = "POST /" + path + " HTTP/1.1\r\n"
+                + "Host: " + this.host + ":" + this.port + "\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Accept: text/plain\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Content-Length: " + data.length + "\r\n"
+                + "\r\n";
+
+        this.out.write(head.getBytes(StandardCharsets.US_ASCII));
+        this.out.write(data);
+        this.out.flush();
+
+        String statusLine = this.readLine();
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed response from /" + path + ": " + statusLine);
+        }
+        int statusCode = Integer.parseInt(status[1]);
+
+        int contentLength = -1;
+        boolean chunked = false;
+        boolean closeAfter = status[0].equals("HTTP/1.0");
+
+        String header;
+        while (!(header = this.readLine()).isEmpty()) {
+            int colon = header.indexOf(':');
+            if (colon < 0) continue;
+
+            String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = header.substring(colon + 1).trim();
+
+            if (name.equals("content-length")) {
+                contentLength = Integer.parseInt(value);
+            } else if (name.equals("transfer-encoding") && value.equalsIgnoreCase("chunked")) {
+                chunked = true;
+            } else if (name.equals("connection")) {
+                closeAfter = value.equalsIgnoreCase("close");
+            }
+        }
+
+        byte[] body;
+        if (chunked) {
+            body = this.readChunked();
+        } else if (contentLength >= 0) {
+            body = this.readFully(contentLength);
+        } else {
+            body = this.readToEnd();
+            closeAfter = true;
+        }
+
+        if (closeAfter) this.closeSocket();
+
+        if (statusCode != 200) {
+            throw new IOException(String.format(Locale.ROOT, "HTTP %d from /%s", statusCode, path));
+        }
+
+        return body;
+    }
+
+    private void ensureConnected() throws IOException {
+        if (this.socket != null && this.socket.isConnected() && !this.socket.isClosed()) return;
+
+        Socket socket = this.socketFactory.createSocket();
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.setSoTimeout(READ_TIMEOUT);
+        socket.connect(new InetSocketAddress(this.host, this.port), CONNECT_TIMEOUT);
+
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = socket.getOutputStream();
+        this.connectionsOpened++;
+    }
+
+    private void closeSocket() {
+        if (this.socket == null) return;
+        try {
+            this.socket.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with it either way
+        }
+        this.socket = null;
+        this.in = null;
+        this.out = null;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = this.in.read()) != -1) {
+            if (b == '\n') break;
+            if (b != '\r') line.write(b);
+        }
+        if (b == -1 && line.size() == 0) throw new EOFException("Connection closed by device");
+        return line.toString("US-ASCII");
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = this.in.read(buffer, offset, length - offset);
+            if (read == -1) throw new EOFException("Connection closed mid-response");
+            offset += read;
+        }
+        return buffer;
+    }
+
+    private byte[] readChunked() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = this.readLine();
+            int extension = sizeLine.indexOf(';');
+            int size = Integer.parseInt((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+
+            if (size == 0) {
+                // Skip any trailers
+                while (!this.readLine().isEmpty()) { }
+                return body.toByteArray();
+            }
+
+            body.write(this.readFully(size));
+            this.readLine(); // CRLF after each chunk
+        }
+    }
+
+    private byte[] readToEnd() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = this.in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+}
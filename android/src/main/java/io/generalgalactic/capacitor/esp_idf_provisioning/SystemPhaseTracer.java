@@ -0,0 +1,46 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Writes phases to the system trace, so they line up with the Bluetooth stack, binder calls and WebView frames in
+ * Perfetto. Async slices need API 29 - below that only the sections on the calling thread are written.
+ */
+public class SystemPhaseTracer implements PhaseTracer {
+
+    // Trace truncates section names past 127 characters
+    private static final int MAX_NAME_LENGTH = 127;
+
+    private final boolean asyncSupported = Build.VERSION.SDK_INT >= 29;
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection(truncate(name));
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+        if (this.asyncSupported) Trace.beginAsyncSection(truncate(name), cookie);
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+        if (this.asyncSupported) Trace.endAsyncSection(truncate(name), cookie);
+    }
+
+    private static String truncate(String name) {
+        return name.length() <= MAX_NAME_LENGTH ? name : name.substring(0, MAX_NAME_LENGTH);
+    }
+
+}
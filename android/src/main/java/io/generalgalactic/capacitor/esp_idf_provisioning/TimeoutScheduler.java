@@ -0,0 +1,197 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel for operation deadlines. Scheduling and cancelling are O(1) and lock-free, which keeps the
+ * bookkeeping cheap no matter how many operations are in flight. Expired tasks run on the scheduler's own thread, so
+ * they should only hand work off (reject a call, release a device) and never block.
+ *
+ * Deadlines are only accurate to one tick, which is plenty for timeouts measured in seconds.
+ */
+public class TimeoutScheduler {
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    public static final long DEFAULT_TICK_MILLIS = 50;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final List<ArrayDeque<Timeout>> wheel;
+    private final int mask;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Object lifecycleLock = new Object();
+    private Thread workerThread;
+    private volatile boolean stopped = false;
+    private long startTime;
+    private long tick = 0;
+
+    public TimeoutScheduler() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    public TimeoutScheduler(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0) throw new IllegalArgumentException("tickMillis must be greater than 0");
+        if (wheelSize <= 0) throw new IllegalArgumentException("wheelSize must be greater than 0");
+
+        int size = Integer.highestOneBit(wheelSize - 1) << 1; // round up to a power of two so we can mask
+        if (size <= 0) size = 1;
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.mask = size - 1;
+        this.wheel = new ArrayList<ArrayDeque<Timeout>>(size);
+        for (int i = 0; i < size; i++) {
+            this.wheel.add(new ArrayDeque<Timeout>());
+        }
+    }
+
+    /**
+     * Runs the task once the delay has passed unless the returned Timeout is cancelled first. After shutdown() the
+     * task never runs and the Timeout comes back already cancelled, so callbacks racing teardown don't throw.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, deadline, this.pending);
+
+        if (!this.ensureStarted()) {
+            timeout.cancel();
+            return timeout;
+        }
+        this.incoming.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * How many scheduled tasks have neither run nor been cancelled. Anything still counted after its operation has
+     * finished is a deadline somebody forgot to cancel.
+     */
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    /**
+     * Stops the worker thread. Anything still pending is dropped without running.
+     */
+    public void shutdown() {
+        synchronized (this.lifecycleLock) {
+            this.stopped = true;
+            if (this.workerThread != null) this.workerThread.interrupt();
+        }
+    }
+
+    /**
+     * Returns false once the scheduler has been shut down.
+     */
+    private boolean ensureStarted() {
+        synchronized (this.lifecycleLock) {
+            if (this.stopped) return false;
+            if (this.workerThread != null) return true;
+
+            this.startTime = System.nanoTime();
+            this.workerThread = new Thread(this::run, "esp-provisioning-timeouts");
+            this.workerThread.setDaemon(true);
+            this.workerThread.start();
+            return true;
+        }
+    }
+
+    private void run() {
+        while (!this.stopped) {
+            long tickDeadline = this.startTime + (this.tick + 1) * this.tickNanos;
+            long sleepNanos = tickDeadline - System.nanoTime();
+
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (this.stopped) return;
+                }
+                continue;
+            }
+
+            this.transferIncoming();
+            this.expire(this.wheel.get((int) (this.tick & this.mask)));
+            this.tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = this.incoming.poll()) != null) {
+            if (timeout.state.get() != STATE_PENDING) continue;
+
+            long ticks = Math.max((timeout.deadline - this.startTime + this.tickNanos - 1) / this.tickNanos, this.tick);
+            timeout.remainingRounds = (ticks - this.tick) / this.wheel.size();
+            this.wheel.get((int) (ticks & this.mask)).add(timeout);
+        }
+    }
+
+    private void expire(Queue<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+
+            if (timeout.state.get() == STATE_CANCELLED) {
+                iterator.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                iterator.remove();
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    public static class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+        private final AtomicInteger pending;
+        private long remainingRounds; // only touched by the worker thread
+
+        private Timeout(Runnable task, long deadline, AtomicInteger pending) {
+            this.task = task;
+            this.deadline = deadline;
+            this.pending = pending;
+            pending.incrementAndGet();
+        }
+
+        /**
+         * Returns false if the task already ran or was already cancelled.
+         */
+        public boolean cancel() {
+            if (!this.state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) return false;
+            this.pending.decrementAndGet();
+            return true;
+        }
+
+        public boolean isExpired() {
+            return this.state.get() == STATE_EXPIRED;
+        }
+
+        private void expire() {
+            if (!this.state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) return;
+            this.pending.decrementAndGet();
+
+            try {
+                this.task.run();
+            } catch (Throwable t) {
+                // One bad task mustn't take the timer down with it
+                t.printStackTrace();
+            }
+        }
+
+    }
+
+}
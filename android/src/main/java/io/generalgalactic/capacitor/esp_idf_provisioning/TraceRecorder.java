@@ -0,0 +1,90 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a SessionTrace as events happen. Events are timestamped on the calling thread and written on a background
+ * thread, so recording costs the radio callbacks next to nothing.
+ */
+public class TraceRecorder {
+
+    private final File file;
+    private final SessionTrace.Writer writer;
+    private final long startedAt = System.nanoTime();
+    private final AtomicInteger eventCount = new AtomicInteger();
+    // An event racing stop() is dropped rather than thrown back at the BLE or EventBus thread recording it
+    private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+        Thread thread = new Thread(runnable, "esp-provisioning-trace");
+        thread.setDaemon(true);
+        return thread;
+    }, new ThreadPoolExecutor.DiscardPolicy());
+    private volatile boolean stopped = false;
+
+    public TraceRecorder(File file) throws IOException {
+        this(file, new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    TraceRecorder(File file, OutputStream out) throws IOException {
+        this.file = file;
+        this.writer = new SessionTrace.Writer(out);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getEventCount() {
+        return this.eventCount.get();
+    }
+
+    /**
+     * data is copied, so the caller is free to reuse it.
+     */
+    public void record(int type, String deviceName, String detail, byte[] data) {
+        if (this.stopped) return;
+
+        long time = (System.nanoTime() - this.startedAt) / 1000;
+        SessionTrace.Event event = new SessionTrace.Event(time, type, deviceName, detail, data == null ? null : data.clone());
+
+        this.executor.execute(() -> {
+            try {
+                this.writer.write(event);
+                this.eventCount.incrementAndGet();
+            } catch (IOException e) {
+                // A trace with a gap is still worth having, and recording must never break a session
+            }
+        });
+    }
+
+    /**
+     * Writes out what's queued and closes the file. Waits up to timeout milliseconds for that to finish.
+     */
+    public void stop(long timeout) {
+        if (this.stopped) return;
+        this.stopped = true;
+
+        this.executor.execute(() -> {
+            try {
+                this.writer.close();
+            } catch (IOException ignored) {
+            }
+        });
+        this.executor.shutdown();
+
+        try {
+            this.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,252 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import com.espressif.provisioning.listeners.ResponseListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays a recorded SessionTrace back on the JVM, so a session from the field can be rerun at a desk without the
+ * hardware. Runs at the recorded pace when speed is 1, faster above 1, slower below, and as fast as possible at 0.
+ *
+ * replay() hands every event to a listener at its (scaled) time. device() gives a stand-in for one device that
+ * answers endpoint requests with the recorded responses after the recorded latency.
+ *
+ * This replays the device's side of the traffic, not the plugin. EspProvisioningBLE talks to ESPDevice directly,
+ * so it can't be pointed at a ReplayDevice - the stand-in is for firmware-facing code and tests that take the
+ * endpoint call as a parameter.
+ */
+public class TraceReplayer {
+
+    public interface Listener {
+
+        void onEvent(SessionTrace.Event event);
+
+    }
+
+    private final List<SessionTrace.Event> events;
+    private final double speed;
+
+    public TraceReplayer(List<SessionTrace.Event> events, double speed) {
+        if (speed < 0) throw new IllegalArgumentException("speed can't be negative");
+
+        this.events = events;
+        this.speed = speed;
+    }
+
+    public static TraceReplayer load(InputStream in, double speed) throws IOException {
+        return new TraceReplayer(SessionTrace.read(in), speed);
+    }
+
+    public List<SessionTrace.Event> getEvents() {
+        return events;
+    }
+
+    /**
+     * Delivers the events in order on the calling thread, waiting between them. A listener that's slower than the
+     * trace doesn't get to catch up by skipping waits - the lag shows up in the result instead.
+     */
+    public Result replay(Listener listener) throws InterruptedException {
+        long startedAt = System.nanoTime();
+        long maxLag = 0;
+
+        for (SessionTrace.Event event : this.events) {
+            long dueAt = startedAt + this.scale(event.getTime()) * 1000;
+            long wait = dueAt - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } else {
+                maxLag = Math.max(maxLag, -wait);
+            }
+            listener.onEvent(event);
+        }
+
+        long originalDuration = this.events.isEmpty() ? 0 : this.events.get(this.events.size() - 1).getTime();
+        return new Result(this.events.size(), originalDuration / 1000, (System.nanoTime() - startedAt) / 1000000, maxLag / 1000000);
+    }
+
+    /**
+     * A stand-in for the named device. Requests are matched to the recording by path, in the order they were made.
+     */
+    public ReplayDevice device(String deviceName) {
+        Map<String, ArrayDeque<Exchange>> open = new HashMap<String, ArrayDeque<Exchange>>();
+        Map<String, ArrayDeque<Exchange>> exchanges = new HashMap<String, ArrayDeque<Exchange>>();
+
+        for (SessionTrace.Event event : this.events) {
+            if (!deviceName.equals(event.getDeviceName())) continue;
+
+            String path = event.getDetail();
+            switch (event.getType()) {
+                case SessionTrace.CUSTOM_REQUEST:
+                    Exchange exchange = new Exchange(event.getData(), event.getTime());
+                    open.computeIfAbsent(path, key -> new ArrayDeque<Exchange>()).addLast(exchange);
+                    exchanges.computeIfAbsent(path, key -> new ArrayDeque<Exchange>()).addLast(exchange);
+                    break;
+
+                case SessionTrace.CUSTOM_RESPONSE:
+                case SessionTrace.CUSTOM_FAILURE:
+                    ArrayDeque<Exchange> pending = open.get(path);
+                    if (pending == null || pending.isEmpty()) break; // the request was made before recording started
+                    pending.removeFirst().answer(event);
+                    break;
+            }
+        }
+
+        return new ReplayDevice(deviceName, exchanges);
+    }
+
+    private long scale(long micros) {
+        if (this.speed == 0) return 0;
+        return (long) (micros / this.speed);
+    }
+
+    public static class Result {
+
+        private final int eventCount;
+        private final long originalDuration;
+        private final long replayDuration;
+        private final long maxLag;
+
+        private Result(int eventCount, long originalDuration, long replayDuration, long maxLag) {
+            this.eventCount = eventCount;
+            this.originalDuration = originalDuration;
+            this.replayDuration = replayDuration;
+            this.maxLag = maxLag;
+        }
+
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        /**
+         * Milliseconds from the start of the trace to its last event, as recorded.
+         */
+        public long getOriginalDuration() {
+            return originalDuration;
+        }
+
+        public long getReplayDuration() {
+            return replayDuration;
+        }
+
+        /**
+         * The furthest behind schedule an event was delivered, in milliseconds.
+         */
+        public long getMaxLag() {
+            return maxLag;
+        }
+
+    }
+
+    private static class Exchange {
+
+        private final byte[] request;
+        private final long requestedAt;
+        private byte[] response;
+        private String failure;
+        private long latency = -1;
+
+        Exchange(byte[] request, long requestedAt) {
+            this.request = request;
+            this.requestedAt = requestedAt;
+        }
+
+        void answer(SessionTrace.Event event) {
+            this.latency = event.getTime() - this.requestedAt;
+            if (event.getType() == SessionTrace.CUSTOM_RESPONSE) {
+                this.response = event.getData();
+            } else {
+                this.failure = new String(event.getData(), StandardCharsets.UTF_8);
+            }
+        }
+
+        boolean isAnswered() {
+            return this.latency >= 0;
+        }
+
+    }
+
+    /**
+     * Answers endpoint requests the way the recorded device did. Requests the recording has no answer for fail, as
+     * does a request made after the recording ran out. sendDataToCustomEndPoint takes the same arguments as
+     * ESPDevice's.
+     *
+     * Recorded prov-config requests have the passphrase blanked, so sending the real one counts as a mismatch.
+     */
+    public class ReplayDevice {
+
+        private final String deviceName;
+        private final Map<String, ArrayDeque<Exchange>> exchanges;
+        private final AtomicInteger mismatches = new AtomicInteger();
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "esp-provisioning-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private ReplayDevice(String deviceName, Map<String, ArrayDeque<Exchange>> exchanges) {
+            this.deviceName = deviceName;
+            this.exchanges = exchanges;
+        }
+
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        public void sendDataToCustomEndPoint(String path, byte[] data, ResponseListener listener) {
+            Exchange exchange;
+            synchronized (this) {
+                ArrayDeque<Exchange> queue = this.exchanges.get(path);
+                exchange = queue == null ? null : queue.pollFirst();
+            }
+
+            if (exchange == null || !exchange.isAnswered()) {
+                this.executor.execute(() -> listener.onFailure(new IOException(String.format("No recorded response from %s for %s", this.deviceName, path))));
+                return;
+            }
+
+            if (!Arrays.equals(data, exchange.request)) this.mismatches.incrementAndGet();
+
+            this.executor.schedule(() -> {
+                if (exchange.failure != null) {
+                    listener.onFailure(new IOException(exchange.failure));
+                } else {
+                    listener.onSuccess(exchange.response);
+                }
+            }, scale(exchange.latency), TimeUnit.MICROSECONDS);
+        }
+
+        /**
+         * Requests whose bytes differed from the recorded ones. They're still answered with the recorded response.
+         */
+        public int getMismatchCount() {
+            return this.mismatches.get();
+        }
+
+        /**
+         * Recorded requests that haven't been made yet.
+         */
+        public synchronized int getRemainingCount() {
+            int remaining = 0;
+            for (ArrayDeque<Exchange> queue : this.exchanges.values()) remaining += queue.size();
+            return remaining;
+        }
+
+        public void close() {
+            this.executor.shutdownNow();
+        }
+
+    }
+
+}
@@ -0,0 +1,69 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+/**
+ * What warming up the provisioning stack cost, step by step, and what it found. Times are in milliseconds.
+ */
+public class WarmUpMetrics {
+
+    private long provisionManagerTime;
+    private long adapterTime;
+    private long capabilitiesTime;
+    private long permissionsTime;
+    private long totalTime;
+    private boolean bleSupported;
+    private boolean bleEnabled;
+    private boolean permissionsGranted;
+
+    public WarmUpMetrics(long provisionManagerTime, long adapterTime, long capabilitiesTime, long permissionsTime, long totalTime, boolean bleSupported, boolean bleEnabled, boolean permissionsGranted) {
+        this.provisionManagerTime = provisionManagerTime;
+        this.adapterTime = adapterTime;
+        this.capabilitiesTime = capabilitiesTime;
+        this.permissionsTime = permissionsTime;
+        this.totalTime = totalTime;
+        this.bleSupported = bleSupported;
+        this.bleEnabled = bleEnabled;
+        this.permissionsGranted = permissionsGranted;
+    }
+
+    /**
+     * Creating the ESPProvisionManager, which the first scan would otherwise pay for.
+     */
+    public long getProvisionManagerTime() {
+        return provisionManagerTime;
+    }
+
+    /**
+     * Looking up the BluetoothManager and its adapter.
+     */
+    public long getAdapterTime() {
+        return adapterTime;
+    }
+
+    /**
+     * Checking for BLE hardware and whether it's on.
+     */
+    public long getCapabilitiesTime() {
+        return capabilitiesTime;
+    }
+
+    public long getPermissionsTime() {
+        return permissionsTime;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public boolean isBleSupported() {
+        return bleSupported;
+    }
+
+    public boolean isBleEnabled() {
+        return bleEnabled;
+    }
+
+    public boolean isPermissionsGranted() {
+        return permissionsGranted;
+    }
+
+}
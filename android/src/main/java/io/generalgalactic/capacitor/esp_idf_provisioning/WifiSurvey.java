@@ -0,0 +1,130 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The WiFi lists from several devices merged into one table: a row per SSID, a column per device, holding the signal
+ * strength that device heard. Each device's list is added as it arrives, in any order and from any thread.
+ *
+ * - a device that sees the same SSID from several access points keeps the strongest one
+ * - hidden networks (an empty SSID) can't be told apart, so they're left out
+ * - a row's auth comes from its strongest sighting across all devices
+ * - rows are sorted by their best signal, strongest first
+ */
+public class WifiSurvey {
+
+    private final List<String> deviceNames;
+    private final Map<String, Network> networks = new LinkedHashMap<String, Network>();
+    private final Map<String, String> failures = new LinkedHashMap<String, String>();
+
+    /**
+     * Repeated names are only counted once.
+     */
+    public WifiSurvey(List<String> deviceNames) {
+        this.deviceNames = Collections.unmodifiableList(new ArrayList<String>(new LinkedHashSet<String>(deviceNames)));
+    }
+
+    public List<String> getDeviceNames() {
+        return deviceNames;
+    }
+
+    public synchronized void add(String deviceName, List<WiFiAccessPoint> accessPoints) {
+        int column = this.deviceNames.indexOf(deviceName);
+        if (column < 0 || accessPoints == null) return;
+
+        for (WiFiAccessPoint accessPoint : accessPoints) {
+            String ssid = accessPoint.getWifiName();
+            if (ssid == null || ssid.isEmpty()) continue;
+
+            Network network = this.networks.get(ssid);
+            if (network == null) {
+                network = new Network(ssid, this.deviceNames.size());
+                this.networks.put(ssid, network);
+            }
+            network.heard(column, accessPoint.getRssi(), accessPoint.getSecurity());
+        }
+    }
+
+    public synchronized void failed(String deviceName, String reason) {
+        if (!this.deviceNames.contains(deviceName)) return;
+        this.failures.put(deviceName, reason);
+    }
+
+    public synchronized List<Network> getNetworks() {
+        List<Network> sorted = new ArrayList<Network>();
+        for (Network network : this.networks.values()) sorted.add(network.copy());
+        Collections.sort(sorted, (a, b) -> Integer.compare(b.getBestRssi(), a.getBestRssi()));
+        return sorted;
+    }
+
+    /**
+     * Why each device that didn't answer didn't, by device name.
+     */
+    public synchronized Map<String, String> getFailures() {
+        return new LinkedHashMap<String, String>(this.failures);
+    }
+
+    /**
+     * One SSID's row.
+     */
+    public static class Network {
+
+        private final String ssid;
+        private final Integer[] rssi;
+        private int security;
+        private int bestRssi = Integer.MIN_VALUE;
+
+        private Network(String ssid, int devices) {
+            this.ssid = ssid;
+            this.rssi = new Integer[devices];
+        }
+
+        public String getSsid() {
+            return ssid;
+        }
+
+        /**
+         * The security of the strongest sighting, as WiFiAccessPoint.getSecurity().
+         */
+        public int getSecurity() {
+            return security;
+        }
+
+        public int getBestRssi() {
+            return bestRssi;
+        }
+
+        /**
+         * Signal strength by device, in the order of getDeviceNames(). null where the device didn't see the network.
+         */
+        public List<Integer> getRssi() {
+            return Collections.unmodifiableList(Arrays.asList(this.rssi.clone()));
+        }
+
+        private void heard(int column, int rssi, int security) {
+            if (this.rssi[column] == null || rssi > this.rssi[column]) this.rssi[column] = rssi;
+            if (rssi > this.bestRssi) {
+                this.bestRssi = rssi;
+                this.security = security;
+            }
+        }
+
+        private Network copy() {
+            Network copy = new Network(this.ssid, this.rssi.length);
+            System.arraycopy(this.rssi, 0, copy.rssi, 0, this.rssi.length);
+            copy.security = this.security;
+            copy.bestRssi = this.bestRssi;
+            return copy;
+        }
+
+    }
+
+}
@@ -0,0 +1,46 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads and native state EspProvisioningBLE works with. Each one is registered with the LifecycleResources as
+ * it's created, so closing the resources releases all of them and nothing the plugin starts can outlive it.
+ *
+ * Closed in this order: handshakes stop being taken, the callback thread drains, then the timeout thread, the
+ * compressor and the history go - nothing is called back once the callback thread has drained, and those callbacks
+ * use the rest.
+ */
+class Workers {
+
+    // Every callback into the plugin runs here, so listener work and JSON building never lands on the main thread.
+    // Callbacks the library makes after shutdown are dropped instead of throwing on its threads.
+    final ExecutorService callbackExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), namedThreadFactory("esp-provisioning-callbacks"), new ThreadPoolExecutor.DiscardPolicy());
+    final ExecutorService handshakeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), namedThreadFactory("esp-provisioning-handshake"), new ThreadPoolExecutor.DiscardPolicy());
+    final TimeoutScheduler timeoutScheduler = new TimeoutScheduler();
+    final PayloadCompressor payloadCompressor = new PayloadCompressor();
+
+    Workers(LifecycleResources resources, ProvisioningHistory history, long callbackDrainTimeout) {
+        resources.addCloseable(history::close);
+        resources.addCloseable(this.payloadCompressor::release);
+        resources.addCloseable(this.timeoutScheduler::shutdown);
+        resources.addCloseable(() -> {
+            this.callbackExecutor.shutdown();
+            this.callbackExecutor.awaitTermination(callbackDrainTimeout, TimeUnit.MILLISECONDS);
+        });
+        resources.addCloseable(this.handshakeExecutor::shutdown);
+    }
+
+    static ThreadFactory namedThreadFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -0,0 +1,7 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning.listeners;
+
+public interface Cancellable {
+
+    public void operationCancelled(String operationId);
+
+}
@@ -1,10 +1,10 @@
 package io.generalgalactic.capacitor.esp_idf_provisioning.listeners;
 
-import com.espressif.provisioning.ESPDevice;
+import io.generalgalactic.capacitor.esp_idf_provisioning.DeviceSession;
 
-public interface ConnectListener extends UsesESPDevice {
+public interface ConnectListener extends UsesESPDevice, Cancellable {
 
-    public void connected(ESPDevice device);
+    public void connected(DeviceSession session);
 
     public void connectionTimedOut();
 
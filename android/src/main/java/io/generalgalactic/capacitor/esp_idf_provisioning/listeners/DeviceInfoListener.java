@@ -0,0 +1,11 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning.listeners;
+
+import io.generalgalactic.capacitor.esp_idf_provisioning.DeviceInfo;
+
+public interface DeviceInfoListener extends UsesESPDevice {
+
+    public void deviceInfoReceived(DeviceInfo deviceInfo);
+
+    public void deviceInfoFailed(Exception error);
+
+}
@@ -4,6 +4,20 @@ public interface EspProvisioningEventListener {
 
     public void deviceDisconnectedUnexpectedly(String deviceName);
 
+    public void idleSessionClosed(String deviceName);
+
+    public void deviceReconnecting(String deviceName, int attempt, long delay);
+
+    public void deviceReconnected(String deviceName, int attempts);
+
     public void bluetoothStateChange(int state);
 
+    public void customDataChanged(String watchId, String deviceName, String path, String returnString);
+
+    public void deviceAppeared(String deviceName, int rssi);
+
+    public void deviceLost(String deviceName);
+
+    public void deviceRssiChanged(String deviceName, int rssi);
+
 }
@@ -0,0 +1,11 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning.listeners;
+
+import java.io.File;
+
+public interface ExportHistoryListener {
+
+    public void historyExported(File file, int count);
+
+    public void historyFailed(Exception e);
+
+}
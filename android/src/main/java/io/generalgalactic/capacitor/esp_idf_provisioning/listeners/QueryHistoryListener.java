@@ -0,0 +1,13 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning.listeners;
+
+import java.util.List;
+
+import io.generalgalactic.capacitor.esp_idf_provisioning.HistoryEntry;
+
+public interface QueryHistoryListener {
+
+    public void historyFound(List<HistoryEntry> entries);
+
+    public void historyFailed(Exception e);
+
+}
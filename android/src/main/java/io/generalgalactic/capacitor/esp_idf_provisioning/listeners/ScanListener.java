@@ -4,7 +4,7 @@ import java.util.List;
 
 import io.generalgalactic.capacitor.esp_idf_provisioning.DiscoveredBluetoothDevice;
 
-public interface ScanListener {
+public interface ScanListener extends Cancellable {
 
     public void foundDevices(List<DiscoveredBluetoothDevice> devices);
 
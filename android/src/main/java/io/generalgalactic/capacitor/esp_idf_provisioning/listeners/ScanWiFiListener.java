@@ -4,7 +4,7 @@ import com.espressif.provisioning.WiFiAccessPoint;
 
 import java.util.List;
 
-public interface ScanWiFiListener extends UsesESPDevice {
+public interface ScanWiFiListener extends UsesESPDevice, Cancellable, TimesOut {
 
     public void foundWiFiNetworks( List<WiFiAccessPoint> networks );
 
@@ -0,0 +1,17 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning.listeners;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import io.generalgalactic.capacitor.esp_idf_provisioning.WifiSurvey;
+
+import java.util.List;
+
+public interface ScanWiFiManyListener extends Cancellable {
+
+    public void deviceScanned(String deviceName, List<WiFiAccessPoint> networks);
+
+    public void deviceScanFailed(String deviceName, String reason);
+
+    public void surveyCompleted(WifiSurvey survey);
+
+}
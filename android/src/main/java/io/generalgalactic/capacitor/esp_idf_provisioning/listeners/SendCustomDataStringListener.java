@@ -1,6 +1,6 @@
 package io.generalgalactic.capacitor.esp_idf_provisioning.listeners;
 
-public interface SendCustomDataStringListener extends UsesESPDevice {
+public interface SendCustomDataStringListener extends UsesESPDevice, Cancellable, TimesOut {
 
     public void sentCustomDataStringWithResponse(String returnString);
 
@@ -0,0 +1,11 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning.listeners;
+
+import io.generalgalactic.capacitor.esp_idf_provisioning.WarmUpMetrics;
+
+public interface WarmUpListener {
+
+    public void warmedUp(WarmUpMetrics metrics);
+
+    public void warmUpFailed(Exception e);
+
+}
@@ -1,9 +1,21 @@
 package io.generalgalactic.capacitor.esp_idf_provisioning.listeners;
 
-public interface WifiProvisionListener extends UsesESPDevice {
+public interface WifiProvisionListener extends UsesESPDevice, Cancellable, TimesOut {
 
     public void provisioningSuccess();
 
     public void provisioningFailed(Error error);
 
+    /**
+     * Only called when provisioning waits for the station to connect. timeToConnected is in milliseconds from the
+     * config being applied.
+     */
+    public void stationConnected(long timeToConnected, String ip4Address);
+
+    /**
+     * Only called when provisioning waits for the station to connect. reason is AUTH_ERROR, NETWORK_NOT_FOUND or
+     * CONNECTION_FAILED, as reported by the device.
+     */
+    public void stationConnectionFailed(String reason, Error error);
+
 }
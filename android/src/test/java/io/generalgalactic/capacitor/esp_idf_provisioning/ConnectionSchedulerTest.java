@@ -0,0 +1,147 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ConnectionSchedulerTest {
+
+    @Test
+    public void runsOneConnectAtATimeByPriority() {
+        Sessions sessions = new Sessions();
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, 4, 60000, sessions);
+
+        ConnectionScheduler.Ticket first = sessions.request(scheduler, "PROV_1", 0);
+        sessions.request(scheduler, "PROV_2", 0);
+        sessions.request(scheduler, "PROV_3", 1);
+        assertEquals(Collections.singletonList("PROV_1"), sessions.started);
+        assertEquals(2, scheduler.getWaitingCount());
+
+        scheduler.connected(first);
+        assertEquals(Arrays.asList("PROV_1", "PROV_3"), sessions.started);
+        assertEquals(1, scheduler.getOpenCount());
+        assertEquals(1, scheduler.getConnectingCount());
+    }
+
+    @Test
+    public void agesWaitingConnectsAheadOfNewerHigherPriorityOnes() throws Exception {
+        Sessions sessions = new Sessions();
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, 4, 10, sessions);
+
+        ConnectionScheduler.Ticket first = sessions.request(scheduler, "PROV_1", 0);
+        sessions.request(scheduler, "PROV_2", 0);
+        Thread.sleep(60);
+        sessions.request(scheduler, "PROV_3", 2); // worth 20ms of waiting, PROV_2 has waited longer
+
+        scheduler.cancel(first);
+        assertEquals(Arrays.asList("PROV_1", "PROV_2"), sessions.started);
+    }
+
+    @Test
+    public void closesTheLeastRecentlyUsedIdleSessionToMakeRoom() {
+        Sessions sessions = new Sessions();
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, 2, 60000, sessions);
+
+        scheduler.connected(sessions.request(scheduler, "PROV_1", 0));
+        scheduler.connected(sessions.request(scheduler, "PROV_2", 0));
+        scheduler.touch("PROV_1");
+
+        sessions.request(scheduler, "PROV_3", 0);
+        assertEquals(Collections.singletonList("PROV_2"), sessions.closed);
+        assertEquals(Arrays.asList("PROV_1", "PROV_2", "PROV_3"), sessions.started);
+    }
+
+    @Test
+    public void waitsWhileEverySessionIsBusy() {
+        Sessions sessions = new Sessions();
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, 1, 60000, sessions);
+
+        scheduler.connected(sessions.request(scheduler, "PROV_1", 0));
+        sessions.busy.add("PROV_1");
+
+        sessions.request(scheduler, "PROV_2", 0);
+        assertTrue(sessions.closed.isEmpty());
+        assertEquals(1, scheduler.getWaitingCount());
+
+        // Finishing an operation touches the session, which is when it gets looked at again
+        sessions.busy.remove("PROV_1");
+        scheduler.touch("PROV_1");
+        assertEquals(Collections.singletonList("PROV_1"), sessions.closed);
+        assertEquals(Arrays.asList("PROV_1", "PROV_2"), sessions.started);
+    }
+
+    @Test
+    public void letsAReconnectReuseItsDevicesSlot() {
+        Sessions sessions = new Sessions();
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, 1, 60000, sessions);
+
+        scheduler.connected(sessions.request(scheduler, "PROV_1", 0));
+        sessions.busy.add("PROV_1");
+
+        ConnectionScheduler.Ticket reconnect = sessions.request(scheduler, "PROV_1", 0);
+        assertEquals(Arrays.asList("PROV_1", "PROV_1"), sessions.started);
+        assertTrue(sessions.closed.isEmpty());
+
+        scheduler.connected(reconnect);
+        assertEquals(1, scheduler.getOpenCount());
+    }
+
+    @Test
+    public void cancellingFreesWhateverTheTicketHeld() {
+        Sessions sessions = new Sessions();
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, 1, 60000, sessions);
+
+        ConnectionScheduler.Ticket first = sessions.request(scheduler, "PROV_1", 0);
+        ConnectionScheduler.Ticket waiting = sessions.request(scheduler, "PROV_2", 0);
+        sessions.request(scheduler, "PROV_3", 0);
+
+        scheduler.cancel(waiting);
+        assertEquals(1, scheduler.getWaitingCount());
+
+        scheduler.connected(first);
+        sessions.busy.add("PROV_1");
+        scheduler.cancel(first); // the link came up but the session never did
+        assertEquals(0, scheduler.getOpenCount());
+        assertEquals(Arrays.asList("PROV_1", "PROV_3"), sessions.started);
+
+        // A late connected() for a cancelled ticket doesn't take a slot
+        scheduler.connected(first);
+        assertEquals(0, scheduler.getOpenCount());
+    }
+
+    /**
+     * Stands in for EspProvisioningBLE: closing a session disconnects it, which releases its slot.
+     */
+    private static class Sessions implements ConnectionScheduler.SessionCloser {
+
+        final List<String> started = new ArrayList<String>();
+        final List<String> closed = new ArrayList<String>();
+        final Set<String> busy = new HashSet<String>();
+        private ConnectionScheduler scheduler;
+
+        ConnectionScheduler.Ticket request(ConnectionScheduler scheduler, String deviceName, int priority) {
+            this.scheduler = scheduler;
+            return scheduler.request(deviceName, priority, ticket -> this.started.add(ticket.getDeviceName()));
+        }
+
+        @Override
+        public boolean isIdle(String deviceName) {
+            return !this.busy.contains(deviceName);
+        }
+
+        @Override
+        public void close(String deviceName) {
+            this.closed.add(deviceName);
+            this.scheduler.released(deviceName);
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class DeviceInfoTest {
+
+    @Test
+    public void readsVersionSecurityAndCapabilities() {
+        DeviceInfo info = DeviceInfo.parse("{\"prov\": {\"ver\": \"v1.1\", \"sec_ver\": 2, \"cap\": [\"wifi_scan\", \"no_pop\"]}}", null);
+
+        assertEquals("v1.1", info.getVersion());
+        assertEquals(2, info.getSecurityVersion());
+        assertEquals(Arrays.asList("wifi_scan", "no_pop"), info.getCapabilities());
+        assertTrue(info.hasCapability("no_pop"));
+    }
+
+    @Test
+    public void leavesEverythingUnsetWithoutProv() {
+        DeviceInfo info = DeviceInfo.parse("{\"custom\": {\"ver\": \"v9\", \"cap\": [\"wifi_scan\"]}}", null);
+
+        assertNull(info.getVersion());
+        assertEquals(-1, info.getSecurityVersion());
+        assertTrue(info.getCapabilities().isEmpty());
+    }
+
+    @Test
+    public void ignoresACapThatIsNotAnArray() {
+        DeviceInfo info = DeviceInfo.parse("{\"prov\": {\"ver\": \"v1.1\", \"sec_ver\": 1, \"cap\": \"wifi_scan\"}}", Collections.singletonList("no_sec"));
+
+        assertEquals("v1.1", info.getVersion());
+        assertEquals(1, info.getSecurityVersion());
+        assertEquals(Collections.singletonList("no_sec"), info.getCapabilities());
+    }
+
+    @Test
+    public void keepsTheFirmwaresOwnKeysInTheRawAnswer() {
+        String versionInfo = "{\"prov\": {\"ver\": \"v1.1\", \"sec_ver\": 0}, \"my_app\": {\"fw\": \"2.4.0\", \"board\": \"c3\"}}";
+        DeviceInfo info = DeviceInfo.parse(versionInfo, null);
+
+        assertEquals("v1.1", info.getVersion());
+        assertEquals(0, info.getSecurityVersion());
+        assertEquals(versionInfo, info.getVersionInfo());
+    }
+
+    @Test
+    public void takesAPlainStringAsTheVersion() {
+        DeviceInfo info = DeviceInfo.parse("v1.0\n", null);
+
+        assertEquals("v1.0", info.getVersion());
+        assertEquals(-1, info.getSecurityVersion());
+        assertEquals("v1.0\n", info.getVersionInfo());
+    }
+
+    @Test
+    public void survivesAnAnswerCutShort() {
+        DeviceInfo info = DeviceInfo.parse("{\"prov\": {\"ver\": \"v1.1\", \"cap\": [\"wifi_sc", Collections.singletonList("wifi_scan"));
+
+        assertEquals(-1, info.getSecurityVersion());
+        assertEquals(Collections.singletonList("wifi_scan"), info.getCapabilities());
+    }
+
+    @Test
+    public void fallsBackToTheCapabilitiesTheLibraryRead() {
+        DeviceInfo none = DeviceInfo.parse(null, Arrays.asList("wifi_scan", "no_pop"));
+        assertNull(none.getVersion());
+        assertNull(none.getVersionInfo());
+        assertEquals(Arrays.asList("wifi_scan", "no_pop"), none.getCapabilities());
+
+        // Merged with what the device listed, each once
+        DeviceInfo merged = DeviceInfo.parse("{\"prov\": {\"cap\": [\"no_pop\", \"no_sec\"]}}", Arrays.asList("wifi_scan", "no_pop"));
+        assertEquals(Arrays.asList("wifi_scan", "no_pop", "no_sec"), merged.getCapabilities());
+    }
+
+}
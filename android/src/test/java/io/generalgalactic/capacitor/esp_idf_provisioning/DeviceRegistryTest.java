@@ -0,0 +1,116 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DeviceRegistryTest {
+
+    private static final List<String> NAMES = Arrays.asList("PROV_0", "PROV_1", "PROV_2", "PROV_3", "PROV_4", "PROV_5");
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int SCANS_PER_WRITER = 2000;
+
+    @Test
+    public void snapshotsNeverMixGenerationsWhileScansPublish() throws InterruptedException {
+        DeviceRegistry registry = new DeviceRegistry();
+        AtomicInteger scans = new AtomicInteger();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < WRITERS; i++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                for (int scan = 0; scan < SCANS_PER_WRITER; scan++) {
+                    // Every device a scan finds carries the scan's tag, so a reader can tell which scan it came from
+                    int tag = scans.incrementAndGet();
+                    DeviceRegistry.Scan running = registry.beginScan();
+                    for (String deviceName : NAMES) running.add(device(deviceName, tag));
+                    running.publish(Collections.<String>emptyList());
+                }
+            }));
+        }
+
+        for (int i = 0; i < READERS; i++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                long lastId = 0;
+                while (writing.get()) {
+                    DeviceRegistry.Generation snapshot = registry.snapshot();
+                    if (snapshot.getId() < lastId) failures.add("went back from generation " + lastId + " to " + snapshot.getId());
+                    lastId = snapshot.getId();
+                    if (snapshot.getId() == 0) continue; // nothing published yet
+
+                    int tag = tag(snapshot.get(NAMES.get(0)));
+                    if (snapshot.getDevices().size() != NAMES.size()) failures.add("generation " + snapshot.getId() + " has " + snapshot.getDevices().size() + " devices");
+                    for (DiscoveredBluetoothDevice device : snapshot.getDevices()) {
+                        if (tag(device) != tag) failures.add("generation " + snapshot.getId() + " mixes scans " + tag + " and " + tag(device));
+                    }
+                    for (String deviceName : NAMES) {
+                        if (tag(snapshot.get(deviceName)) != tag) failures.add("generation " + snapshot.getId() + " changed under a lookup of " + deviceName);
+                        if (registry.get(deviceName) == null) failures.add(deviceName + " missing while scans publish");
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) thread.start();
+        start.countDown();
+        for (Thread thread : threads.subList(0, WRITERS)) thread.join();
+        writing.set(false);
+        for (Thread thread : threads.subList(WRITERS, threads.size())) thread.join();
+
+        assertTrue(failures.isEmpty() ? "" : failures.size() + " failures, first: " + failures.peek(), failures.isEmpty());
+        // The newest scan can't have lost to an older one
+        assertEquals(WRITERS * SCANS_PER_WRITER, registry.snapshot().getId());
+    }
+
+    @Test
+    public void aScanThatFinishesLateDoesNotRollTheRegistryBack() {
+        DeviceRegistry registry = new DeviceRegistry();
+        DeviceRegistry.Scan older = registry.beginScan();
+        DeviceRegistry.Scan newer = registry.beginScan();
+        older.add(device("PROV_0", 1));
+        newer.add(device("PROV_0", 2));
+
+        newer.publish(Collections.<String>emptyList());
+        DeviceRegistry.Generation snapshot = registry.snapshot();
+        older.publish(Collections.<String>emptyList());
+
+        assertSame(snapshot, registry.snapshot());
+        assertEquals(2, tag(registry.get("PROV_0")));
+    }
+
+    private static DiscoveredBluetoothDevice device(String name, int tag) {
+        WiFiAccessPoint accessPoint = new WiFiAccessPoint();
+        accessPoint.setWifiName(name);
+        accessPoint.setRssi(-tag);
+        return new DiscoveredBluetoothDevice(accessPoint);
+    }
+
+    private static int tag(DiscoveredBluetoothDevice device) {
+        return device == null ? 0 : -device.getRssi().intValue();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DisconnectAttributionTest {
+
+    private final Map<String, Integer> states = new HashMap<String, Integer>();
+    private final Links<String> links = new Links<String>(new LifecycleResources.Registration() {
+        @Override
+        public void register() {
+        }
+
+        @Override
+        public void unregister() {
+        }
+    });
+
+    @Test
+    public void anEvictedSessionsDisconnectDoesNotFailTheConnectWaitingForItsSlot() {
+        DisconnectAttribution<String> attribution = this.attribution(60000);
+        this.link(attribution, "PROV_1", DisconnectAttribution.STATE_CONNECTED);
+        Object attempt = this.connecting(attribution, "PROV_2");
+
+        this.closing(attribution, "PROV_3"); // closed to make room
+        DisconnectAttribution.Verdict<String> verdict = attribution.attribute(new Object());
+
+        assertFalse(verdict.isFor(attempt));
+        assertTrue(verdict.getDroppedLinks().isEmpty());
+        assertEquals(0, attribution.getExpectedCount());
+    }
+
+    @Test
+    public void aLinkThatWentDownIsBlamedBeforeTheConnect() {
+        DisconnectAttribution<String> attribution = this.attribution(60000);
+        this.link(attribution, "PROV_1", DisconnectAttribution.STATE_DISCONNECTED);
+        this.link(attribution, "PROV_2", DisconnectAttribution.STATE_CONNECTED);
+        Object attempt = this.connecting(attribution, "PROV_3");
+
+        DisconnectAttribution.Verdict<String> verdict = attribution.attribute(new Object());
+
+        assertEquals(Collections.singletonMap("PROV_1", "PROV_1"), verdict.getDroppedLinks());
+        assertFalse(verdict.isFor(attempt));
+    }
+
+    @Test
+    public void aDisconnectNobodyElseAccountsForFailsTheConnect() {
+        DisconnectAttribution<String> attribution = this.attribution(60000);
+        this.link(attribution, "PROV_1", DisconnectAttribution.STATE_CONNECTED);
+        Object attempt = this.connecting(attribution, "PROV_2");
+
+        DisconnectAttribution.Verdict<String> verdict = attribution.attribute(new Object());
+
+        assertTrue(verdict.isFor(attempt));
+        assertTrue(verdict.getDroppedLinks().isEmpty());
+
+        attribution.settled(attempt);
+        assertFalse(attribution.attribute(new Object()).isFor(attempt));
+        assertEquals(0, attribution.getConnectingCount());
+    }
+
+    @Test
+    public void eachLinkThatWentDownIsBlamedForOneEvent() {
+        DisconnectAttribution<String> attribution = this.attribution(60000);
+        this.link(attribution, "PROV_1", DisconnectAttribution.STATE_DISCONNECTED);
+        this.link(attribution, "PROV_2", DisconnectAttribution.STATE_DISCONNECTED);
+        Object attempt = this.connecting(attribution, "PROV_3");
+
+        List<String> blamed = new ArrayList<String>();
+        blamed.addAll(attribution.attribute(new Object()).getDroppedLinks().keySet());
+        blamed.addAll(attribution.attribute(new Object()).getDroppedLinks().keySet());
+        Collections.sort(blamed);
+        DisconnectAttribution.Verdict<String> third = attribution.attribute(new Object());
+
+        assertEquals(Arrays.asList("PROV_1", "PROV_2"), blamed);
+        assertTrue(third.getDroppedLinks().isEmpty());
+        assertTrue(third.isFor(attempt));
+    }
+
+    @Test
+    public void disconnectingADeviceThatOwesNoEventExpectsNone() {
+        DisconnectAttribution<String> attribution = this.attribution(60000);
+        this.link(attribution, "PROV_1", DisconnectAttribution.STATE_DISCONNECTED);
+        this.link(attribution, "PROV_AP", DisconnectAttribution.STATE_UNKNOWN);
+        Object attempt = this.connecting(attribution, "PROV_2");
+        attribution.attribute(new Object()); // PROV_1's
+
+        this.links.remove("PROV_1");
+        attribution.expect("PROV_1", "PROV_1");
+        attribution.settled(attempt); // given up before its link came up
+        attribution.expect("PROV_2", "PROV_2");
+        attribution.expect("PROV_AP", "PROV_AP");
+
+        assertEquals(0, attribution.getExpectedCount());
+    }
+
+    @Test
+    public void aLinkLetGoAfterItWentDownStillOwesItsEvent() {
+        DisconnectAttribution<String> attribution = this.attribution(60000);
+        this.link(attribution, "PROV_1", DisconnectAttribution.STATE_DISCONNECTED);
+        Object attempt = this.connecting(attribution, "PROV_2");
+
+        this.links.remove("PROV_1");
+        attribution.expect("PROV_1", "PROV_1");
+        DisconnectAttribution.Verdict<String> verdict = attribution.attribute(new Object());
+
+        assertTrue(verdict.getDroppedLinks().isEmpty());
+        assertFalse(verdict.isFor(attempt));
+        assertEquals(0, attribution.getExpectedCount());
+    }
+
+    @Test
+    public void softApLinksOnlyGetWhatNothingElseExplains() {
+        DisconnectAttribution<String> attribution = this.attribution(60000);
+        this.link(attribution, "PROV_AP", DisconnectAttribution.STATE_UNKNOWN);
+        this.states.put("PROV_2", DisconnectAttribution.STATE_CONNECTED);
+        Object attempt = new Object();
+        attribution.connecting(attempt, "PROV_2", "PROV_2"); // link up, CONNECTED event not handled yet
+
+        DisconnectAttribution.Verdict<String> verdict = attribution.attribute(new Object());
+
+        assertEquals(Collections.singletonMap("PROV_AP", "PROV_AP"), verdict.getDroppedLinks());
+        assertFalse(verdict.isFor(attempt));
+    }
+
+    @Test
+    public void everySubscriberGetsTheSameAnswerForOneEvent() {
+        DisconnectAttribution<String> attribution = this.attribution(60000);
+        this.link(attribution, "PROV_AP", DisconnectAttribution.STATE_UNKNOWN);
+        this.closing(attribution, "PROV_2");
+        Object event = new Object();
+
+        DisconnectAttribution.Verdict<String> first = attribution.attribute(event);
+        DisconnectAttribution.Verdict<String> second = attribution.attribute(event);
+
+        assertSame(first, second);
+        assertTrue(first.getDroppedLinks().isEmpty());
+        assertEquals(Collections.singletonMap("PROV_AP", "PROV_AP"), attribution.attribute(new Object()).getDroppedLinks());
+    }
+
+    @Test
+    public void expectedDisconnectsThatNeverArriveRunOut() throws InterruptedException {
+        DisconnectAttribution<String> attribution = this.attribution(20);
+        this.link(attribution, "PROV_AP", DisconnectAttribution.STATE_UNKNOWN);
+        this.closing(attribution, "PROV_2");
+        this.closing(attribution, "PROV_3");
+
+        Thread.sleep(60);
+
+        assertEquals(0, attribution.getExpectedCount());
+        assertEquals(Collections.singletonMap("PROV_AP", "PROV_AP"), attribution.attribute(new Object()).getDroppedLinks());
+    }
+
+    private DisconnectAttribution<String> attribution(long expectedWindowMillis) {
+        return new DisconnectAttribution<String>(this.links, (deviceName, device) -> this.states.get(deviceName), expectedWindowMillis);
+    }
+
+    /**
+     * A link that came up through a connect, now in the given state.
+     */
+    private void link(DisconnectAttribution<String> attribution, String deviceName, int state) {
+        Object attempt = new Object();
+        attribution.connecting(attempt, deviceName, deviceName);
+        this.links.add(deviceName, deviceName);
+        attribution.linked(attempt);
+        this.states.put(deviceName, state);
+    }
+
+    /**
+     * The plugin disconnecting a device whose link is still up.
+     */
+    private void closing(DisconnectAttribution<String> attribution, String deviceName) {
+        this.states.put(deviceName, DisconnectAttribution.STATE_CONNECTED);
+        attribution.expect(deviceName, deviceName);
+    }
+
+    /**
+     * A connect still waiting on the radio - its GATT connection isn't up yet.
+     */
+    private Object connecting(DisconnectAttribution<String> attribution, String deviceName) {
+        Object attempt = new Object();
+        this.states.put(deviceName, DisconnectAttribution.STATE_DISCONNECTED);
+        attribution.connecting(attempt, deviceName, deviceName);
+        return attempt;
+    }
+
+}
@@ -0,0 +1,254 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the plugin's load, resume and destroy cycle over and over, the way a kiosk app reloading its WebView all day
+ * does, and checks nothing is left behind.
+ */
+public class LifecycleResourcesTest {
+
+    private static final int CYCLES = 5000;
+
+    @Test
+    public void cyclingTheLifecycleLeavesNothingRegistered() {
+        FakeContext context = new FakeContext();
+
+        for (int i = 0; i < CYCLES; i++) {
+            LifecycleResources resources = this.load(context, null);
+            resources.start(); // resume
+            resources.start();
+            assertEquals(1, context.receivers.size());
+
+            resources.close(); // destroy
+            assertEquals(0, context.receivers.size());
+        }
+
+        assertEquals(CYCLES, context.registrations);
+        assertEquals(CYCLES, context.unregistrations);
+    }
+
+    @Test
+    public void destroyedInstancesCanBeCollected() throws InterruptedException {
+        FakeContext context = new FakeContext();
+        List<WeakReference<Object>> receivers = new ArrayList<WeakReference<Object>>();
+
+        for (int i = 0; i < CYCLES; i++) {
+            LifecycleResources resources = this.load(context, receivers);
+            resources.close();
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline && countLive(receivers) > 0) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        assertEquals(0, countLive(receivers));
+    }
+
+    @Test
+    public void closingStopsTheThreads() throws InterruptedException {
+        for (int i = 0; i < 2000; i++) {
+            LifecycleResources resources = new LifecycleResources();
+            ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "lifecycle-test-worker"));
+            executor.execute(() -> {});
+            resources.addCloseable(executor::shutdown);
+            resources.close();
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline && countThreads("lifecycle-test-worker") > 0) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(0, countThreads("lifecycle-test-worker"));
+    }
+
+    @Test
+    public void closingReleasesEverythingTheWorkersCreate() throws Exception {
+        File directory = Files.createTempDirectory("workers").toFile();
+        try {
+            LifecycleResources resources = new LifecycleResources();
+            Workers workers = new Workers(resources, new ProvisioningHistory(directory), 500);
+            assertEquals(5, resources.getCloseableCount());
+
+            CountDownLatch ran = new CountDownLatch(3);
+            workers.callbackExecutor.execute(ran::countDown);
+            workers.handshakeExecutor.execute(ran::countDown);
+            workers.timeoutScheduler.schedule(ran::countDown, 0);
+            workers.payloadCompressor.compress(new byte[1024]);
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+            resources.close();
+
+            assertTrue(workers.callbackExecutor.isTerminated());
+            assertTrue(workers.handshakeExecutor.awaitTermination(5, TimeUnit.SECONDS));
+            try {
+                workers.payloadCompressor.compress(new byte[1024]);
+                fail("The compressor should have been released");
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void schedulingAfterShutdownHandsBackACancelledTimeout() throws InterruptedException {
+        TimeoutScheduler scheduler = new TimeoutScheduler(5, 8);
+        scheduler.shutdown();
+
+        CountDownLatch ran = new CountDownLatch(1);
+        TimeoutScheduler.Timeout timeout = scheduler.schedule(ran::countDown, 0);
+
+        assertFalse(timeout.cancel());
+        assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+        assertFalse(timeout.isExpired());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void closesNewestFirstAndCarriesOnPastFailures() {
+        List<String> closed = new ArrayList<String>();
+        LifecycleResources resources = new LifecycleResources();
+
+        resources.addCloseable(() -> closed.add("compressor"));
+        resources.addCloseable(() -> {
+            throw new IllegalStateException("stuck");
+        });
+        resources.addCloseable(() -> closed.add("executor"));
+        resources.close();
+        resources.close();
+
+        assertEquals(Arrays.asList("executor", "compressor"), closed);
+        assertEquals(0, resources.getCloseableCount());
+    }
+
+    @Test
+    public void nothingIsHeldOnceClosed() {
+        FakeContext context = new FakeContext();
+        List<String> closed = new ArrayList<String>();
+        LifecycleResources resources = new LifecycleResources();
+        resources.close();
+
+        resources.add("receiver", context.registration(new Object()));
+        resources.start();
+        resources.addCloseable(() -> closed.add("late"));
+
+        assertEquals(0, context.receivers.size());
+        assertEquals(0, resources.getRegisteredCount());
+        assertEquals(Collections.singletonList("late"), closed);
+    }
+
+    @Test
+    public void registersWhatIsAddedAfterStarting() {
+        FakeContext context = new FakeContext();
+        LifecycleResources resources = new LifecycleResources();
+        resources.start();
+
+        resources.add("receiver", context.registration(new Object()));
+        assertEquals(1, context.receivers.size());
+
+        resources.stop();
+        assertEquals(0, context.receivers.size());
+        resources.start();
+        assertEquals(1, context.receivers.size());
+        resources.close();
+        assertEquals(0, context.receivers.size());
+    }
+
+    @Test
+    public void unregisteringSomethingAlreadyGoneIsIgnored() {
+        FakeContext context = new FakeContext();
+        Object receiver = new Object();
+        LifecycleResources resources = new LifecycleResources();
+        resources.add("receiver", context.registration(receiver));
+        resources.start();
+
+        context.receivers.remove(receiver); // the system dropped it
+        resources.close();
+
+        assertTrue(resources.isClosed());
+    }
+
+    /**
+     * Does what EspProvisioningBLE does on construction and load. The receiver pins a buffer, the way a real one
+     * pins the plugin and the activity.
+     */
+    private LifecycleResources load(FakeContext context, List<WeakReference<Object>> receivers) {
+        LifecycleResources resources = new LifecycleResources();
+        Object receiver = new byte[64 * 1024];
+        if (receivers != null) receivers.add(new WeakReference<Object>(receiver));
+
+        resources.add("bluetoothStateReceiver", context.registration(receiver));
+        resources.addCloseable(() -> {});
+        resources.start();
+        return resources;
+    }
+
+    private static int countLive(List<WeakReference<Object>> references) {
+        int live = 0;
+        for (WeakReference<Object> reference : references) {
+            if (reference.get() != null) live++;
+        }
+        return live;
+    }
+
+    private static int countThreads(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name) && thread.isAlive()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Keeps registered receivers the way a Context does, and throws for unknown ones the way unregisterReceiver()
+     * does.
+     */
+    private static class FakeContext {
+
+        final Set<Object> receivers = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        int registrations = 0;
+        int unregistrations = 0;
+
+        LifecycleResources.Registration registration(Object receiver) {
+            return new LifecycleResources.Registration() {
+
+                @Override
+                public void register() {
+                    if (!receivers.add(receiver)) throw new IllegalStateException("Receiver registered twice");
+                    registrations++;
+                }
+
+                @Override
+                public void unregister() {
+                    if (!receivers.remove(receiver)) throw new IllegalArgumentException("Receiver not registered");
+                    unregistrations++;
+                }
+
+            };
+        }
+
+    }
+
+}
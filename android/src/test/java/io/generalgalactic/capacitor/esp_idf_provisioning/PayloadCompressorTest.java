@@ -0,0 +1,80 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+public class PayloadCompressorTest {
+
+    @Test
+    public void roundTripsPayloadsOverTheThreshold() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor(16);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] payload = repeated("{\"ssid\":\"home\",\"attempt\":" + i + "}", 40);
+            byte[] compressed = compressor.compress(payload);
+
+            assertTrue(PayloadCompressor.isCompressed(compressed));
+            assertTrue(compressed.length < payload.length);
+            assertArrayEquals(payload, compressor.decompress(compressed));
+        }
+        compressor.release();
+    }
+
+    @Test
+    public void sendsSmallAndIncompressiblePayloadsAsTheyAre() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor(64);
+
+        byte[] small = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+        assertSame(small, compressor.compress(small));
+
+        byte[] noise = new byte[512];
+        new Random(7).nextBytes(noise);
+        noise[0] = '{';
+        assertSame(noise, compressor.compress(noise));
+
+        // The firmware answering uncompressed is passed straight through
+        assertSame(small, compressor.decompress(small));
+        compressor.release();
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void rejectsTruncatedPayloads() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor(16);
+        byte[] compressed = compressor.compress(repeated("provisioning ", 100));
+
+        try {
+            compressor.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+        } finally {
+            compressor.release();
+        }
+    }
+
+    @Test
+    public void canBeReleasedMoreThanOnce() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor(16);
+        compressor.release();
+        compressor.release();
+
+        byte[] small = "{}".getBytes(StandardCharsets.UTF_8);
+        assertSame(small, compressor.compress(small));
+        try {
+            compressor.compress(repeated("provisioning ", 100));
+            fail("compressed after release");
+        } catch (IllegalStateException e) {
+            assertEquals("PayloadCompressor has been released", e.getMessage());
+        }
+    }
+
+    private static byte[] repeated(String text, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) builder.append(text);
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
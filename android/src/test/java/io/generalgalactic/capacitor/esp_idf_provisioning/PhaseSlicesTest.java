@@ -0,0 +1,134 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PhaseSlicesTest {
+
+    @Test
+    public void doesNothingWithTheNoOpTracer() {
+        PhaseSlices slices = new PhaseSlices();
+
+        slices.begin("PROV_1", PhaseSlices.CONNECT);
+        slices.end("PROV_1", PhaseSlices.CONNECT);
+
+        assertFalse(slices.isEnabled());
+        assertTrue(slices.getOpenPhases("PROV_1").isEmpty());
+    }
+
+    @Test
+    public void writesAsyncSlicesKeyedByDeviceName() {
+        RecordingTracer tracer = new RecordingTracer();
+        PhaseSlices slices = new PhaseSlices(tracer);
+
+        slices.begin("PROV_1", PhaseSlices.SCAN_NETWORKS);
+        slices.begin("PROV_2", PhaseSlices.SCAN_NETWORKS);
+        slices.end("PROV_1", PhaseSlices.SCAN_NETWORKS);
+        slices.end("PROV_2", PhaseSlices.SCAN_NETWORKS);
+
+        assertEquals(Arrays.asList(
+                "begin scanNetworks PROV_1 #" + "PROV_1".hashCode(),
+                "begin scanNetworks PROV_2 #" + "PROV_2".hashCode(),
+                "end scanNetworks PROV_1 #" + "PROV_1".hashCode(),
+                "end scanNetworks PROV_2 #" + "PROV_2".hashCode()), tracer.calls);
+    }
+
+    @Test
+    public void ignoresRepeatedBeginsAndUnmatchedEnds() {
+        RecordingTracer tracer = new RecordingTracer();
+        PhaseSlices slices = new PhaseSlices(tracer);
+
+        slices.end("PROV_1", PhaseSlices.PROVISION); // a late callback after a timeout
+        slices.begin("PROV_1", PhaseSlices.PROVISION);
+        slices.begin("PROV_1", PhaseSlices.PROVISION);
+        slices.end("PROV_1", PhaseSlices.PROVISION);
+        slices.end("PROV_1", PhaseSlices.PROVISION);
+
+        assertEquals(2, tracer.calls.size());
+    }
+
+    @Test
+    public void endingAPhaseEndsItsSubPhases() {
+        RecordingTracer tracer = new RecordingTracer();
+        PhaseSlices slices = new PhaseSlices(tracer);
+
+        slices.begin("PROV_1", PhaseSlices.CONNECT);
+        slices.begin("PROV_1", PhaseSlices.CONNECT_INIT_SESSION);
+        slices.begin("PROV_1", PhaseSlices.customData("custom-data"));
+        slices.end("PROV_1", PhaseSlices.CONNECT);
+
+        assertEquals(Collections.singletonList("customData:custom-data"), slices.getOpenPhases("PROV_1"));
+        assertTrue(tracer.calls.contains("end connect.initSession PROV_1 #" + "PROV_1".hashCode()));
+        assertEquals("end connect PROV_1 #" + "PROV_1".hashCode(), tracer.calls.get(tracer.calls.size() - 1));
+    }
+
+    @Test
+    public void endAllOnlyEndsThatDevice() {
+        RecordingTracer tracer = new RecordingTracer();
+        PhaseSlices slices = new PhaseSlices(tracer);
+
+        slices.begin("PROV_1", PhaseSlices.PROVISION);
+        slices.begin("PROV_1", PhaseSlices.PROVISION_WAIT_FOR_STATION);
+        slices.begin("PROV_2", PhaseSlices.PROVISION);
+        slices.endAll("PROV_1");
+
+        assertTrue(slices.getOpenPhases("PROV_1").isEmpty());
+        assertEquals(Collections.singletonList(PhaseSlices.PROVISION), slices.getOpenPhases("PROV_2"));
+        assertEquals(5, tracer.calls.size());
+    }
+
+    @Test
+    public void switchingTracersEndsOpenSlicesOnTheOldOne() {
+        RecordingTracer tracer = new RecordingTracer();
+        PhaseSlices slices = new PhaseSlices(tracer);
+
+        slices.begin(null, PhaseSlices.SCAN);
+        slices.begin("PROV_1", PhaseSlices.CONNECT);
+        slices.setTracer(PhaseTracer.NONE);
+
+        assertTrue(tracer.calls.contains("end scan #0"));
+        assertTrue(tracer.calls.contains("end connect PROV_1 #" + "PROV_1".hashCode()));
+        assertEquals(4, tracer.calls.size());
+
+        slices.end("PROV_1", PhaseSlices.CONNECT);
+        assertEquals(4, tracer.calls.size());
+    }
+
+    private static class RecordingTracer implements PhaseTracer {
+
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public void beginSection(String name) {
+            this.calls.add("section " + name);
+        }
+
+        @Override
+        public void endSection() {
+            this.calls.add("end section");
+        }
+
+        @Override
+        public void beginAsyncSection(String name, int cookie) {
+            this.calls.add("begin " + name + " #" + cookie);
+        }
+
+        @Override
+        public void endAsyncSection(String name, int cookie) {
+            this.calls.add("end " + name + " #" + cookie);
+        }
+
+    }
+
+}
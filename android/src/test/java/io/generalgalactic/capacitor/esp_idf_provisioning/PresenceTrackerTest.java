@@ -0,0 +1,84 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PresenceTrackerTest {
+
+    @Test
+    public void reportsEachDeviceOnceUntilItIsLost() {
+        RecordingListener listener = new RecordingListener();
+        PresenceTracker tracker = new PresenceTracker(10000, listener);
+
+        tracker.seen("PROV_1", -60, 0);
+        tracker.seen("PROV_1", -61, 100);
+        tracker.seen("PROV_2", -70, 200);
+        tracker.sweep(5000);
+
+        assertEquals(Arrays.asList("appeared PROV_1 -60", "appeared PROV_2 -70"), listener.events);
+
+        tracker.seen("PROV_2", -70, 6000);
+        tracker.sweep(10100);
+        assertEquals("lost PROV_1", listener.events.get(2));
+        assertEquals(Collections.singletonList("PROV_2"), tracker.getPresent());
+
+        tracker.seen("PROV_1", -55, 11000);
+        assertEquals("appeared PROV_1 -55", listener.events.get(3));
+    }
+
+    @Test
+    public void throttlesRssiChanges() {
+        RecordingListener listener = new RecordingListener();
+        PresenceTracker tracker = new PresenceTracker(10000, 5, 1000, listener);
+
+        tracker.seen("PROV_1", -60, 0);
+        tracker.seen("PROV_1", -70, 500);  // too soon
+        tracker.seen("PROV_1", -63, 1500); // too small a change
+        tracker.seen("PROV_1", -70, 1600);
+        tracker.seen("PROV_1", -80, 2000); // too soon after the last report
+        tracker.seen("PROV_1", -80, 2700);
+
+        assertEquals(Arrays.asList("appeared PROV_1 -60", "rssi PROV_1 -70", "rssi PROV_1 -80"), listener.events);
+    }
+
+    @Test
+    public void clearingForgetsWithoutReportingLosses() {
+        RecordingListener listener = new RecordingListener();
+        PresenceTracker tracker = new PresenceTracker(10000, listener);
+
+        tracker.seen("PROV_1", -60, 0);
+        tracker.clear();
+        tracker.sweep(20000);
+
+        assertEquals(1, listener.events.size());
+        assertTrue(tracker.getPresent().isEmpty());
+    }
+
+    private static class RecordingListener implements PresenceTracker.Listener {
+
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void deviceAppeared(String deviceName, int rssi) {
+            this.events.add("appeared " + deviceName + " " + rssi);
+        }
+
+        @Override
+        public void deviceLost(String deviceName) {
+            this.events.add("lost " + deviceName);
+        }
+
+        @Override
+        public void rssiChanged(String deviceName, int rssi) {
+            this.events.add("rssi " + deviceName + " " + rssi);
+        }
+
+    }
+
+}
@@ -0,0 +1,162 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ProvisioningHistoryTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("history").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        this.directory.delete();
+    }
+
+    @Test
+    public void roundTripsFieldsWithTabsNewlinesAndBackslashes() {
+        HistoryEntry entry = new HistoryEntry(1700000000000L, "PROV\t1", null, HistoryEntry.OUTCOME_FAILED, HistoryEntry.PHASE_PROVISION,
+                812, 1430, -1, -1, 2, "AUTH_FAILED", "line one\nline two\r\n\\0 is not null\\");
+
+        String line = entry.toLine();
+        assertFalse(line.contains("\n"));
+        assertEquals(13, line.split("\t", -1).length);
+        assertEquals(1700000000000L, HistoryEntry.timestampOf(line));
+
+        HistoryEntry read = HistoryEntry.fromLine(line);
+        assertNotNull(read);
+        assertEquals("PROV\t1", read.getDeviceName());
+        assertNull(read.getAddress());
+        assertEquals(HistoryEntry.OUTCOME_FAILED, read.getOutcome());
+        assertEquals(812, read.getConnectTime());
+        assertEquals(-1, read.getProvisionTime());
+        assertEquals(2, read.getRetries());
+        assertEquals("line one\nline two\r\n\\0 is not null\\", read.getMessage());
+    }
+
+    @Test
+    public void skipsLinesItCantRead() {
+        String line = entry(0, HistoryEntry.OUTCOME_SUCCESS).toLine();
+
+        assertNull(HistoryEntry.fromLine(line.substring(0, line.indexOf("\t800"))));
+        assertNull(HistoryEntry.fromLine("2" + line.substring(1)));
+        assertNull(HistoryEntry.fromLine(line.replace("\t" + 1000 + "\t", "\tsoon\t")));
+        assertNull(HistoryEntry.fromLine(""));
+        assertEquals(-1, HistoryEntry.timestampOf("1\t17000"));
+    }
+
+    @Test
+    public void rotatesOnlyOnceAFileIsFull() throws Exception {
+        int lineLength = entry(0, HistoryEntry.OUTCOME_SUCCESS).toLine().length() + 1;
+        ProvisioningHistory history = new ProvisioningHistory(this.directory, lineLength * 2, 3);
+
+        history.append(entry(0, HistoryEntry.OUTCOME_SUCCESS));
+        history.append(entry(1, HistoryEntry.OUTCOME_SUCCESS));
+        assertEquals(Arrays.asList(0, 1), indexes(query(history, 0, 100, null)));
+        assertEquals(Arrays.asList("history.log"), this.fileNames());
+
+        for (int i = 2; i < 7; i++) history.append(entry(i, HistoryEntry.OUTCOME_SUCCESS));
+
+        // [0 1] [2 3] [4 5] [6] with three files kept drops the oldest pair
+        assertEquals(Arrays.asList(2, 3, 4, 5, 6), indexes(query(history, 0, 100, null)));
+        assertEquals(Arrays.asList("history.1.log", "history.2.log", "history.log"), this.fileNames());
+        history.close();
+    }
+
+    @Test
+    public void returnsTheMostRecentEntriesOldestFirst() throws Exception {
+        ProvisioningHistory history = new ProvisioningHistory(this.directory, 200, 8);
+        for (int i = 0; i < 10; i++) {
+            history.append(entry(i, i % 3 == 0 ? HistoryEntry.OUTCOME_FAILED : HistoryEntry.OUTCOME_SUCCESS));
+        }
+
+        assertEquals(Arrays.asList(7, 8, 9), indexes(query(history, 0, 3, null)));
+        assertEquals(Arrays.asList(4, 5, 7, 8), indexes(query(history, 1004, 100, HistoryEntry.OUTCOME_SUCCESS)));
+        assertEquals(Arrays.asList(7, 8), indexes(query(history, 1004, 2, HistoryEntry.OUTCOME_SUCCESS)));
+        assertEquals(Arrays.asList(0, 3, 6, 9), indexes(query(history, 0, 100, HistoryEntry.OUTCOME_FAILED)));
+        assertTrue(query(history, 0, 0, null).isEmpty());
+        assertTrue(query(history, 2000, 100, null).isEmpty());
+        history.close();
+    }
+
+    @Test
+    public void keepsAppendingAfterALineCutShortByACrash() throws Exception {
+        String torn = entry(0, HistoryEntry.OUTCOME_SUCCESS).toLine();
+        try (OutputStream out = new FileOutputStream(new File(this.directory, "history.log"))) {
+            out.write(torn.substring(0, torn.length() / 2).getBytes(StandardCharsets.UTF_8));
+        }
+
+        ProvisioningHistory history = new ProvisioningHistory(this.directory);
+        history.append(entry(1, HistoryEntry.OUTCOME_TIMEOUT));
+
+        List<HistoryEntry> entries = query(history, 0, 100, null);
+        assertEquals(Arrays.asList(1), indexes(entries));
+        assertEquals(HistoryEntry.OUTCOME_TIMEOUT, entries.get(0).getOutcome());
+        history.close();
+    }
+
+    /**
+     * Same length for every index under 10, so the rotation boundaries fall on whole entries.
+     */
+    private static HistoryEntry entry(int index, String outcome) {
+        return new HistoryEntry(1000 + index, "PROV_" + index, "AA:BB:CC:DD:EE:0" + index, outcome, HistoryEntry.PHASE_PROVISION,
+                800, 1400, 3000, 4500, 0, null, "ok");
+    }
+
+    private static List<Integer> indexes(List<HistoryEntry> entries) {
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (HistoryEntry entry : entries) indexes.add((int) (entry.getTimestamp() - 1000));
+        return indexes;
+    }
+
+    private List<String> fileNames() {
+        List<String> names = new ArrayList<String>(Arrays.asList(this.directory.list()));
+        names.sort(null);
+        return names;
+    }
+
+    private static List<HistoryEntry> query(ProvisioningHistory history, long since, int limit, String outcome) throws InterruptedException {
+        AtomicReference<List<HistoryEntry>> result = new AtomicReference<List<HistoryEntry>>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        history.query(since, limit, outcome, new ProvisioningHistory.QueryCallback() {
+            @Override
+            public void entriesFound(List<HistoryEntry> entries) {
+                result.set(entries);
+                done.countDown();
+            }
+
+            @Override
+            public void queryFailed(Exception e) {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotNull("query failed", result.get());
+        return result.get();
+    }
+
+}
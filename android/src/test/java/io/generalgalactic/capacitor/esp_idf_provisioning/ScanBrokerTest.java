@@ -0,0 +1,194 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import com.espressif.provisioning.ESPConstants;
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ScanBrokerTest {
+
+    private static final ESPConstants.TransportType BLE = ESPConstants.TransportType.TRANSPORT_BLE;
+    private static final ESPConstants.TransportType SOFTAP = ESPConstants.TransportType.TRANSPORT_SOFTAP;
+
+    private DeviceRegistry devices;
+    private FakeScanner scanner;
+    private ScanBroker broker;
+
+    @Before
+    public void setUp() {
+        this.devices = new DeviceRegistry();
+        this.scanner = new FakeScanner();
+        this.broker = new ScanBroker(this.devices, Collections::<String>emptyList, this.scanner);
+    }
+
+    @Test
+    public void overlappingSearchesShareOneScan() {
+        RecordingCaller all = new RecordingCaller();
+        RecordingCaller some = new RecordingCaller();
+
+        this.broker.submit(new ScanBroker.Request(BLE, "PROV_", false, all));
+        this.broker.submit(new ScanBroker.Request(BLE, "PROV_A", false, some));
+        assertEquals(1, this.scanner.started.size());
+        assertEquals(2, this.broker.getRunning().getCallerCount());
+
+        ScanBroker.PhysicalScan scan = this.scanner.started.get(0);
+        scan.add(device("PROV_A1"));
+        scan.add(device("PROV_B1"));
+        scan.complete();
+
+        assertEquals(Arrays.asList("PROV_A1", "PROV_B1"), all.names());
+        assertEquals(Collections.singletonList("PROV_A1"), some.names());
+        assertNotNull(this.devices.get("PROV_B1"));
+        assertNull(this.broker.getRunning());
+    }
+
+    @Test
+    public void searchesThatCantJoinWaitAndThenShareTheNextScan() {
+        RecordingCaller first = new RecordingCaller();
+        RecordingCaller second = new RecordingCaller();
+        RecordingCaller third = new RecordingCaller();
+        RecordingCaller softAp = new RecordingCaller();
+
+        this.broker.submit(new ScanBroker.Request(BLE, "PROV_A", false, first));
+        this.broker.submit(new ScanBroker.Request(BLE, "PROV_B1", false, second));
+        this.broker.submit(new ScanBroker.Request(SOFTAP, "PROV_", false, softAp));
+        this.broker.submit(new ScanBroker.Request(BLE, "PROV_B2", false, third));
+        assertEquals(1, this.scanner.started.size());
+        assertEquals(3, this.broker.getWaitingCount());
+
+        this.scanner.started.get(0).complete();
+
+        assertEquals(2, this.scanner.started.size());
+        ScanBroker.PhysicalScan next = this.scanner.started.get(1);
+        assertEquals("PROV_B", next.getDevicePrefix());
+        assertEquals(BLE, next.getTransport());
+        assertEquals(2, next.getCallerCount());
+
+        next.add(device("PROV_B1"));
+        next.add(device("PROV_B2"));
+        next.complete();
+
+        assertEquals(Collections.singletonList("PROV_B1"), second.names());
+        assertEquals(Collections.singletonList("PROV_B2"), third.names());
+        assertEquals(SOFTAP, this.scanner.started.get(2).getTransport());
+        assertNull(softAp.devices);
+    }
+
+    @Test
+    public void partialSearchesTakeWhatHasBeenFoundSoFar() {
+        RecordingCaller full = new RecordingCaller();
+        RecordingCaller partial = new RecordingCaller();
+
+        this.broker.submit(new ScanBroker.Request(BLE, "PROV_", false, full));
+        ScanBroker.PhysicalScan scan = this.scanner.started.get(0);
+        scan.add(device("PROV_A1"));
+
+        this.broker.submit(new ScanBroker.Request(BLE, "PROV_", true, partial));
+        assertEquals(Collections.singletonList("PROV_A1"), partial.names());
+        assertEquals(1, scan.getCallerCount());
+        assertNotNull(this.broker.find("PROV_A1"));
+
+        scan.add(device("PROV_A2"));
+        scan.complete();
+        assertEquals(Arrays.asList("PROV_A1", "PROV_A2"), full.names());
+    }
+
+    @Test
+    public void theScanStopsWhenItsLastCallerLeaves() {
+        RecordingCaller first = new RecordingCaller();
+        RecordingCaller second = new RecordingCaller();
+        RecordingCaller waiting = new RecordingCaller();
+        ScanBroker.Request firstRequest = new ScanBroker.Request(BLE, "PROV_", false, first);
+        ScanBroker.Request secondRequest = new ScanBroker.Request(BLE, "PROV_", false, second);
+
+        this.broker.submit(firstRequest);
+        this.broker.submit(secondRequest);
+        this.broker.submit(new ScanBroker.Request(SOFTAP, "PROV_", false, waiting));
+        ScanBroker.PhysicalScan scan = this.scanner.started.get(0);
+
+        assertTrue(this.broker.leave(firstRequest));
+        assertTrue(this.scanner.stopped.isEmpty());
+
+        assertTrue(this.broker.leave(secondRequest));
+        assertEquals(Collections.singletonList(scan), this.scanner.stopped);
+        assertEquals(SOFTAP, this.scanner.started.get(1).getTransport());
+
+        // The stopped scan completing late changes nothing
+        scan.add(device("PROV_A1"));
+        scan.complete();
+        assertNull(first.devices);
+        assertNull(this.devices.get("PROV_A1"));
+        assertFalse(this.broker.leave(firstRequest));
+    }
+
+    @Test
+    public void failuresReachEveryCaller() {
+        RecordingCaller first = new RecordingCaller();
+        RecordingCaller second = new RecordingCaller();
+
+        this.broker.submit(new ScanBroker.Request(BLE, "PROV_", false, first));
+        this.broker.submit(new ScanBroker.Request(BLE, "PROV_A", false, second));
+        this.scanner.started.get(0).fail(new Exception("BLE Scan failed: boom"));
+
+        assertEquals("BLE Scan failed: boom", first.error.getMessage());
+        assertEquals("BLE Scan failed: boom", second.error.getMessage());
+        assertNull(this.broker.getRunning());
+    }
+
+    private static DiscoveredBluetoothDevice device(String name) {
+        WiFiAccessPoint accessPoint = new WiFiAccessPoint();
+        accessPoint.setWifiName(name);
+        accessPoint.setRssi(-50);
+        return new DiscoveredBluetoothDevice(accessPoint);
+    }
+
+    private static class FakeScanner implements ScanBroker.Scanner {
+
+        final List<ScanBroker.PhysicalScan> started = new ArrayList<ScanBroker.PhysicalScan>();
+        final List<ScanBroker.PhysicalScan> stopped = new ArrayList<ScanBroker.PhysicalScan>();
+
+        @Override
+        public void start(ScanBroker.PhysicalScan scan) {
+            this.started.add(scan);
+        }
+
+        @Override
+        public void stop(ScanBroker.PhysicalScan scan) {
+            this.stopped.add(scan);
+        }
+
+    }
+
+    private static class RecordingCaller implements ScanBroker.Caller {
+
+        List<DiscoveredBluetoothDevice> devices;
+        Exception error;
+
+        @Override
+        public void scanCompleted(List<DiscoveredBluetoothDevice> devices) {
+            this.devices = devices;
+        }
+
+        @Override
+        public void scanFailed(Exception e) {
+            this.error = e;
+        }
+
+        List<String> names() {
+            List<String> names = new ArrayList<String>();
+            for (DiscoveredBluetoothDevice device : this.devices) names.add(device.getName());
+            Collections.sort(names);
+            return names;
+        }
+
+    }
+
+}
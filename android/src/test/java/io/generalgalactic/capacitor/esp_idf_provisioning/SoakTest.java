@@ -0,0 +1,806 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import com.espressif.provisioning.DeviceConnectionEvent;
+import com.espressif.provisioning.ESPConstants;
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hours of use squeezed into one run. Lanes of scan, connect, provision and disconnect cycles go against a fake
+ * device layer that drops links mid-provision, lets connects time out and then answer late, fails GATT operations
+ * and answers slowly. Like the ESP library, the fake reports connects and disconnects on one shared event bus
+ * without saying which device they're about, and sessions get closed to make room for other connects, so every
+ * link and connect hears everyone else's disconnects. The plugin's own ScanBroker, DeviceRegistry,
+ * ConnectionScheduler, TimeoutScheduler, OperationTracker, Links and DisconnectAttribution do the bookkeeping;
+ * Core's connect and disconnect handling copies EspProvisioningBLE's, which needs a running Android.
+ *
+ * Afterwards nothing may be left behind (links, sessions, subscribers, in-flight operations, pending deadlines,
+ * connection slots, scan callers), no call may have gone unanswered or been answered twice, no disconnect may have
+ * been put down to the wrong device, the heap mustn't have grown and the cycle rate mustn't have dropped off.
+ *
+ * It takes a while and checks wall-clock throughput, so it only runs when soak.cycles is set. 20000 cycles take
+ * about ten seconds; to certify a release, run it for longer, e.g.
+ * ./gradlew test --tests '*SoakTest' -Dsoak.cycles=2000000 -Dsoak.lanes=8
+ */
+public class SoakTest {
+
+    private static final ESPConstants.TransportType BLE = ESPConstants.TransportType.TRANSPORT_BLE;
+
+    private static final int CYCLES = Integer.getInteger("soak.cycles", 20000);
+    private static final int LANES = Integer.getInteger("soak.lanes", 8);
+    private static final long SEED = Long.getLong("soak.seed", 1);
+    private static final double DISCONNECT_RATE = doubleProperty("soak.disconnectRate", 0.02);
+    private static final double CONNECT_TIMEOUT_RATE = doubleProperty("soak.connectTimeoutRate", 0.01);
+    private static final double GATT_FAILURE_RATE = doubleProperty("soak.gattFailureRate", 0.02);
+    private static final double SLOW_RATE = doubleProperty("soak.slowRate", 0.05);
+    private static final double MIN_OPS_PER_SECOND = doubleProperty("soak.minOpsPerSecond", 200);
+    private static final long MAX_HEAP_GROWTH = Long.getLong("soak.maxHeapGrowthMb", 16) * 1024 * 1024;
+
+    // Short enough that the injected timeouts don't dominate the run
+    private static final long CONNECT_TIMEOUT = 40;
+    private static final long PROVISION_TIMEOUT = 80;
+    private static final long SLOW_RESPONSE = 5;
+    private static final long LATE_RESPONSE = 60;
+    private static final long STUCK_AFTER = 5000;
+    private static final int NOISE_PER_SCAN = 2;
+
+    private FakeRadio radio;
+    private Core core;
+
+    @After
+    public void tearDown() {
+        if (this.core != null) this.core.shutdown();
+        if (this.radio != null) this.radio.shutdown();
+    }
+
+    @Test
+    public void cyclingUnderFaultsLeavesNothingBehind() throws Exception {
+        Assume.assumeTrue("set soak.cycles to run", System.getProperty("soak.cycles") != null);
+
+        this.radio = new FakeRadio(new Random(SEED));
+        this.core = new Core(this.radio);
+        Outcomes outcomes = new Outcomes();
+
+        this.run(Math.max(LANES, CYCLES / 10), new Outcomes()); // warm up the JIT and the pools before measuring
+        this.settle();
+        long heapBefore = usedHeap();
+
+        long startedAt = System.nanoTime();
+        this.run(CYCLES, outcomes);
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        this.settle();
+        long heapGrowth = usedHeap() - heapBefore;
+
+        double opsPerSecond = CYCLES / seconds;
+
+        assertEquals("calls left unanswered: " + outcomes, 0, outcomes.stuck.get());
+        assertEquals(CYCLES, outcomes.total());
+        assertEquals("calls answered twice", 0, this.core.answeredTwice.get());
+        assertEquals("connects failed by another link's disconnect", 0, this.core.connectsFailedByDisconnect.get());
+        assertEquals("disconnects blamed on links that didn't drop", 0, this.core.wronglyBlamed.get());
+
+        assertEquals("links left open", 0, this.radio.getLinkCount());
+        assertEquals("sessions left open", 0, this.core.links.size());
+        assertEquals("subscribers left registered", 0, this.radio.bus.getSubscriberCount());
+        assertEquals("connects left waiting on the radio", 0, this.core.disconnects.getConnectingCount());
+        assertEquals("operations left in flight", 0, this.core.operations.getInFlightCount());
+        assertEquals("operations left suspended", 0, this.core.operations.getSuspendedCount());
+        assertEquals("deadlines left pending", 0, this.core.timeouts.getPendingCount());
+        assertEquals(0, this.core.scheduler.getOpenCount());
+        assertEquals(0, this.core.scheduler.getConnectingCount());
+        assertEquals(0, this.core.scheduler.getWaitingCount());
+        assertNull(this.core.broker.getRunning());
+        assertEquals(0, this.core.broker.getWaitingCount());
+        assertTrue("scan results pile up", this.core.devices.snapshot().getDevices().size() <= LANES + NOISE_PER_SCAN);
+
+        assertTrue(String.format("heap grew by %dKB", heapGrowth / 1024), heapGrowth < MAX_HEAP_GROWTH);
+        assertTrue(String.format("%.0f cycles/s", opsPerSecond), opsPerSecond >= MIN_OPS_PER_SECOND);
+        assertTrue("the cycle rate dropped off", outcomes.secondHalfRate() >= outcomes.firstHalfRate() / 2);
+
+        // Make sure the faults were actually exercised, so a quiet run can't pass by accident
+        if (CYCLES * DISCONNECT_RATE >= 20) assertTrue(outcomes.disconnected.get() > 0);
+        if (CYCLES * CONNECT_TIMEOUT_RATE >= 20) assertTrue(outcomes.timedOut.get() > 0);
+        if (CYCLES * GATT_FAILURE_RATE >= 20) assertTrue(outcomes.failed.get() > 0);
+        if (CYCLES >= 1000) assertTrue(this.core.closedToMakeRoom.get() > 0);
+        if (CYCLES >= 1000) assertTrue(this.core.droppedLinks.get() > 0);
+        assertTrue(this.core.droppedLinks.get() <= this.radio.getDropCount());
+        assertTrue(this.radio.bus.getRegistrations() > 0);
+    }
+
+    private void run(int cycles, Outcomes outcomes) throws InterruptedException {
+        AtomicInteger remaining = new AtomicInteger(cycles);
+        List<Thread> lanes = new ArrayList<Thread>();
+        outcomes.start(cycles);
+
+        for (int lane = 0; lane < LANES; lane++) {
+            String deviceName = String.format("PROV_%02d", lane);
+            Random random = new Random(SEED + lane);
+            Thread thread = new Thread(() -> {
+                while (remaining.getAndDecrement() > 0) {
+                    this.cycle(deviceName, random, outcomes);
+                }
+            }, "soak-lane-" + lane);
+            lanes.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : lanes) thread.join();
+    }
+
+    /**
+     * One scan, connect, provision, disconnect, as the app drives it: each step waits for the previous one's answer,
+     * and the session is closed whatever happened.
+     */
+    private void cycle(String deviceName, Random random, Outcomes outcomes) {
+        try {
+            List<DiscoveredBluetoothDevice> found = await(this.core.search(deviceName, random.nextDouble() < 0.2));
+            if (!contains(found, deviceName)) {
+                outcomes.notFound.incrementAndGet();
+                return;
+            }
+
+            await(this.core.connect(deviceName, random));
+            await(this.core.provision(deviceName, random));
+            outcomes.succeeded.incrementAndGet();
+        } catch (ExecutionException e) {
+            outcomes.failedWith(e.getCause());
+        } catch (TimeoutException e) {
+            outcomes.stuck.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.core.disconnect(deviceName);
+            outcomes.completed();
+        }
+    }
+
+    /**
+     * Waits for the late answers to connects that already timed out, and for the callbacks they queue.
+     */
+    private void settle() throws Exception {
+        long deadline = System.currentTimeMillis() + STUCK_AFTER;
+        while (this.radio.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        this.core.callbacks.submit(() -> {}).get();
+        this.core.callbacks.submit(() -> {}).get();
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws ExecutionException, TimeoutException, InterruptedException {
+        return future.get(STUCK_AFTER, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean contains(List<DiscoveredBluetoothDevice> devices, String deviceName) {
+        for (DiscoveredBluetoothDevice device : devices) {
+            if (deviceName.equals(device.getName())) return true;
+        }
+        return false;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Drives the plugin's own bookkeeping the way EspProvisioningBLE does: scans go through the broker, connects
+     * through the scheduler, every device operation goes through the OperationTracker with a deadline that a
+     * disconnect aborts, links go through Links, and connection events through DisconnectAttribution. Attempt and
+     * the link listener follow EspProvisioningBLE's ConnectionAttempt and disconnection handler step for step -
+     * EspProvisioningBLE itself needs a running Android, so they can't be used as they are.
+     */
+    private static class Core implements ConnectionScheduler.SessionCloser {
+
+        // How long a disconnect Core asked for can take to come back as an event
+        private static final long EXPECTED_DISCONNECT_WINDOW = 2000;
+
+        final FakeRadio radio;
+        final DeviceRegistry devices = new DeviceRegistry();
+        final ScanBroker broker;
+        final ConnectionScheduler scheduler;
+        final TimeoutScheduler timeouts = new TimeoutScheduler(5, 64);
+        final ExecutorService callbacks = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "soak-callbacks"));
+        final OperationTracker operations;
+        final LinkListener linkListener = new LinkListener();
+        final Links<FakeRadio.Link> links = new Links<FakeRadio.Link>(this.linkListener);
+        final DisconnectAttribution<FakeRadio.Link> disconnects;
+        // A call whose operation finished and was also timed out, aborted or cancelled gets two answers
+        final AtomicInteger answeredTwice = new AtomicInteger();
+        // The radio never drops a link that's still coming up, so a connect failed by a disconnect heard someone else's
+        final AtomicInteger connectsFailedByDisconnect = new AtomicInteger();
+        final AtomicInteger droppedLinks = new AtomicInteger();
+        final AtomicInteger wronglyBlamed = new AtomicInteger();
+        final AtomicInteger closedToMakeRoom = new AtomicInteger();
+
+        Core(FakeRadio radio) {
+            this.radio = radio;
+            this.broker = new ScanBroker(this.devices, this.links::getDeviceNames, radio);
+            // One connect at a time, as the plugin does, and fewer slots than lanes so sessions get closed to make room
+            this.scheduler = new ConnectionScheduler(ConnectionScheduler.DEFAULT_MAX_CONCURRENT_CONNECTS, Math.max(1, LANES / 2), ConnectionScheduler.DEFAULT_AGING_MILLIS, this);
+            this.operations = new OperationTracker(new PhaseSlices(), this.timeouts, this.callbacks, this.scheduler::touch);
+            this.disconnects = new DisconnectAttribution<FakeRadio.Link>(this.links, (deviceName, link) -> link.getState(), EXPECTED_DISCONNECT_WINDOW);
+        }
+
+        CompletableFuture<List<DiscoveredBluetoothDevice>> search(String devicePrefix, boolean partial) {
+            CompletableFuture<List<DiscoveredBluetoothDevice>> result = new CompletableFuture<List<DiscoveredBluetoothDevice>>();
+            this.broker.submit(new ScanBroker.Request(BLE, devicePrefix, partial, new ScanBroker.Caller() {
+
+                @Override
+                public void scanCompleted(List<DiscoveredBluetoothDevice> devices) {
+                    result.complete(devices);
+                }
+
+                @Override
+                public void scanFailed(Exception e) {
+                    result.completeExceptionally(e);
+                }
+
+            }));
+            return result;
+        }
+
+        CompletableFuture<Void> connect(String deviceName, Random random) {
+            CompletableFuture<Void> result = new CompletableFuture<Void>();
+            new Attempt(deviceName, random, result).start();
+            return result;
+        }
+
+        CompletableFuture<Void> provision(String deviceName, Random random) {
+            CompletableFuture<Void> result = new CompletableFuture<Void>();
+            FakeRadio.Link link = this.links.get(deviceName);
+            if (link == null) {
+                fail(result, new IllegalStateException("Device not found"));
+                return result;
+            }
+
+            InFlightOperation operation = this.operations.begin(null, deviceName, PhaseSlices.PROVISION, null, error -> this.fail(result, error), () -> {});
+
+            this.radio.request(link, random, new FakeRadio.Reply() {
+
+                @Override
+                public void ok() {
+                    callbacks.execute(() -> {
+                        if (!operations.finish(operation)) return;
+                        succeed(result);
+                    });
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    callbacks.execute(() -> {
+                        if (!operations.finish(operation)) return;
+                        fail(result, e);
+                    });
+                }
+
+            });
+
+            this.operations.startDeadline(operation, PROVISION_TIMEOUT, () -> fail(result, new ProvisionTimeoutException()));
+            return result;
+        }
+
+        void disconnect(String deviceName) {
+            this.operations.abort(deviceName, new Error("Device disconnected"));
+
+            FakeRadio.Link link = this.links.remove(deviceName);
+            if (link != null) this.disconnectDevice(deviceName, link);
+            this.scheduler.released(deviceName);
+        }
+
+        private void disconnectDevice(String deviceName, FakeRadio.Link link) {
+            this.disconnects.expect(deviceName, link);
+            this.radio.disconnect(link);
+        }
+
+        @Override
+        public boolean isIdle(String deviceName) {
+            return !this.operations.hasInFlight(deviceName);
+        }
+
+        @Override
+        public void close(String deviceName) {
+            this.closedToMakeRoom.incrementAndGet();
+            this.disconnect(deviceName);
+        }
+
+        private void succeed(CompletableFuture<Void> result) {
+            if (!result.complete(null)) this.answeredTwice.incrementAndGet();
+        }
+
+        private void fail(CompletableFuture<?> result, Throwable error) {
+            if (!result.completeExceptionally(error)) this.answeredTwice.incrementAndGet();
+        }
+
+        void shutdown() {
+            this.timeouts.shutdown();
+            this.callbacks.shutdownNow();
+        }
+
+        /**
+         * Subscribed while any link is up, and told about every disconnect, like the disconnection handler.
+         */
+        private class LinkListener implements FakeEventBus.Subscriber, LifecycleResources.Registration {
+
+            @Override
+            public void register() {
+                radio.bus.register(this);
+            }
+
+            @Override
+            public void unregister() {
+                radio.bus.unregister(this);
+            }
+
+            @Override
+            public void onEvent(DeviceConnectionEvent event) {
+                callbacks.execute(() -> {
+                    if (event.getEventType() != ESPConstants.EVENT_DEVICE_DISCONNECTED) return;
+                    for (Map.Entry<String, FakeRadio.Link> link : disconnects.attribute(event).getDroppedLinks().entrySet()) {
+                        if (links.get(link.getKey()) != link.getValue()) continue; // already let go
+                        droppedLinks.incrementAndGet();
+                        if (!link.getValue().isDropped()) wronglyBlamed.incrementAndGet();
+                        disconnect(link.getKey());
+                    }
+                });
+            }
+
+        }
+
+        /**
+         * One connect: waits for a slot, connects and listens to the shared event stream until an event it can call
+         * its own turns up, or the deadline, an abort or a cancel gets there first.
+         */
+        private class Attempt implements FakeEventBus.Subscriber {
+
+            private final String deviceName;
+            private final Random random;
+            private final CompletableFuture<Void> result;
+            private final InFlightOperation operation;
+            private FakeRadio.Link link;
+            private volatile ConnectionScheduler.Ticket ticket;
+
+            Attempt(String deviceName, Random random, CompletableFuture<Void> result) {
+                this.deviceName = deviceName;
+                this.random = random;
+                this.result = result;
+                this.operation = operations.begin(null, deviceName, PhaseSlices.CONNECT, null, this::aborted, this::release);
+            }
+
+            void start() {
+                operations.startDeadline(this.operation, CONNECT_TIMEOUT, this::timedOut);
+                scheduler.request(this.deviceName, 0, this::connect);
+            }
+
+            private void connect(ConnectionScheduler.Ticket ticket) {
+                this.ticket = ticket;
+
+                // Timed out or aborted while it was queued
+                if (!operations.isInFlight(this.operation)) {
+                    scheduler.cancel(ticket);
+                    return;
+                }
+
+                this.link = radio.createLink();
+                disconnects.connecting(this, this.deviceName, this.link);
+                radio.bus.register(this);
+                radio.connect(this.link, this.random);
+            }
+
+            @Override
+            public void onEvent(DeviceConnectionEvent event) {
+                if (event.getEventType() == ESPConstants.EVENT_DEVICE_CONNECTED && !disconnects.isUp(this)) return;
+                if (event.getEventType() == ESPConstants.EVENT_DEVICE_DISCONNECTED && !disconnects.attribute(event).isFor(this)) return;
+
+                radio.bus.unregister(this);
+                callbacks.execute(() -> this.handle(event));
+            }
+
+            private void handle(DeviceConnectionEvent event) {
+                switch (event.getEventType()) {
+
+                    case ESPConstants.EVENT_DEVICE_CONNECTED:
+                        if (this.operation.isSuperseded()) return;
+                        links.add(this.deviceName, this.link);
+                        disconnects.linked(this);
+                        scheduler.connected(this.ticket);
+                        if (!operations.finish(this.operation)) return;
+                        succeed(this.result);
+                        break;
+
+                    case ESPConstants.EVENT_DEVICE_DISCONNECTED:
+                        disconnects.settled(this);
+                        if (!operations.finish(this.operation)) return;
+                        connectsFailedByDisconnect.incrementAndGet();
+                        this.release();
+                        fail(this.result, new GattException(8));
+                        break;
+
+                    case ESPConstants.EVENT_DEVICE_CONNECTION_FAILED:
+                        disconnects.settled(this);
+                        if (!operations.finish(this.operation)) return;
+                        this.release();
+                        fail(this.result, new GattException(133));
+                        break;
+                }
+            }
+
+            private void timedOut() {
+                this.release();
+                fail(this.result, new ConnectTimeoutException());
+            }
+
+            private void aborted(Error error) {
+                this.release();
+                fail(this.result, error);
+            }
+
+            private void release() {
+                if (radio.bus.isRegistered(this)) radio.bus.unregister(this);
+                disconnects.settled(this);
+
+                if (this.link != null) {
+                    links.remove(this.deviceName, this.link);
+                    disconnectDevice(this.deviceName, this.link);
+                }
+                if (this.ticket != null) scheduler.cancel(this.ticket);
+            }
+
+        }
+
+    }
+
+    /**
+     * Delivers events the way EventBus does: to everyone subscribed, on the posting thread, skipping anyone who
+     * unregisters part way through. Subscribing twice throws, as it does with EventBus.
+     */
+    private static class FakeEventBus {
+
+        interface Subscriber {
+
+            void onEvent(DeviceConnectionEvent event);
+
+        }
+
+        private final Set<Subscriber> subscribers = new LinkedHashSet<Subscriber>();
+        private int registrations = 0;
+
+        synchronized void register(Subscriber subscriber) {
+            if (!this.subscribers.add(subscriber)) throw new IllegalStateException("Subscriber already registered");
+            this.registrations++;
+        }
+
+        synchronized void unregister(Subscriber subscriber) {
+            this.subscribers.remove(subscriber);
+        }
+
+        synchronized boolean isRegistered(Subscriber subscriber) {
+            return this.subscribers.contains(subscriber);
+        }
+
+        void post(DeviceConnectionEvent event) {
+            List<Subscriber> subscribers;
+            synchronized (this) {
+                subscribers = new ArrayList<Subscriber>(this.subscribers);
+            }
+            for (Subscriber subscriber : subscribers) {
+                if (this.isRegistered(subscriber)) subscriber.onEvent(event);
+            }
+        }
+
+        synchronized int getSubscriberCount() {
+            return this.subscribers.size();
+        }
+
+        synchronized int getRegistrations() {
+            return this.registrations;
+        }
+
+    }
+
+    /**
+     * The device side: a handful of advertising devices, plus a couple of new strangers every scan, that answer on
+     * the radio's own threads and misbehave at the configured rates. Like the ESP library, it reports connects and
+     * disconnects as events on one shared bus that don't say which device they're about.
+     */
+    private static class FakeRadio implements ScanBroker.Scanner {
+
+        interface Reply {
+
+            void ok();
+
+            void failed(Exception e);
+
+        }
+
+        static class Link {
+
+            private volatile int state = DisconnectAttribution.STATE_DISCONNECTED;
+            private volatile boolean closed = false;
+            private volatile boolean dropped = false;
+
+            /**
+             * What the GATT connection state would say.
+             */
+            int getState() {
+                return this.state;
+            }
+
+            /**
+             * Whether the link went down on its own rather than being disconnected.
+             */
+            boolean isDropped() {
+                return this.dropped;
+            }
+
+        }
+
+        final FakeEventBus bus = new FakeEventBus();
+        private final Random random;
+        private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2, runnable -> daemon(runnable, "soak-radio"));
+        private final Set<Link> links = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger drops = new AtomicInteger();
+        private final AtomicLong strangers = new AtomicLong();
+
+        FakeRadio(Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public void start(ScanBroker.PhysicalScan scan) {
+            boolean fails = this.random.nextDouble() < GATT_FAILURE_RATE;
+
+            this.later(this.delay(this.random), () -> {
+                if (fails) {
+                    scan.fail(new Exception("BLE Scan failed: 2"));
+                    return;
+                }
+                for (int lane = 0; lane < LANES; lane++) {
+                    String deviceName = String.format("PROV_%02d", lane);
+                    if (deviceName.startsWith(scan.getDevicePrefix())) scan.add(device(deviceName));
+                }
+                for (int i = 0; i < NOISE_PER_SCAN; i++) {
+                    scan.add(device("PROV_STRANGER_" + this.strangers.incrementAndGet()));
+                }
+                scan.complete();
+            });
+        }
+
+        @Override
+        public void stop(ScanBroker.PhysicalScan scan) {
+            // Nothing to stop - the broker drops what a stopped scan reports
+        }
+
+        Link createLink() {
+            return new Link();
+        }
+
+        /**
+         * Brings the link up and posts EVENT_DEVICE_CONNECTED, or posts EVENT_DEVICE_CONNECTION_FAILED. Nothing is
+         * posted for a link disconnected before it came up.
+         */
+        void connect(Link link, Random random) {
+            double roll = random.nextDouble();
+
+            if (roll < CONNECT_TIMEOUT_RATE) {
+                // Comes up after the caller has given up on it, unless the caller let go of it
+                this.later(LATE_RESPONSE, () -> this.open(link));
+            } else if (roll < CONNECT_TIMEOUT_RATE + GATT_FAILURE_RATE) {
+                this.later(this.delay(random), () -> {
+                    if (!link.closed) this.post(ESPConstants.EVENT_DEVICE_CONNECTION_FAILED);
+                });
+            } else {
+                this.later(this.delay(random), () -> this.open(link));
+            }
+        }
+
+        /**
+         * A request on an open link. A link that goes down mid-request doesn't answer, it posts
+         * EVENT_DEVICE_DISCONNECTED.
+         */
+        void request(Link link, Random random, Reply reply) {
+            double roll = random.nextDouble();
+            long delay = this.delay(random);
+
+            this.later(delay, () -> {
+                if (link.state != DisconnectAttribution.STATE_CONNECTED) {
+                    reply.failed(new GattException(8));
+                } else if (roll < DISCONNECT_RATE) {
+                    this.drops.incrementAndGet();
+                    link.dropped = true;
+                    this.close(link);
+                } else if (roll < DISCONNECT_RATE + GATT_FAILURE_RATE) {
+                    reply.failed(new GattException(133));
+                } else {
+                    reply.ok();
+                }
+            });
+        }
+
+        /**
+         * Posts EVENT_DEVICE_DISCONNECTED later, from the radio's thread, if the link was up. A link still coming up
+         * is given up on straight away, but one that was already coming up may still post EVENT_DEVICE_CONNECTED
+         * first.
+         */
+        void disconnect(Link link) {
+            if (this.random.nextBoolean()) {
+                synchronized (this) {
+                    if (link.state != DisconnectAttribution.STATE_CONNECTED) link.closed = true;
+                }
+            }
+            this.later(0, () -> this.close(link));
+        }
+
+        int getLinkCount() {
+            return this.links.size();
+        }
+
+        int getDropCount() {
+            return this.drops.get();
+        }
+
+        /**
+         * Answers that are still on their way.
+         */
+        int getPendingCount() {
+            return this.pending.get();
+        }
+
+        void shutdown() {
+            this.executor.shutdownNow();
+        }
+
+        private synchronized void open(Link link) {
+            if (link.closed) return;
+            link.state = DisconnectAttribution.STATE_CONNECTED;
+            this.links.add(link);
+            this.post(ESPConstants.EVENT_DEVICE_CONNECTED);
+        }
+
+        private void close(Link link) {
+            boolean wasUp;
+            synchronized (this) {
+                if (link.closed) return;
+                link.closed = true;
+                wasUp = link.state == DisconnectAttribution.STATE_CONNECTED;
+                link.state = DisconnectAttribution.STATE_DISCONNECTED;
+                this.links.remove(link);
+            }
+            if (wasUp) this.post(ESPConstants.EVENT_DEVICE_DISCONNECTED);
+        }
+
+        private void post(short eventType) {
+            this.bus.post(new DeviceConnectionEvent(eventType));
+        }
+
+        private long delay(Random random) {
+            return random.nextDouble() < SLOW_RATE ? SLOW_RESPONSE : 0;
+        }
+
+        private void later(long delay, Runnable task) {
+            this.pending.incrementAndGet();
+            this.executor.schedule(() -> {
+                try {
+                    task.run();
+                } finally {
+                    this.pending.decrementAndGet();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private static DiscoveredBluetoothDevice device(String name) {
+            WiFiAccessPoint accessPoint = new WiFiAccessPoint();
+            accessPoint.setWifiName(name);
+            accessPoint.setRssi(-50);
+            return new DiscoveredBluetoothDevice(accessPoint);
+        }
+
+    }
+
+    private static class Outcomes {
+
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger notFound = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger timedOut = new AtomicInteger();
+        final AtomicInteger disconnected = new AtomicInteger();
+        final AtomicInteger stuck = new AtomicInteger();
+        private final AtomicInteger completed = new AtomicInteger();
+        private int cycles;
+        private long startedAt;
+        private volatile long halfwayAt;
+        private volatile long finishedAt;
+
+        void start(int cycles) {
+            this.cycles = cycles;
+            this.startedAt = System.nanoTime();
+        }
+
+        void completed() {
+            int completed = this.completed.incrementAndGet();
+            if (completed == this.cycles / 2) this.halfwayAt = System.nanoTime();
+            if (completed == this.cycles) this.finishedAt = System.nanoTime();
+        }
+
+        void failedWith(Throwable cause) {
+            if (cause instanceof ConnectTimeoutException || cause instanceof ProvisionTimeoutException) {
+                this.timedOut.incrementAndGet();
+            } else if (cause instanceof Error) {
+                this.disconnected.incrementAndGet();
+            } else {
+                this.failed.incrementAndGet();
+            }
+        }
+
+        int total() {
+            return this.succeeded.get() + this.notFound.get() + this.failed.get() + this.timedOut.get() + this.disconnected.get() + this.stuck.get();
+        }
+
+        double firstHalfRate() {
+            return (this.cycles / 2) / ((this.halfwayAt - this.startedAt) / 1e9);
+        }
+
+        double secondHalfRate() {
+            return (this.cycles - this.cycles / 2) / ((this.finishedAt - this.halfwayAt) / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("succeeded=%d notFound=%d failed=%d timedOut=%d disconnected=%d stuck=%d",
+                    this.succeeded.get(), this.notFound.get(), this.failed.get(), this.timedOut.get(), this.disconnected.get(), this.stuck.get());
+        }
+
+    }
+
+    private static class GattException extends Exception {
+
+        GattException(int status) {
+            super("GATT error " + status);
+        }
+
+    }
+
+    private static class ConnectTimeoutException extends Exception {
+    }
+
+    private static class ProvisionTimeoutException extends Exception {
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
@@ -0,0 +1,189 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import com.espressif.provisioning.listeners.ResponseListener;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the SoftAP transport against a local stand-in for the protocomm HTTP server. Like the real one, the stand-in
+ * only accepts config requests on a connection that has established a session.
+ */
+public class SoftApTransportTest {
+
+    private HttpServer server;
+    private SoftApTransport transport;
+    private final Set<Integer> sessions = Collections.synchronizedSet(new HashSet<Integer>());
+    private final Set<Integer> connections = Collections.synchronizedSet(new HashSet<Integer>());
+    private volatile String lastContentType;
+
+    @Before
+    public void setUp() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+
+        this.server.createContext("/proto-ver", exchange -> this.respond(exchange, 200, "{\"prov\":{\"ver\":\"v1.1\",\"cap\":[\"wifi_scan\"]}}"));
+        this.server.createContext("/prov-session", exchange -> {
+            this.sessions.add(exchange.getRemoteAddress().getPort());
+            this.respond(exchange, 200, "session:" + this.read(exchange));
+        });
+        this.server.createContext("/prov-scan", exchange -> this.respondInSession(exchange, "scan:" + this.read(exchange)));
+        this.server.createContext("/prov-config", exchange -> this.respondInSession(exchange, "config:" + this.read(exchange)));
+        this.server.createContext("/custom-data", exchange -> this.respondInSession(exchange, this.read(exchange).toUpperCase()));
+        this.server.createContext("/broken", exchange -> this.respond(exchange, 500, "nope"));
+        this.server.createContext("/goodbye", exchange -> {
+            exchange.getResponseHeaders().set("Connection", "close");
+            this.respond(exchange, 200, "bye");
+        });
+
+        this.server.start();
+        this.transport = new SoftApTransport("127.0.0.1", this.server.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        this.transport.close();
+        this.server.stop(0);
+    }
+
+    @Test
+    public void reusesOneConnectionForTheWholeProvisioningFlow() throws Exception {
+        assertTrue(this.post("proto-ver", "").contains("wifi_scan"));
+        assertEquals("session:hello", this.post("prov-session", "hello"));
+        assertEquals("scan:start", this.post("prov-scan", "start"));
+        assertEquals("config:creds", this.post("prov-config", "creds"));
+        assertEquals("PAYLOAD", this.post("custom-data", "payload"));
+
+        assertEquals(1, this.transport.getConnectionsOpened());
+        assertEquals(1, this.connections.size());
+        assertEquals("application/x-www-form-urlencoded", this.lastContentType);
+    }
+
+    @Test
+    public void sendsLargePayloadsIntact() throws Exception {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 20000; i++) payload.append((char) ('a' + i % 26));
+
+        this.post("prov-session", "hello");
+        assertEquals(payload.toString().toUpperCase(), this.post("custom-data", payload.toString()));
+        assertEquals(1, this.transport.getConnectionsOpened());
+    }
+
+    @Test
+    public void sendConfigDataCallsBackWithTheResponse() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        AtomicReference<String> session = new AtomicReference<String>();
+        AtomicReference<String> custom = new AtomicReference<String>();
+
+        this.transport.sendConfigData("prov-session", "hi".getBytes(StandardCharsets.UTF_8), new Listener(session, done));
+        this.transport.sendConfigData("custom-data", "abc".getBytes(StandardCharsets.UTF_8), new Listener(custom, done));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("session:hi", session.get());
+        assertEquals("ABC", custom.get());
+    }
+
+    @Test
+    public void reportsHttpErrorsToTheListener() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<String> result = new AtomicReference<String>();
+
+        this.transport.sendConfigData("broken", new byte[0], new Listener(result, done));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(result.get(), result.get().startsWith("failed: HTTP 500"));
+    }
+
+    @Test
+    public void opensANewConnectionOnceTheDeviceClosesIt() throws Exception {
+        this.post("prov-session", "hello");
+        assertEquals("bye", this.post("goodbye", ""));
+
+        // The session went with the old connection, same as on a real device
+        try {
+            this.post("prov-config", "creds");
+            fail("Expected the request to be rejected without a session");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("HTTP 403"));
+        }
+
+        this.post("prov-session", "again");
+        assertEquals("config:creds", this.post("prov-config", "creds"));
+        assertEquals(3, this.transport.getConnectionsOpened());
+    }
+
+    private String post(String path, String body) throws IOException {
+        return new String(this.transport.post(path, body.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+    }
+
+    private void respondInSession(HttpExchange exchange, String body) throws IOException {
+        if (!this.sessions.contains(exchange.getRemoteAddress().getPort())) {
+            this.respond(exchange, 403, "no session");
+            return;
+        }
+        this.respond(exchange, 200, body);
+    }
+
+    private String read(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) body.write(buffer, 0, read);
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        this.connections.add(exchange.getRemoteAddress().getPort());
+        this.lastContentType = exchange.getRequestHeaders().getFirst("Content-Type");
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static class Listener implements ResponseListener {
+
+        private final AtomicReference<String> result;
+        private final CountDownLatch done;
+
+        Listener(AtomicReference<String> result, CountDownLatch done) {
+            this.result = result;
+            this.done = done;
+        }
+
+        @Override
+        public void onSuccess(byte[] returnData) {
+            this.result.set(new String(returnData, StandardCharsets.UTF_8));
+            this.done.countDown();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            this.result.set("failed: " + e.getMessage());
+            this.done.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TimeoutSchedulerTest {
+
+    private static final long TICK = 10;
+    private static final int WHEEL_SIZE = 4;
+
+    private final TimeoutScheduler scheduler = new TimeoutScheduler(TICK, WHEEL_SIZE);
+
+    @After
+    public void shutdown() {
+        this.scheduler.shutdown();
+    }
+
+    @Test
+    public void aCancelledTimeoutNeverRuns() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        TimeoutScheduler.Timeout timeout = this.scheduler.schedule(ran::countDown, 3 * TICK);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(0, this.scheduler.getPendingCount());
+
+        assertFalse(ran.await(10 * TICK, TimeUnit.MILLISECONDS));
+        assertFalse(timeout.isExpired());
+    }
+
+    @Test
+    public void deadlinesPastTheEndOfTheWheelGoRoundAgain() throws InterruptedException {
+        // Ten ticks on a wheel of four - the slot comes up twice before it's due
+        Firing firing = new Firing(this.scheduler, 10 * TICK);
+        // Exactly one turn away, so it's put in the slot being expired right now
+        Firing oneTurn = new Firing(this.scheduler, WHEEL_SIZE * TICK);
+
+        firing.assertOnTime();
+        oneTurn.assertOnTime();
+        assertEquals(0, this.scheduler.getPendingCount());
+    }
+
+    @Test
+    public void deadlinesInTheCurrentSlotRunOnItsTick() throws InterruptedException {
+        Firing due = new Firing(this.scheduler, 0);
+        due.assertOnTime();
+
+        // Once the wheel is turning, a deadline that's already here lands in the slot being worked on
+        Thread.sleep(5 * TICK);
+        Firing late = new Firing(this.scheduler, 0);
+        late.assertOnTime();
+        assertEquals(0, this.scheduler.getPendingCount());
+    }
+
+    @Test
+    public void nothingRunsAfterShutdown() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        this.scheduler.schedule(ran::countDown, TICK);
+        this.scheduler.shutdown();
+
+        assertFalse(ran.await(5 * TICK, TimeUnit.MILLISECONDS));
+        assertFalse(this.scheduler.schedule(ran::countDown, 0).cancel());
+    }
+
+    /**
+     * A scheduled task that records when it ran.
+     */
+    private static class Firing {
+
+        private final long delay;
+        private final long scheduledAt = System.nanoTime();
+        private final AtomicLong ranAt = new AtomicLong();
+        private final CountDownLatch ran = new CountDownLatch(1);
+        private final TimeoutScheduler.Timeout timeout;
+
+        Firing(TimeoutScheduler scheduler, long delay) {
+            this.delay = delay;
+            this.timeout = scheduler.schedule(() -> {
+                this.ranAt.set(System.nanoTime());
+                this.ran.countDown();
+            }, delay);
+        }
+
+        void assertOnTime() throws InterruptedException {
+            assertTrue("never ran", this.ran.await(5, TimeUnit.SECONDS));
+            assertTrue(this.timeout.isExpired());
+
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(this.ranAt.get() - this.scheduledAt);
+            assertTrue("ran early, after " + elapsed + "ms", elapsed >= this.delay);
+        }
+
+    }
+
+}
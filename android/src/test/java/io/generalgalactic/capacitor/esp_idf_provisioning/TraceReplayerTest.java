@@ -0,0 +1,192 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import com.espressif.provisioning.listeners.ResponseListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Records traces the way EspProvisioningBLE does and plays them back, the way a field trace is rerun at a desk.
+ */
+public class TraceReplayerTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        this.file = File.createTempFile("trace", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    @Test
+    public void readsBackWhatWasRecorded() throws Exception {
+        TraceRecorder recorder = new TraceRecorder(this.file);
+        recorder.record(SessionTrace.SCAN_RESULT, "PROV_1", "AA:BB:CC:DD:EE:FF -61", null);
+        Thread.sleep(20);
+        recorder.record(SessionTrace.CONNECTION_EVENT, "PROV_1", "1", null);
+        recorder.record(SessionTrace.CUSTOM_REQUEST, "PROV_1", "custom-data", "ping".getBytes(StandardCharsets.UTF_8));
+        recorder.record(SessionTrace.PROVISION_CALLBACK, null, "provisioningFailed AUTH_FAILED", null);
+        recorder.stop(2000);
+
+        assertEquals(4, recorder.getEventCount());
+
+        List<SessionTrace.Event> events = this.read();
+        assertEquals(4, events.size());
+        assertEquals(SessionTrace.SCAN_RESULT, events.get(0).getType());
+        assertEquals("AA:BB:CC:DD:EE:FF -61", events.get(0).getDetail());
+        assertEquals(0, events.get(0).getData().length);
+        assertTrue(events.get(1).getTime() - events.get(0).getTime() >= 20000);
+        assertEquals("custom-data", events.get(2).getDetail());
+        assertEquals("ping", new String(events.get(2).getData(), StandardCharsets.UTF_8));
+        assertNull(events.get(3).getDeviceName());
+        assertEquals("provisioningFailed AUTH_FAILED", events.get(3).getDetail());
+    }
+
+    @Test
+    public void ignoresEventsAfterStopping() throws Exception {
+        TraceRecorder recorder = new TraceRecorder(this.file);
+        recorder.record(SessionTrace.CONNECTION_EVENT, "PROV_1", "1", null);
+        recorder.stop(2000);
+        recorder.record(SessionTrace.CONNECTION_EVENT, "PROV_1", "2", null);
+
+        assertEquals(1, this.read().size());
+    }
+
+    @Test
+    public void replaysAtScaledTiming() throws Exception {
+        List<SessionTrace.Event> events = Arrays.asList(
+                new SessionTrace.Event(0, SessionTrace.SCAN_RESULT, "PROV_1", "softap -40", null),
+                new SessionTrace.Event(100000, SessionTrace.CONNECTION_EVENT, "PROV_1", "1", null),
+                new SessionTrace.Event(200000, SessionTrace.PROVISION_CALLBACK, "PROV_1", "provisioningSuccess", null));
+
+        List<Integer> types = new ArrayList<Integer>();
+        TraceReplayer.Result result = new TraceReplayer(events, 2).replay(event -> types.add(event.getType()));
+
+        assertEquals(Arrays.asList(SessionTrace.SCAN_RESULT, SessionTrace.CONNECTION_EVENT, SessionTrace.PROVISION_CALLBACK), types);
+        assertEquals(3, result.getEventCount());
+        assertEquals(200, result.getOriginalDuration());
+        assertTrue("replay took " + result.getReplayDuration() + "ms", result.getReplayDuration() >= 95 && result.getReplayDuration() < 190);
+
+        result = new TraceReplayer(events, 0).replay(event -> {});
+        assertTrue(result.getReplayDuration() < 50);
+    }
+
+    @Test
+    public void replayDeviceAnswersWithTheRecordedResponses() throws Exception {
+        List<SessionTrace.Event> events = Arrays.asList(
+                new SessionTrace.Event(0, SessionTrace.CUSTOM_REQUEST, "PROV_1", "custom-data", bytes("one")),
+                new SessionTrace.Event(60000, SessionTrace.CUSTOM_RESPONSE, "PROV_1", "custom-data", bytes("ONE")),
+                new SessionTrace.Event(70000, SessionTrace.CUSTOM_REQUEST, "PROV_2", "custom-data", bytes("other device")),
+                new SessionTrace.Event(80000, SessionTrace.CUSTOM_REQUEST, "PROV_1", "custom-data", bytes("two")),
+                new SessionTrace.Event(90000, SessionTrace.CUSTOM_FAILURE, "PROV_1", "custom-data", bytes("Write failed")));
+
+        TraceReplayer.ReplayDevice device = new TraceReplayer(events, 1).device("PROV_1");
+        assertEquals(2, device.getRemainingCount());
+
+        long startedAt = System.nanoTime();
+        assertEquals("ONE", this.send(device, "custom-data", "one"));
+        assertTrue((System.nanoTime() - startedAt) / 1000000 >= 55);
+
+        assertEquals("failed: Write failed", this.send(device, "custom-data", "not two"));
+        assertEquals(1, device.getMismatchCount());
+
+        assertEquals("failed: No recorded response from PROV_1 for custom-data", this.send(device, "custom-data", "three"));
+        assertEquals("failed: No recorded response from PROV_1 for prov-config", this.send(device, "prov-config", ""));
+        device.close();
+    }
+
+    @Test
+    public void replaysCompressedEndpointTraffic() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) text.append("{\"sensor\":").append(i % 7).append("}");
+
+        byte[] request = compressor.compress(bytes(text.toString()));
+        byte[] response = compressor.compress(bytes(text.toString().toUpperCase()));
+        assertTrue(PayloadCompressor.isCompressed(response));
+
+        TraceRecorder recorder = new TraceRecorder(this.file);
+        recorder.record(SessionTrace.CUSTOM_REQUEST, "PROV_1", "custom-data", request);
+        recorder.record(SessionTrace.CUSTOM_RESPONSE, "PROV_1", "custom-data", response);
+        recorder.stop(2000);
+
+        TraceReplayer.ReplayDevice device = new TraceReplayer(this.read(), 0).device("PROV_1");
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<byte[]> received = new AtomicReference<byte[]>();
+
+        device.sendDataToCustomEndPoint("custom-data", compressor.compress(bytes(text.toString())), new ResponseListener() {
+
+            @Override
+            public void onSuccess(byte[] returnData) {
+                received.set(returnData);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                done.countDown();
+            }
+
+        });
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(0, device.getMismatchCount());
+        assertEquals(text.toString().toUpperCase(), new String(compressor.decompress(received.get()), StandardCharsets.UTF_8));
+        device.close();
+        compressor.release();
+    }
+
+    private List<SessionTrace.Event> read() throws IOException {
+        try (InputStream in = new FileInputStream(this.file)) {
+            return SessionTrace.read(in);
+        }
+    }
+
+    private String send(TraceReplayer.ReplayDevice device, String path, String data) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<String> result = new AtomicReference<String>();
+
+        device.sendDataToCustomEndPoint(path, bytes(data), new ResponseListener() {
+
+            @Override
+            public void onSuccess(byte[] returnData) {
+                result.set(new String(returnData, StandardCharsets.UTF_8));
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result.set("failed: " + e.getMessage());
+                done.countDown();
+            }
+
+        });
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,54 @@
+package io.generalgalactic.capacitor.esp_idf_provisioning;
+
+import static org.junit.Assert.*;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class WifiSurveyTest {
+
+    @Test
+    public void mergesListsIntoOneRowPerSsid() {
+        WifiSurvey survey = new WifiSurvey(Arrays.asList("PROV_1", "PROV_2", "PROV_1"));
+        assertEquals(Arrays.asList("PROV_1", "PROV_2"), survey.getDeviceNames());
+
+        survey.add("PROV_2", Arrays.asList(accessPoint("home", -70, 3), accessPoint("guest", -40, 0)));
+        survey.add("PROV_1", Arrays.asList(accessPoint("home", -60, 3), accessPoint("home", -50, 4), accessPoint("", -30, 0)));
+
+        List<WifiSurvey.Network> networks = survey.getNetworks();
+        assertEquals(2, networks.size());
+
+        assertEquals("guest", networks.get(0).getSsid());
+        assertEquals(Arrays.asList(null, -40), networks.get(0).getRssi());
+
+        assertEquals("home", networks.get(1).getSsid());
+        assertEquals(Arrays.asList(-50, -70), networks.get(1).getRssi());
+        assertEquals(4, networks.get(1).getSecurity());
+    }
+
+    @Test
+    public void recordsFailuresForListedDevicesOnly() {
+        WifiSurvey survey = new WifiSurvey(Arrays.asList("PROV_1", "PROV_2"));
+
+        survey.failed("PROV_2", "WiFi scan timed out after 30000ms");
+        survey.failed("PROV_3", "Device not found");
+        survey.add("PROV_3", Collections.singletonList(accessPoint("home", -50, 3)));
+
+        assertEquals(Collections.singletonMap("PROV_2", "WiFi scan timed out after 30000ms"), survey.getFailures());
+        assertTrue(survey.getNetworks().isEmpty());
+    }
+
+    private static WiFiAccessPoint accessPoint(String ssid, int rssi, int security) {
+        WiFiAccessPoint accessPoint = new WiFiAccessPoint();
+        accessPoint.setWifiName(ssid);
+        accessPoint.setRssi(rssi);
+        accessPoint.setSecurity(security);
+        return accessPoint;
+    }
+
+}
@@ -1,6 +1,22 @@
+/// <reference types="@capacitor/cli" />
+
 import type { PermissionState } from '@capacitor/core';
 import type { Plugin } from '@capacitor/core/types/definitions';
 
+declare module '@capacitor/cli' {
+  export interface PluginsConfig {
+    EspProvisioning?: {
+      /**
+       * Warm up the provisioning stack on a background thread as soon as the plugin loads, so the first scan after
+       * launch is as quick as later ones. See warmUp(). Android only.
+       *
+       * @default false
+       */
+      warmUp?: boolean;
+    };
+  }
+}
+
 export enum ESPTransport {
   ble = 'ble',
   softap = 'softap'
@@ -8,7 +24,8 @@ export enum ESPTransport {
 
 export enum ESPSecurity {
   unsecure = 'unsecure',
-  secure = 'secure'
+  secure = 'secure',
+  secure2 = 'secure2' // Security 2 (SRP6a) - Android only, requires a username on connect
 }
 
 export type ESPDeviceAdvertisingData = {
@@ -29,6 +46,53 @@ export type ESPNetwork = {
   auth: 'open' | 'wep' | 'wpapsk' | 'wpawpa2psk' | 'wpa2enterprise' | 'unknown'
 }
 
+/**
+ * WiFi networks as heard by several devices. Each network's rssi lists one value per device, in the order of
+ * deviceNames, and is null where that device didn't see it. Networks are sorted by their best rssi. Android only.
+ */
+export type ESPWifiSurvey = {
+  deviceNames: string[]
+  networks: {
+    ssid: string
+    auth: 'open' | 'wep' | 'wpapsk' | 'wpawpa2psk' | 'wpa2enterprise' | 'unknown'
+    rssi: (number | null)[]
+  }[]
+  failures: { [deviceName: string]: string } // Why each device that didn't answer didn't
+}
+
+/**
+ * One connect or provision outcome from the on-device history. Timings are in milliseconds and left out when the
+ * session never got that far. Android only.
+ */
+export type ESPHistoryEntry = {
+  timestamp: number // Milliseconds since the epoch
+  deviceName: string
+  address?: string // BLE address, not set for softap devices
+  outcome: 'success' | 'failed' | 'timeout' | 'cancelled'
+  phase: 'connect' | 'session' | 'provision'
+  connectTime?: number
+  handshakeTime?: number
+  provisionTime?: number
+  timeToConnected?: number
+  retries: number // Reconnects and repeated provision calls on the same session
+  failureReason?: string // As reported by the device, e.g. AUTH_FAILED or NETWORK_NOT_FOUND
+  message?: string
+}
+
+/**
+ * What warming up cost, in milliseconds, and what it found. Android only.
+ */
+export type ESPWarmUpMetrics = {
+  totalTime: number
+  provisionManagerTime: number // Creating the ESP provision manager
+  adapterTime: number // Looking up the bluetooth adapter
+  capabilitiesTime: number
+  permissionsTime: number
+  bleSupported: boolean
+  bleEnabled: boolean
+  permissionsGranted: boolean
+}
+
 // https://capacitorjs.com/docs/plugins/web#permission-status-definitions
 export interface PermissionStatus {
   ble: PermissionState;
@@ -43,7 +107,11 @@ export interface EspProvisioningStatus {
   },
   location: {
     allowed: boolean
-  }
+  },
+  /**
+   * Raw BluetoothAdapter state (e.g. 10 = OFF, 12 = ON). Only sent with statusUpdate events, Android only.
+   */
+  adapterState?: number
 }
 
 export interface EspProvisioningPlugin extends Plugin {
@@ -69,40 +137,166 @@ export interface EspProvisioningPlugin extends Plugin {
    * Perform a BLE scan to find devices that are connection with the given devicePrefix. The transport and security
    * parameters map directly to ESPProvision's own values.
    *
-   * @param options {{ devicePrefix: string, transport: ESPTransport, security: ESPSecurity }}
+   * With ESPTransport.softap the scan looks for WiFi access points instead and each device is named after its SSID.
+   * Android only - bluetooth isn't needed for these devices, but location permission is.
+   *
+   * On Android, searches that overlap share one radio scan and each gets the devices matching its own prefix. A search
+   * joins the running scan when that scan's prefix covers its own and the transport is the same. Otherwise it waits
+   * for that scan to finish. With partial set, a search that can join resolves straight away with what the running
+   * scan has found so far. The scan carries on for everyone else, and the devices returned can be connected to
+   * before it finishes.
+   *
+   * @param options {{ devicePrefix: string, transport: ESPTransport, security: ESPSecurity, operationId?: string, partial?: boolean }}
    */
-  searchESPDevices(options: { devicePrefix: string, transport: ESPTransport, security: ESPSecurity }): Promise<{ devices?: ESPDevice[] }>;
+  searchESPDevices(options: { devicePrefix: string, transport: ESPTransport, security: ESPSecurity, operationId?: string, partial?: boolean }): Promise<{ devices?: ESPDevice[] }>;
 
   /**
    * Connect to the device with the given name using the given proofOfPossession.
    *
-   * @param options {{ deviceName: string, proofOfPossession: string }}
+   * With autoReconnect enabled an unexpected disconnect is retried with backoff, reusing the proofOfPossession,
+   * transport and security from this call. A `reconnecting` event is sent before each attempt and `reconnected` once
+   * the session is back. `deviceDisconnected` is only sent after maxReconnectAttempts (default 5) have failed.
+   * autoReconnect is Android only.
+   *
+   * On Android at most one connect runs at a time and at most 4 devices stay connected. Further connects wait in a
+   * queue, where a higher priority (default 0) goes first and waiting raises priority over time. When all slots are
+   * taken, the least recently used idle session is closed to make room and a `deviceDisconnected` event is sent
+   * with reason 'idle'. Time spent in the queue counts towards timeout.
+   *
+   * timeout covers the connect and session setup, in milliseconds (default 20000). On timeout the call rejects with
+   * the code `TIMEOUT`.
+   *
+   * Devices scanned with ESPSecurity.secure2 need a username; proofOfPossession is used as the SRP6a password.
+   * connectTime and handshakeTime (milliseconds) report how long the link and the security handshake took.
+   *
+   * For softap devices the phone joins the device's access point using softApPassword. Leave it out if the phone is
+   * already on the access point. The session then keeps one HTTP connection open for every request. Android only.
+   *
+   * Over BLE, mtu asks for a larger ATT MTU and highPriority asks for CONNECTION_PRIORITY_HIGH, which lasts until
+   * provision finishes. Both make large custom data payloads faster. The result reports the MTU that was requested as
+   * requestedMtu - the device may settle on less - and the connection priority in effect. Android only.
+   *
+   * prefetch starts device-side work as soon as the session is up, so it overlaps with whatever the app does next.
+   * With 'wifiList' the device starts scanning for networks. The next scanWifiList returns that list, or waits for
+   * the scan if it is still running. Later calls scan again. With 'versionInfo' the device's proto-ver JSON is
+   * fetched, and is returned as versionInfo when it has arrived before the connect resolves. Other calls on the device
+   * wait for the prefetch to finish, as the device only handles one request at a time. Android only.
+   *
+   * @param options {{ deviceName: string, proofOfPossession: string, username?: string, softApPassword?: string, autoReconnect?: boolean, maxReconnectAttempts?: number, operationId?: string, timeout?: number, mtu?: number, highPriority?: boolean, priority?: number, prefetch?: ('wifiList' | 'versionInfo')[] }}
+   */
+  connect(options: { deviceName: string, proofOfPossession: string, username?: string, softApPassword?: string, autoReconnect?: boolean, maxReconnectAttempts?: number, operationId?: string, timeout?: number, mtu?: number, highPriority?: boolean, priority?: number, prefetch?: ('wifiList' | 'versionInfo')[] }): Promise<{ connected: boolean, connectTime?: number, handshakeTime?: number, requestedMtu?: number, connectionPriority?: 'high' | 'balanced', versionInfo?: string }>;
+
+  /**
+   * Request a list of available WiFi networks from the device with the given name. Rejects with the code `TIMEOUT`
+   * if the device hasn't answered within timeout milliseconds (default 30000, 0 waits forever). Android only.
+   *
+   * @param options {{ deviceName: string, operationId?: string, timeout?: number }}
    */
-  connect(options: { deviceName: string, proofOfPossession: string }): Promise<{ connected: boolean }>;
+  scanWifiList(options: { deviceName: string, operationId?: string, timeout?: number }): Promise<{ networks?: ESPNetwork[] }>;
 
   /**
-   * Request a list of available WiFi networks from the device with the given name.
+   * Request the WiFi networks from several connected devices at once. Each device's list is sent as a
+   * "wifiListScanned" event as soon as it arrives, with deviceName and either networks or error. The call resolves
+   * once every device has answered, with the lists merged into one table of signal strength by network and device.
+   * A device that fails or takes longer than timeout milliseconds (default 30000) is listed in failures rather than
+   * failing the call. Cancelling the operationId rejects with the code `CANCELLED`. Android only.
+   *
+   * @param options {{ deviceNames: string[], operationId?: string, timeout?: number }}
+   */
+  scanWifiListMany(options: { deviceNames: string[], operationId?: string, timeout?: number }): Promise<ESPWifiSurvey>;
+
+  /**
+   * Get the connected device's provisioning version and capabilities from its proto-ver endpoint. They're read
+   * once per session, usually while connecting, and answered from memory after that, so checking them before each
+   * step costs no radio time. A disconnect or reconnect reads them again. versionInfo is the endpoint's JSON as
+   * sent, including any keys the firmware adds for itself. Android only.
    *
    * @param options {{ deviceName: string }}
    */
-  scanWifiList(options: { deviceName: string }): Promise<{ networks?: ESPNetwork[] }>;
+  getDeviceInfo(options: { deviceName: string }): Promise<{ version?: string, securityVersion?: number, capabilities: string[], versionInfo?: string }>;
 
   /**
    * Provision the device onto WiFi using the given ssid and passPhrase.
    *
-   * @param options {{ deviceName: string, ssid: string, passPhrase: string }}
+   * timeout defaults to 60000 milliseconds. A timed out provision rejects with the code `TIMEOUT`, but the device
+   * may still go on to apply the config. Android only.
+   *
+   * With waitForConnected the plugin sends the config and then polls the station status until the device reports
+   * connected, backing off from 250ms up to 4s between polls. It resolves with timeToConnected (milliseconds from
+   * applying the config) and the station's ip. If the station can't connect, the call rejects with the
+   * device-reported reason as its code: `AUTH_ERROR`, `NETWORK_NOT_FOUND` or `CONNECTION_FAILED`. The timeout
+   * covers the whole wait. Android only.
+   *
+   * @param options {{ deviceName: string, ssid: string, passPhrase: string, operationId?: string, timeout?: number, waitForConnected?: boolean }}
    */
-  provision(options: { deviceName: string, ssid: string, passPhrase?: string }): Promise<{ success: boolean }>;
+  provision(options: { deviceName: string, ssid: string, passPhrase?: string, operationId?: string, timeout?: number, waitForConnected?: boolean }): Promise<{ success: boolean, timeToConnected?: number, ip?: string }>;
 
   /**
    * Send a custom string to the device with the given name. This is usefull if you need to share other data with
    * your device during provisioning. NOTE: Android will truncate returned strings to around 512 bytes. If you need
    * to send more than 512 bytes back on a read you'll need to implement a mechanism to do so.
    *
-   * @param options {{ deviceName: string, path: string, dataString: string }}
+   * The device has timeout milliseconds to answer (default 15000) before the call rejects with the code `TIMEOUT`.
+   * timeout is Android only.
+   *
+   * With compression set to 'deflate', payloads of 256 bytes or more are sent as a NUL byte followed by a zlib
+   * stream, but only when that makes them smaller. The firmware has to recognise the NUL byte. A response that
+   * starts with a NUL byte is inflated the same way before it is returned. Android only.
+   *
+   * @param options {{ deviceName: string, path: string, dataString: string, operationId?: string, timeout?: number, compression?: 'none' | 'deflate' }}
    * @returns {{ success: boolean, returnString: string }}
    */
-  sendCustomDataString(options: { deviceName: string, path: string, dataString: string }): Promise<{ success: boolean, returnString?: string }>;
+  sendCustomDataString(options: { deviceName: string, path: string, dataString: string, operationId?: string, timeout?: number, compression?: 'none' | 'deflate' }): Promise<{ success: boolean, returnString?: string }>;
+
+  /**
+   * Poll a custom endpoint natively and send a `customData` event ({ watchId, deviceName, path, returnString })
+   * whenever its response changes. The first response always counts as a change. dataString (default empty) is sent
+   * with every poll. Polls start every intervalMs (default 1000). The interval doubles up to maxIntervalMs (default
+   * 10000) while the response stays the same or the device doesn't answer, and drops back once it changes. Polls
+   * wait while another call is running on the device, and calls made while a poll is out wait for it to answer. The
+   * watch ends with unwatch() or when the device disconnects. Rejects if the device isn't connected. Android only.
+   *
+   * @param options {{ deviceName: string, path: string, dataString?: string, intervalMs?: number, maxIntervalMs?: number }}
+   */
+  watchCustomEndpoint(options: { deviceName: string, path: string, dataString?: string, intervalMs?: number, maxIntervalMs?: number }): Promise<{ watchId: string }>;
+
+  /**
+   * Stop a watch started with watchCustomEndpoint. Resolves with stopped: false if it had already ended. Android only.
+   *
+   * @param options {{ watchId: string }}
+   */
+  unwatch(options: { watchId: string }): Promise<{ stopped: boolean }>;
+
+  /**
+   * Keep watching for devices whose names start with devicePrefix and send events only when something changes:
+   * - `deviceAppeared` ({ deviceName, rssi }) when a device is first seen, or seen again after being lost
+   * - `deviceLost` ({ deviceName }) once a device hasn't been seen for lostAfterMs (default 30000)
+   * - `rssiChanged` ({ deviceName, rssi }) when the signal moves by 5 dB or more, at most once a second per device
+   *
+   * The radio scans in scanMode (default 'lowPower') for dutyCycle (default 0.25) of every 10 seconds and rests
+   * for the remainder. Android refuses more than five scan starts in 30 seconds, so the period can't be shorter.
+   * lostAfterMs is raised to at least 10 seconds, so devices aren't lost between scan windows. Starting a monitor
+   * replaces any that's already running. Devices seen by the monitor still have to be found with searchESPDevices
+   * before they can be connected to. Android only.
+   *
+   * @param options {{ devicePrefix: string, scanMode?: 'lowPower' | 'balanced' | 'lowLatency', dutyCycle?: number, lostAfterMs?: number }}
+   */
+  startPresenceMonitor(options: { devicePrefix: string, scanMode?: 'lowPower' | 'balanced' | 'lowLatency', dutyCycle?: number, lostAfterMs?: number }): Promise<void>;
+
+  /**
+   * Stop the presence monitor. Resolves with stopped: false if none was running. Android only.
+   */
+  stopPresenceMonitor(): Promise<{ stopped: boolean }>;
+
+  /**
+   * Cancel an in-flight searchESPDevices, connect, scanWifiList, provision or sendCustomDataString call that was
+   * started with the given operationId. Scans are stopped and pending connects are aborted so the radio is free
+   * right away. The cancelled call rejects with the code `CANCELLED`. Resolves with cancelled: false if nothing was
+   * running under that id. Android only.
+   *
+   * @param options {{ operationId: string }}
+   */
+  cancel(options: { operationId: string }): Promise<{ cancelled: boolean }>;
 
   /**
    * Disconnect from the device.
@@ -111,6 +305,36 @@ export interface EspProvisioningPlugin extends Plugin {
    */
   disconnect(options: { deviceName: string }): Promise<void>;
 
+  /**
+   * Read back the on-device history of connect and provision outcomes, oldest first. Only entries at or after since
+   * (milliseconds since the epoch, default 0) and, if given, with the given outcome are returned - the most recent
+   * limit of them (default 100). The history is rotated by size, so the oldest entries eventually drop off. Android
+   * only.
+   *
+   * @param options {{ since?: number, limit?: number, outcome?: 'success' | 'failed' | 'timeout' | 'cancelled' }}
+   */
+  queryHistory(options?: { since?: number, limit?: number, outcome?: 'success' | 'failed' | 'timeout' | 'cancelled' }): Promise<{ entries: ESPHistoryEntry[] }>;
+
+  /**
+   * Write the whole history to a tab separated file in the app's cache directory, ready to share or upload.
+   * Resolves with its path and the number of entries. Android only.
+   */
+  exportHistory(): Promise<{ path: string, count: number }>;
+
+  /**
+   * Start recording a binary trace of scan results, connection events, custom endpoint traffic and provisioning
+   * callbacks, with their timings, to a file in the app's cache directory. Its events and the device's endpoint
+   * responses can be played back on a desktop JVM with TraceReplayer. WiFi passphrases sent by provision are left
+   * out, but custom endpoint payloads are recorded as sent. Starting again replaces the trace being recorded. Android
+   * only.
+   */
+  startTrace(): Promise<{ path: string }>;
+
+  /**
+   * Stop recording and resolve once the trace file is complete. Rejects if no trace is being recorded. Android only.
+   */
+  stopTrace(): Promise<{ path: string, events: number }>;
+
   /**
    * Open the user's location settings for your app. Android only.
    */
@@ -126,6 +350,13 @@ export interface EspProvisioningPlugin extends Plugin {
    */
   openAppSettings(): Promise<{ value: boolean }>;
 
+  /**
+   * Build the provision manager, look up the bluetooth adapter and check capabilities and permissions on a background
+   * thread, so the first scan doesn't have to. Only runs once - with the warmUp plugin config it has already started
+   * on load, and this resolves when it's done. Android only.
+   */
+  warmUp(): Promise<ESPWarmUpMetrics>;
+
   /**
    * Enable extra logging - useful for troubleshooting. Best on iOS because the iOS ESPProvision
    * library offers much more verbose logging when enabled.
@@ -137,4 +368,16 @@ export interface EspProvisioningPlugin extends Plugin {
    */
   disableLogging(): Promise<void>;
 
+  /**
+   * Write each phase of a session (scan, connect, connect.initSession, scanNetworks, the provision stages and custom
+   * endpoint calls) to the system trace as async slices named after the device, so they can be lined up with the
+   * Bluetooth stack and WebView in Perfetto or systrace. Android only.
+   */
+  enableSystemTracing(): Promise<void>;
+
+  /**
+   * Stop writing phases to the system trace. Android only.
+   */
+  disableSystemTracing(): Promise<void>;
+
 }
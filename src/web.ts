@@ -1,7 +1,7 @@
 /* eslint-disable @typescript-eslint/no-unused-vars */
 import { WebPlugin } from '@capacitor/core';
 
-import type { EspProvisioningStatus, ESPDevice, ESPNetwork, EspProvisioningPlugin, ESPSecurity, ESPTransport, PermissionStatus } from './definitions';
+import type { EspProvisioningStatus, ESPDevice, ESPHistoryEntry, ESPNetwork, ESPWarmUpMetrics, ESPWifiSurvey, EspProvisioningPlugin, ESPSecurity, ESPTransport, PermissionStatus } from './definitions';
 
 export class EspProvisioningWeb extends WebPlugin implements EspProvisioningPlugin {
 
@@ -19,23 +19,51 @@ export class EspProvisioningWeb extends WebPlugin implements EspProvisioningPlug
     throw new Error('Method not implemented.');
   }
 
-  searchESPDevices(_options: { devicePrefix: string; transport: ESPTransport; security: ESPSecurity; }): Promise<{ devices?: ESPDevice[] | undefined; }> {
+  searchESPDevices(_options: { devicePrefix: string; transport: ESPTransport; security: ESPSecurity; operationId?: string; partial?: boolean; }): Promise<{ devices?: ESPDevice[] | undefined; }> {
     throw new Error('Method not implemented.');
   }
 
-  connect(_options: { deviceName: string; proofOfPossession: string }): Promise<{ connected: boolean; }> {
+  connect(_options: { deviceName: string; proofOfPossession: string; username?: string; softApPassword?: string; autoReconnect?: boolean; maxReconnectAttempts?: number; operationId?: string; timeout?: number; mtu?: number; highPriority?: boolean; priority?: number; prefetch?: ('wifiList' | 'versionInfo')[]; }): Promise<{ connected: boolean; connectTime?: number; handshakeTime?: number; requestedMtu?: number; connectionPriority?: 'high' | 'balanced'; versionInfo?: string; }> {
     throw new Error('Method not implemented.');
   }
 
-  scanWifiList(_options: { deviceName: string; }): Promise<{ networks?: ESPNetwork[] | undefined; }> {
+  scanWifiList(_options: { deviceName: string; operationId?: string; timeout?: number; }): Promise<{ networks?: ESPNetwork[] | undefined; }> {
     throw new Error('Method not implemented.');
   }
 
-  provision(_options: { deviceName: string; ssid: string; passPhrase: string; }): Promise<{ success: boolean; }> {
+  scanWifiListMany(_options: { deviceNames: string[]; operationId?: string; timeout?: number; }): Promise<ESPWifiSurvey> {
     throw new Error('Method not implemented.');
   }
 
-  sendCustomDataString(_options: { deviceName: string; path: string; dataString: string; }): Promise<{ success: boolean; returnString?: string | undefined; }> {
+  getDeviceInfo(_options: { deviceName: string; }): Promise<{ version?: string; securityVersion?: number; capabilities: string[]; versionInfo?: string; }> {
+    throw new Error('Method not implemented.');
+  }
+
+  provision(_options: { deviceName: string; ssid: string; passPhrase: string; operationId?: string; timeout?: number; waitForConnected?: boolean; }): Promise<{ success: boolean; timeToConnected?: number; ip?: string; }> {
+    throw new Error('Method not implemented.');
+  }
+
+  sendCustomDataString(_options: { deviceName: string; path: string; dataString: string; operationId?: string; timeout?: number; compression?: 'none' | 'deflate'; }): Promise<{ success: boolean; returnString?: string | undefined; }> {
+    throw new Error('Method not implemented.');
+  }
+
+  watchCustomEndpoint(_options: { deviceName: string; path: string; dataString?: string; intervalMs?: number; maxIntervalMs?: number; }): Promise<{ watchId: string; }> {
+    throw new Error('Method not implemented.');
+  }
+
+  unwatch(_options: { watchId: string; }): Promise<{ stopped: boolean; }> {
+    throw new Error('Method not implemented.');
+  }
+
+  startPresenceMonitor(_options: { devicePrefix: string; scanMode?: 'lowPower' | 'balanced' | 'lowLatency'; dutyCycle?: number; lostAfterMs?: number; }): Promise<void> {
+    throw new Error('Method not implemented.');
+  }
+
+  stopPresenceMonitor(): Promise<{ stopped: boolean; }> {
+    throw new Error('Method not implemented.');
+  }
+
+  cancel(_options: { operationId: string; }): Promise<{ cancelled: boolean; }> {
     throw new Error('Method not implemented.');
   }
 
@@ -43,6 +71,22 @@ export class EspProvisioningWeb extends WebPlugin implements EspProvisioningPlug
     throw new Error('Method not implemented.');
   }
 
+  queryHistory(_options?: { since?: number; limit?: number; outcome?: 'success' | 'failed' | 'timeout' | 'cancelled'; }): Promise<{ entries: ESPHistoryEntry[]; }> {
+    throw new Error('Method not implemented.');
+  }
+
+  exportHistory(): Promise<{ path: string; count: number; }> {
+    throw new Error('Method not implemented.');
+  }
+
+  startTrace(): Promise<{ path: string; }> {
+    throw new Error('Method not implemented.');
+  }
+
+  stopTrace(): Promise<{ path: string; events: number; }> {
+    throw new Error('Method not implemented.');
+  }
+
   openLocationSettings(): Promise<{ value: boolean; }> {
     throw new Error('Method not implemented.');
   }
@@ -55,6 +99,10 @@ export class EspProvisioningWeb extends WebPlugin implements EspProvisioningPlug
     throw new Error('Method not implemented.');
   }
 
+  warmUp(): Promise<ESPWarmUpMetrics> {
+    throw new Error('Method not implemented.');
+  }
+
   enableLogging(): Promise<void> {
     throw new Error('Method not implemented.');
   }
@@ -62,5 +110,13 @@ export class EspProvisioningWeb extends WebPlugin implements EspProvisioningPlug
   disableLogging(): Promise<void> {
     throw new Error('Method not implemented.');
   }
+
+  enableSystemTracing(): Promise<void> {
+    throw new Error('Method not implemented.');
+  }
+
+  disableSystemTracing(): Promise<void> {
+    throw new Error('Method not implemented.');
+  }
   
 }